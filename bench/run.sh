@@ -0,0 +1,31 @@
+#!/bin/sh
+# Builds the library classes that run on a plain JVM together with the
+# benchmarks, then runs them. Arguments are passed to BenchMain.
+#
+#   bench/run.sh [filter]
+#   JAVA_OPTS="-Dbench.chunk=256" bench/run.sh decode
+#   bench/run.sh --link           # scans/s over the simulated serial link
+#   bench/run.sh --sessions       # scans/s per board as the board count grows
+#   bench/run.sh --telemetry      # uploader batching, shedding and outbox recovery
+set -e
+cd "$(dirname "$0")/.."
+OUT=bench/build
+rm -rf "$OUT" && mkdir -p "$OUT"
+
+# everything that needs more of Android than android.util.Log stays out
+LIB=$(grep -L -E '^import (android\.(app|bluetooth|content|os|view|widget|net)\.|org\.apache\.|com\.mantis\.tinyfittings\.(R|bluetooth\.BTHandler|transport\.BluetoothTransport);)' \
+	$(find src -name '*.java') | grep -v -E '/(BTHandler|BTActivity|DeviceListActivity)\.java$')
+
+javac -nowarn -encoding UTF-8 -d "$OUT" $LIB $(find bench/stubs bench/src -name '*.java')
+MAIN=com.mantis.tinyfittings.bench.BenchMain
+if [ "$1" = "--link" ]; then
+	MAIN=com.mantis.tinyfittings.bench.LinkThroughput
+	shift
+elif [ "$1" = "--sessions" ]; then
+	MAIN=com.mantis.tinyfittings.bench.SessionScaling
+	shift
+elif [ "$1" = "--telemetry" ]; then
+	MAIN=com.mantis.tinyfittings.bench.TelemetryDriver
+	shift
+fi
+java $JAVA_OPTS -cp "$OUT" $MAIN "$@"
@@ -0,0 +1,35 @@
+package com.mantis.tinyfittings.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the benchmark suite and prints one line per benchmark.
+ *
+ * Arguments: [filter] - only run benchmarks whose name contains filter.
+ * System properties: bench.warmup, bench.iterations, bench.millis, bench.chunk.
+ */
+public class BenchMain {
+
+	public static void main(String[] args) {
+		String filter = args.length > 0 ? args[0] : "";
+		int warmup = Integer.getInteger("bench.warmup", 5);
+		int iterations = Integer.getInteger("bench.iterations", 5);
+		long millis = Long.getLong("bench.millis", 1000L);
+		int chunk = Integer.getInteger("bench.chunk", 64);
+
+		List<Benchmark> all = new ArrayList<Benchmark>();
+		all.addAll(SerialBenchmarks.create(chunk));
+		all.addAll(DecoderBenchmarks.create(chunk));
+		all.addAll(EncodeBenchmarks.create());
+		all.addAll(FilterBenchmarks.create());
+		all.addAll(FanOutBenchmarks.create(chunk));
+
+		BenchRunner runner = new BenchRunner(warmup, iterations, millis);
+		System.out.println(BenchRunner.header());
+		for (Benchmark b : all) {
+			if (b.getName().contains(filter))
+				System.out.println(runner.measure(b));
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package com.mantis.tinyfittings.bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+
+/**
+ * Times benchmarks in fixed length iterations after a warm-up, and reads the
+ * bytes the measuring thread allocated from the HotSpot ThreadMXBean, which
+ * gives the same figure as JMH's gc.alloc.rate.norm. Allocation done on other
+ * threads (writer threads, consumers) is not included.
+ */
+public class BenchRunner {
+
+	private final int warmupIterations;
+	private final int iterations;
+	private final long iterationMillis;
+
+	private volatile long sink;
+
+	public BenchRunner(int warmupIterations, int iterations, long iterationMillis) {
+		this.warmupIterations = warmupIterations;
+		this.iterations = iterations;
+		this.iterationMillis = iterationMillis;
+	}
+
+	public static String header() {
+		return String.format(Locale.US, "%-58s %14s %10s %10s %10s",
+				"Benchmark", "ops/s", "+-(%)", "MB/s", "B/op");
+	}
+
+	public String measure(Benchmark b) {
+		b.setup();
+		try {
+			for (int i = 0; i < warmupIterations; i++)
+				iteration(b);
+
+			double[] rates = new double[iterations];
+			long totalOps = 0;
+			long allocatedBefore = allocatedBytes();
+			for (int i = 0; i < iterations; i++) {
+				long start = System.nanoTime();
+				long ops = iteration(b);
+				long elapsed = System.nanoTime() - start;
+				rates[i] = ops * 1e9 / elapsed;
+				totalOps += ops;
+			}
+			long allocated = allocatedBytes() - allocatedBefore;
+
+			double mean = 0;
+			for (double r : rates)
+				mean += r;
+			mean /= rates.length;
+			double variance = 0;
+			for (double r : rates)
+				variance += (r - mean) * (r - mean);
+			double error = rates.length > 1 ? Math.sqrt(variance / (rates.length - 1)) / mean * 100 : 0;
+
+			String mbs = b.getBytesPerOp() > 0
+					? String.format(Locale.US, "%10.1f", mean * b.getBytesPerOp() / 1e6) : String.format("%10s", "-");
+			String bytesPerOp = allocatedBefore < 0
+					? String.format("%10s", "n/a") : String.format(Locale.US, "%10.2f", (double) allocated / totalOps);
+			return String.format(Locale.US, "%-58s %14.0f %10.1f %s %s",
+					b.getName(), mean, error, mbs, bytesPerOp);
+		} finally {
+			b.tearDown();
+		}
+	}
+
+	private long iteration(Benchmark b) {
+		long deadline = System.nanoTime() + iterationMillis * 1000000L;
+		long ops = 0;
+		long acc = 0;
+		// check the clock every 256 operations to keep its cost out of the result
+		do {
+			for (int i = 0; i < 256; i++)
+				acc += b.run();
+			ops += 256;
+		} while (System.nanoTime() < deadline);
+		sink += acc;
+		return ops;
+	}
+
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+}
@@ -0,0 +1,47 @@
+package com.mantis.tinyfittings.bench;
+
+/**
+ * One measured operation. The runner calls run() back to back for the
+ * duration of an iteration.
+ */
+public abstract class Benchmark {
+
+	private final String name;
+	private final int bytesPerOp;
+
+	/**
+	 * @param bytesPerOp payload bytes handled per operation, used for MB/s;
+	 * 0 if the benchmark does not move data
+	 */
+	protected Benchmark(String name, int bytesPerOp) {
+		this.name = name;
+		this.bytesPerOp = bytesPerOp;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getBytesPerOp() {
+		return bytesPerOp;
+	}
+
+	/**
+	 * Prepares state; called once before warm-up.
+	 */
+	public void setup() {
+	}
+
+	/**
+	 * Releases threads or other resources; called once after measuring.
+	 */
+	public void tearDown() {
+	}
+
+	/**
+	 * Performs one operation.
+	 *
+	 * @return any value derived from the work, so it cannot be optimized away
+	 */
+	public abstract long run();
+}
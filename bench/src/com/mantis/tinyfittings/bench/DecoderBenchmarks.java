@@ -0,0 +1,161 @@
+package com.mantis.tinyfittings.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.mantis.tinyfittings.arduino.Arduino_v1;
+import com.mantis.tinyfittings.arduino.FirmataDecoder;
+import com.mantis.tinyfittings.arduino.OnFirmataMessageListener;
+import com.mantis.tinyfittings.filter.DeadbandFilter;
+import com.mantis.tinyfittings.filter.ExponentialFilter;
+import com.mantis.tinyfittings.filter.FilterChain;
+import com.mantis.tinyfittings.filter.MedianFilter;
+
+/**
+ * Decoding a realistic analog/digital mix delivered in chunks of chunkSize
+ * bytes, from the receive callback to updated pin values.
+ */
+final class DecoderBenchmarks {
+
+	private DecoderBenchmarks() {
+	}
+
+	static List<Benchmark> create(final int chunkSize) {
+		final byte[] stream = FirmataStreams.analogDigitalMix(20000, 42);
+		List<Benchmark> list = new ArrayList<Benchmark>();
+
+		list.add(new ChunkedBenchmark("decode.legacyParser byte-at-a-time", stream, chunkSize) {
+			final LegacySerialBuffer serial = new LegacySerialBuffer();
+			final LegacyFirmataParser parser = new LegacyFirmataParser(serial);
+
+			@Override
+			long chunk(byte[] b, int off, int len) {
+				serial.receivedData(b, off, len);
+				parser.serialEvent();
+				return parser.analogInputData[0];
+			}
+		});
+
+		list.add(new ChunkedBenchmark("decode.Arduino_v1.processInput() byte-at-a-time", stream, chunkSize) {
+			final NullSerial serial = new NullSerial();
+			final BenchArduino arduino = new BenchArduino(serial);
+
+			@Override
+			public void setup() {
+				serial.registerArduino(null); // buffer only, processInput() pulls
+			}
+
+			@Override
+			long chunk(byte[] b, int off, int len) {
+				serial.receivedData(b, off, len, System.nanoTime());
+				while (serial.available() > 0)
+					arduino.processInputOnce();
+				return arduino.analogRead(0);
+			}
+		});
+
+		list.add(new ChunkedBenchmark("decode.Arduino_v1.serialEvent() chunked", stream, chunkSize) {
+			final NullSerial serial = new NullSerial();
+			final Arduino_v1 arduino = new Arduino_v1(serial);
+
+			@Override
+			long chunk(byte[] b, int off, int len) {
+				serial.receivedData(b, off, len, System.nanoTime());
+				return arduino.analogRead(0);
+			}
+		});
+
+		list.add(new ChunkedBenchmark("decode.Arduino_v1.serialEvent() chunked, filtered", stream, chunkSize) {
+			final NullSerial serial = new NullSerial();
+			final Arduino_v1 arduino = new Arduino_v1(serial);
+
+			@Override
+			public void setup() {
+				for (int pin = 0; pin < 6; pin++)
+					arduino.setFilter(pin, new FilterChain(new MedianFilter(3),
+							new ExponentialFilter(0.25), new DeadbandFilter(3)));
+			}
+
+			@Override
+			long chunk(byte[] b, int off, int len) {
+				serial.receivedData(b, off, len, System.nanoTime());
+				return arduino.analogRead(0);
+			}
+		});
+
+		list.add(new ChunkedBenchmark("decode.FirmataDecoder.decode() only", stream, chunkSize) {
+			long acc;
+			final FirmataDecoder decoder = new FirmataDecoder(new OnFirmataMessageListener() {
+				@Override
+				public void digitalMessage(int port, int pins0_6, int pins7_13) {
+					acc += pins0_6;
+				}
+
+				@Override
+				public void analogMessage(int pin, int value) {
+					acc += value;
+				}
+
+				@Override
+				public void versionMessage(int majorVersion, int minorVersion) {
+					acc += majorVersion;
+				}
+
+				@Override
+				public void sysexMessage(int command, byte[] data, int offset, int length) {
+					acc += command;
+				}
+
+				@Override
+				public void endOfChunk() {
+				}
+			});
+
+			@Override
+			long chunk(byte[] b, int off, int len) {
+				decoder.decode(b, off, len);
+				return acc;
+			}
+		});
+		return list;
+	}
+
+	/**
+	 * Exposes the protected single byte entry point.
+	 */
+	static class BenchArduino extends Arduino_v1 {
+		BenchArduino(NullSerial serial) {
+			super(serial);
+		}
+
+		void processInputOnce() {
+			processInput();
+		}
+	}
+
+	/**
+	 * Walks over a long stream chunk by chunk, wrapping around at its end.
+	 */
+	abstract static class ChunkedBenchmark extends Benchmark {
+		private final byte[] stream;
+		private final int chunkSize;
+		private int position = 0;
+
+		ChunkedBenchmark(String name, byte[] stream, int chunkSize) {
+			super(name + " " + chunkSize + "B", chunkSize);
+			this.stream = stream;
+			this.chunkSize = chunkSize;
+		}
+
+		@Override
+		public long run() {
+			if (position + chunkSize > stream.length)
+				position = 0;
+			long result = chunk(stream, position, chunkSize);
+			position += chunkSize;
+			return result;
+		}
+
+		abstract long chunk(byte[] b, int off, int len);
+	}
+}
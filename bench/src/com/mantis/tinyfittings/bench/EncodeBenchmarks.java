@@ -0,0 +1,181 @@
+package com.mantis.tinyfittings.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.mantis.tinyfittings.arduino.Arduino;
+import com.mantis.tinyfittings.arduino.Arduino_v1;
+import com.mantis.tinyfittings.arduino.Transaction;
+import com.mantis.tinyfittings.bluetooth.CoalescingWriter;
+import com.mantis.tinyfittings.bluetooth.PrioritizedWriter;
+
+/**
+ * Cost of encoding output commands, into a discarding Serial and through the
+ * coalescing writer that feeds the socket.
+ */
+final class EncodeBenchmarks {
+
+	private EncodeBenchmarks() {
+	}
+
+	static List<Benchmark> create() {
+		List<Benchmark> list = new ArrayList<Benchmark>();
+
+		list.add(new Benchmark("encode.digitalWrite", 3) {
+			final NullSerial serial = new NullSerial();
+			final Arduino_v1 arduino = new Arduino_v1(serial);
+			int i;
+
+			@Override
+			public long run() {
+				arduino.digitalWrite(13, (i++ & 1) == 0 ? Arduino.HIGH : Arduino.LOW);
+				return serial.bytesWritten;
+			}
+		});
+
+		list.add(new Benchmark("encode.8 pins, 8 x digitalWrite", 24) {
+			final NullSerial serial = new NullSerial();
+			final Arduino_v1 arduino = new Arduino_v1(serial);
+			int i;
+
+			@Override
+			public long run() {
+				int value = (i++ & 1) == 0 ? Arduino.HIGH : Arduino.LOW;
+				for (int pin = 2; pin < 10; pin++)
+					arduino.digitalWrite(pin, value);
+				return serial.bytesWritten;
+			}
+		});
+
+		list.add(new Benchmark("encode.8 pins, one Transaction", 3) {
+			final NullSerial serial = new NullSerial();
+			final Arduino_v1 arduino = new Arduino_v1(serial);
+			final Transaction transaction = arduino.beginTransaction();
+			int i;
+
+			@Override
+			public long run() {
+				int value = (i++ & 1) == 0 ? Arduino.HIGH : Arduino.LOW;
+				for (int pin = 2; pin < 10; pin++)
+					transaction.digitalWrite(pin, value);
+				transaction.commit();
+				return serial.bytesWritten;
+			}
+		});
+
+		list.add(new Benchmark("encode.analogWrite", 3) {
+			final NullSerial serial = new NullSerial();
+			final Arduino_v1 arduino = new Arduino_v1(serial);
+			int i;
+
+			@Override
+			public long run() {
+				arduino.analogWrite(9, i++ & 0xFF);
+				return serial.bytesWritten;
+			}
+		});
+
+		list.add(new Benchmark("encode.analogWrite into CoalescingWriter", 3) {
+			final CountingOutputStream out = new CountingOutputStream();
+			final CoalescingWriter writer = new CoalescingWriter(out);
+			final WriterSerial serial = new WriterSerial(writer);
+			final Arduino_v1 arduino = new Arduino_v1(serial);
+			int i;
+
+			@Override
+			public void setup() {
+				writer.start();
+			}
+
+			@Override
+			public void tearDown() {
+				writer.close();
+			}
+
+			@Override
+			public long run() {
+				arduino.analogWrite(9, i++ & 0xFF);
+				return out.writes;
+			}
+		});
+		list.add(new Benchmark("encode.analogWrite into PrioritizedWriter", 3) {
+			final CountingOutputStream out = new CountingOutputStream();
+			final PrioritizedWriter writer = new PrioritizedWriter(out);
+			final PrioritizedSerial serial = new PrioritizedSerial(writer);
+			final Arduino_v1 arduino = new Arduino_v1(serial);
+			int i;
+
+			@Override
+			public void setup() {
+				writer.start();
+			}
+
+			@Override
+			public void tearDown() {
+				writer.close();
+			}
+
+			@Override
+			public long run() {
+				arduino.analogWrite(9, i++ & 0xFF);
+				return out.writes;
+			}
+		});
+		return list;
+	}
+
+	static class CountingOutputStream extends OutputStream {
+		volatile long writes;
+		volatile long bytes;
+
+		@Override
+		public void write(int b) throws IOException {
+			writes++;
+			bytes++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			writes++;
+			bytes += len;
+		}
+	}
+
+	static class WriterSerial extends NullSerial {
+		private final CoalescingWriter writer;
+
+		WriterSerial(CoalescingWriter writer) {
+			this.writer = writer;
+		}
+
+		@Override
+		public void write(int what) {
+			writer.write(what);
+		}
+
+		@Override
+		public void write(byte[] bytes) {
+			writer.write(bytes);
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) {
+			writer.write(bytes, offset, length);
+		}
+	}
+
+	static class PrioritizedSerial extends NullSerial {
+		private final PrioritizedWriter writer;
+
+		PrioritizedSerial(PrioritizedWriter writer) {
+			this.writer = writer;
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length, int priority) {
+			writer.write(bytes, offset, length, priority);
+		}
+	}
+}
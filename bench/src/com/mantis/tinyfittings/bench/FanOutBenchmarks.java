@@ -0,0 +1,149 @@
+package com.mantis.tinyfittings.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.mantis.tinyfittings.arduino.Arduino_v1;
+import com.mantis.tinyfittings.bluetooth.OnReceivedDataListener;
+import com.mantis.tinyfittings.bluetooth.ReceivedDataDispatcher;
+
+/**
+ * The step after the socket read in BTHandler: handing a chunk to every
+ * registered listener. The listeners run on the dispatcher's delivery
+ * threads; except for the sleeping listener, the benchmark thread waits
+ * while a queue is more than half full, so the figures are for the whole
+ * stack keeping up, not for the reader discarding chunks.
+ */
+final class FanOutBenchmarks {
+
+	private FanOutBenchmarks() {
+	}
+
+	static List<Benchmark> create(final int chunkSize) {
+		final byte[] stream = FirmataStreams.analogDigitalMix(20000, 7);
+		List<Benchmark> list = new ArrayList<Benchmark>();
+
+		// the old dispatcher: every listener called inline on the reader thread
+		list.add(new DecoderBenchmarks.ChunkedBenchmark("fanout.inline 4 summing listeners", stream, chunkSize) {
+			final SummingListener[] sums = { new SummingListener(), new SummingListener(),
+					new SummingListener(), new SummingListener() };
+
+			@Override
+			long chunk(byte[] b, int off, int len) {
+				for (int i = 0; i < sums.length; i++)
+					sums[i].receivedData(b, off, len, 0L);
+				return sums[0].sum;
+			}
+		});
+
+		for (final int listeners : new int[] { 1, 4 }) {
+			list.add(new DecoderBenchmarks.ChunkedBenchmark("fanout." + listeners + " summing listeners", stream, chunkSize) {
+				final ReceivedDataDispatcher dispatcher = new ReceivedDataDispatcher();
+				final SummingListener[] sums = new SummingListener[listeners];
+				ReceivedDataDispatcher.Subscription[] subscriptions;
+
+				@Override
+				public void setup() {
+					for (int i = 0; i < listeners; i++) {
+						sums[i] = new SummingListener();
+						dispatcher.add(sums[i]);
+					}
+					subscriptions = dispatcher.getSubscriptions();
+				}
+
+				@Override
+				public void tearDown() {
+					dispatcher.close();
+				}
+
+				@Override
+				long chunk(byte[] b, int off, int len) {
+					dispatcher.dispatch(b, off, len);
+					awaitRoom(subscriptions);
+					return sums[0].sum;
+				}
+			});
+		}
+
+		list.add(new DecoderBenchmarks.ChunkedBenchmark("fanout.1 listener sleeping 1 ms", stream, chunkSize) {
+			final ReceivedDataDispatcher dispatcher = new ReceivedDataDispatcher();
+			final SleepingListener slow = new SleepingListener();
+
+			@Override
+			public void setup() {
+				dispatcher.add(slow);
+			}
+
+			@Override
+			public void tearDown() {
+				dispatcher.close();
+			}
+
+			@Override
+			long chunk(byte[] b, int off, int len) {
+				dispatcher.dispatch(b, off, len);
+				return slow.calls;
+			}
+		});
+
+		list.add(new DecoderBenchmarks.ChunkedBenchmark("fanout.Serial+Arduino_v1 stack", stream, chunkSize) {
+			final ReceivedDataDispatcher dispatcher = new ReceivedDataDispatcher();
+			final NullSerial serial = new NullSerial();
+			final Arduino_v1 arduino = new Arduino_v1(serial);
+			ReceivedDataDispatcher.Subscription[] subscriptions;
+
+			@Override
+			public void setup() {
+				dispatcher.add(serial);
+				subscriptions = dispatcher.getSubscriptions();
+			}
+
+			@Override
+			public void tearDown() {
+				dispatcher.close();
+			}
+
+			@Override
+			long chunk(byte[] b, int off, int len) {
+				dispatcher.dispatch(b, off, len);
+				awaitRoom(subscriptions);
+				return arduino.analogRead(1);
+			}
+		});
+		return list;
+	}
+
+	// holds the reader back instead of letting the dispatcher drop
+	static void awaitRoom(ReceivedDataDispatcher.Subscription[] subscriptions) {
+		for (int i = 0; i < subscriptions.length; i++) {
+			while (subscriptions[i].getLag() > subscriptions[i].getCapacity() / 2)
+				Thread.yield();
+		}
+	}
+
+	static class SummingListener implements OnReceivedDataListener {
+		volatile long sum;
+
+		@Override
+		public void receivedData(byte[] buffer, int offset, int length, long receiveTime) {
+			long s = sum;
+			for (int i = offset; i < offset + length; i++)
+				s += buffer[i];
+			sum = s;
+		}
+	}
+
+	static class SleepingListener implements OnReceivedDataListener {
+		volatile long calls;
+
+		@Override
+		public void receivedData(byte[] buffer, int offset, int length, long receiveTime) {
+			calls++;
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
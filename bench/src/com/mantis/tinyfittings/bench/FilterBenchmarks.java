@@ -0,0 +1,70 @@
+package com.mantis.tinyfittings.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.mantis.tinyfittings.filter.DeadbandFilter;
+import com.mantis.tinyfittings.filter.DecimationFilter;
+import com.mantis.tinyfittings.filter.ExponentialFilter;
+import com.mantis.tinyfittings.filter.Filter;
+import com.mantis.tinyfittings.filter.FilterChain;
+import com.mantis.tinyfittings.filter.MedianFilter;
+import com.mantis.tinyfittings.filter.MovingAverageFilter;
+
+/**
+ * Cost of one reading through each filter stage and through a typical chain,
+ * on a slow sine with a few counts of noise and an occasional spike.
+ */
+final class FilterBenchmarks {
+
+	private FilterBenchmarks() {
+	}
+
+	static List<Benchmark> create() {
+		final int[] signal = noisySine(1 << 16, 42);
+		List<Benchmark> list = new ArrayList<Benchmark>();
+		list.add(new FilterBenchmark("filter.MovingAverage 8", signal, new MovingAverageFilter(8)));
+		list.add(new FilterBenchmark("filter.Exponential 0.25", signal, new ExponentialFilter(0.25)));
+		list.add(new FilterBenchmark("filter.Median 5", signal, new MedianFilter(5)));
+		list.add(new FilterBenchmark("filter.Deadband 4", signal, new DeadbandFilter(4)));
+		list.add(new FilterBenchmark("filter.Decimation 4", signal, new DecimationFilter(4)));
+		list.add(new FilterBenchmark("filter.chain Median 3 > Exponential 0.25 > Deadband 3", signal,
+				new FilterChain(new MedianFilter(3), new ExponentialFilter(0.25), new DeadbandFilter(3))));
+		return list;
+	}
+
+	static int[] noisySine(int n, long seed) {
+		Random random = new Random(seed);
+		int[] out = new int[n];
+		for (int i = 0; i < n; i++) {
+			int value = 512 + (int) (300 * Math.sin(i * 2 * Math.PI / 5000)) + random.nextInt(7) - 3;
+			if (random.nextInt(200) == 0)
+				value += 200;
+			out[i] = Math.max(0, Math.min(1023, value));
+		}
+		return out;
+	}
+
+	static class FilterBenchmark extends Benchmark {
+		private final int[] signal;
+		private final Filter filter;
+		private int position = 0;
+		private long acc;
+
+		FilterBenchmark(String name, int[] signal, Filter filter) {
+			super(name, 0);
+			this.signal = signal;
+			this.filter = filter;
+		}
+
+		@Override
+		public long run() {
+			int value = filter.apply(signal[position]);
+			position = (position + 1) & (signal.length - 1);
+			if (value != Filter.NONE)
+				acc += value;
+			return acc;
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package com.mantis.tinyfittings.bench;
+
+import java.util.Random;
+
+/**
+ * Byte streams shaped like what the firmware sends.
+ */
+final class FirmataStreams {
+
+	private FirmataStreams() {
+	}
+
+	/**
+	 * Six analog pins per scan, a digital message every tenth scan and a
+	 * version report every thousandth, with the values drifting like sensors.
+	 */
+	static byte[] analogDigitalMix(int scans, long seed) {
+		Random random = new Random(seed);
+		byte[] out = new byte[scans * 21 + 3 * (scans / 1000 + 1)];
+		int n = 0;
+		int[] values = new int[6];
+		for (int scan = 0; scan < scans; scan++) {
+			if (scan % 10 == 0) {
+				int pins = random.nextInt(1 << 14);
+				out[n++] = (byte) 0x90;
+				out[n++] = (byte) (pins & 0x7F);
+				out[n++] = (byte) (pins >> 7);
+			}
+			if (scan % 1000 == 0) {
+				out[n++] = (byte) 0xF9;
+				out[n++] = 0;
+				out[n++] = 1;
+			}
+			for (int pin = 0; pin < 6; pin++) {
+				values[pin] = Math.max(0, Math.min(1023, values[pin] + random.nextInt(9) - 4));
+				out[n++] = (byte) (0xE0 | pin);
+				out[n++] = (byte) (values[pin] & 0x7F);
+				out[n++] = (byte) (values[pin] >> 7);
+			}
+		}
+		byte[] exact = new byte[n];
+		System.arraycopy(out, 0, exact, 0, n);
+		return exact;
+	}
+}
@@ -0,0 +1,76 @@
+package com.mantis.tinyfittings.bench;
+
+/**
+ * The byte-at-a-time parser Arduino_v1.processInput() had before
+ * FirmataDecoder, reading from the old LinkedList buffer. Kept as the
+ * baseline for the decoder benchmarks.
+ */
+final class LegacyFirmataParser {
+
+	private static final int DIGITAL_MESSAGE = 0x90;
+	private static final int ANALOG_MESSAGE  = 0xE0;
+	private static final int REPORT_VERSION  = 0xF9;
+
+	private final LegacySerialBuffer serial;
+
+	int inputData;
+	int waitForData = 0;
+	int executeMultiByteCommand = 0;
+	int multiByteChannel = 0;
+	int[] storedInputData = new int[2];
+
+	int[] digitalInputData = new int[14];
+	int[] analogInputData = new int[9];
+	int majorVersion, minorVersion;
+
+	LegacyFirmataParser(LegacySerialBuffer serial) {
+		this.serial = serial;
+	}
+
+	void serialEvent() {
+		while (serial.available() > 0)
+			processInput();
+	}
+
+	void processInput() {
+		inputData = serial.read();
+		if (waitForData > 0 && inputData < 128) {
+			waitForData--;
+			storedInputData[waitForData] = inputData;
+
+			if ((executeMultiByteCommand != 0) && (waitForData == 0)) {
+				switch (executeMultiByteCommand) {
+				case DIGITAL_MESSAGE:
+					for (int i = 0; i < 7; i++) {
+						digitalInputData[i] = (storedInputData[1] >> i) & 1;
+						digitalInputData[i + 7] = (storedInputData[0] >> i) & 1;
+					}
+					break;
+				case ANALOG_MESSAGE:
+					analogInputData[multiByteChannel] = storedInputData[0] * 128 + storedInputData[1];
+					break;
+				case REPORT_VERSION:
+					majorVersion = storedInputData[0];
+					minorVersion = storedInputData[1];
+					break;
+				}
+			}
+		} else {
+			int command;
+			if (inputData < 0xF0) {
+				command = inputData & 0xF0;
+				multiByteChannel = inputData & 0x0F;
+			} else {
+				command = inputData;
+			}
+			switch (command) {
+			case DIGITAL_MESSAGE:
+			case ANALOG_MESSAGE:
+			case REPORT_VERSION:
+				waitForData = 2;
+				executeMultiByteCommand = command;
+				break;
+			}
+		}
+	}
+}
@@ -0,0 +1,27 @@
+package com.mantis.tinyfittings.bench;
+
+import java.util.LinkedList;
+
+/**
+ * The receive buffer Serial had before the ring buffer: one boxed Byte in a
+ * LinkedList node per received byte. Kept as the baseline.
+ */
+final class LegacySerialBuffer {
+
+	private final LinkedList<Byte> buffer = new LinkedList<Byte>();
+
+	synchronized void receivedData(byte[] bytes, int offset, int length) {
+		for (int i = offset; i < offset + length; i++)
+			buffer.add(bytes[i]);
+	}
+
+	int available() {
+		return buffer.size();
+	}
+
+	int read() {
+		if (buffer.isEmpty())
+			return -1;
+		return buffer.poll();
+	}
+}
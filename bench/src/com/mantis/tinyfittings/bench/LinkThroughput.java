@@ -0,0 +1,82 @@
+package com.mantis.tinyfittings.bench;
+
+import java.util.Locale;
+
+import com.mantis.tinyfittings.arduino.Arduino;
+import com.mantis.tinyfittings.arduino.ArduinoSelector;
+import com.mantis.tinyfittings.arduino.Arduino_v2;
+import com.mantis.tinyfittings.arduino.LinkProfile;
+import com.mantis.tinyfittings.arduino.ThroughputMeter;
+import com.mantis.tinyfittings.serial.Serial;
+import com.mantis.tinyfittings.simulator.FirmataSimulator;
+import com.mantis.tinyfittings.simulator.SimulatorFarm;
+import com.mantis.tinyfittings.simulator.Waveforms;
+
+/**
+ * Measures complete scans per second arriving at the host over a simulated
+ * serial link. Unlike the micro benchmarks this runs in simulated link time,
+ * so the numbers depend on the modeled baud rate and not on the machine.
+ *
+ * The fixed cases scan as fast as the link allows; the negotiated cases let
+ * LinkProfile pick encoding and interval from the reported baud rate.
+ *
+ * System properties: link.seconds (measurement time per case, default 5).
+ */
+public class LinkThroughput {
+
+	private static final int PINS = 6;
+
+	public static void main(String[] args) throws InterruptedException {
+		long seconds = Long.getLong("link.seconds", 5L);
+		System.out.println(String.format(Locale.US, "%-40s %8s %8s %10s %10s %10s %6s",
+				"Encoding", "baud", "ms", "frames/s", "B/frame", "link B/s", "util"));
+		System.out.println(measure("ANALOG_MESSAGE per pin, 20 ms scan", 9600, false, 20, seconds));
+		System.out.println(measure("ANALOG_MESSAGE per pin, 1 ms scan", 9600, false, 1, seconds));
+		System.out.println(measure("ANALOG_FRAME packed, 1 ms scan", 9600, true, 1, seconds));
+		int[] bauds = { 9600, 57600, 115200 };
+		for (int baud : bauds)
+			System.out.println(measure("negotiated LinkProfile", baud, true, 0, seconds));
+	}
+
+	/**
+	 * @param intervalMs sampling interval, 0 to negotiate the link profile
+	 */
+	static String measure(String name, final int baud, boolean packed, int intervalMs, long seconds)
+			throws InterruptedException {
+		SimulatorFarm farm = new SimulatorFarm(1);
+		try {
+			Serial serial = farm.addBoard(new SimulatorFarm.FirmataSimulatorSetup() {
+				@Override
+				public void configure(FirmataSimulator board) {
+					board.setFirmwareVersion(2, 2);
+					board.setBaudRate(baud);
+					for (int pin = 0; pin < PINS; pin++)
+						board.setWaveform(pin, Waveforms.sine(1000 + 100 * pin, 512, 500));
+				}
+			});
+			Arduino arduino = ArduinoSelector.select(serial, 2000);
+			if (!(arduino instanceof Arduino_v2))
+				throw new IllegalStateException("simulator did not report version 2");
+			Arduino_v2 v2 = (Arduino_v2) arduino;
+			if (intervalMs > 0) {
+				v2.setSamplingInterval(intervalMs);
+				v2.setPackedFrames(packed);
+			}
+			else {
+				intervalMs = LinkProfile.negotiate(v2, PINS, 2000).getSamplingInterval();
+			}
+			Thread.sleep(1000); // settle: commands applied, old scans drained
+
+			ThroughputMeter meter = new ThroughputMeter(serial, v2);
+			Thread.sleep(seconds * 1000);
+			meter.sample();
+			double frames = meter.getScansPerSecond();
+
+			return String.format(Locale.US, "%-40s %8d %8d %10.1f %10.1f %10.0f %5.0f%%",
+					name, baud, intervalMs, frames, frames == 0 ? 0.0 : meter.getBytesPerSecond() / frames,
+					meter.getBytesPerSecond(), meter.getUtilization(baud) * 100);
+		} finally {
+			farm.shutdown();
+		}
+	}
+}
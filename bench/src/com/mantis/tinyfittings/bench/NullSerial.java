@@ -0,0 +1,35 @@
+package com.mantis.tinyfittings.bench;
+
+import com.mantis.tinyfittings.serial.Serial;
+
+/**
+ * Serial that stands in for the socket: writes are counted and dropped.
+ */
+class NullSerial extends Serial {
+
+	long bytesWritten;
+
+	@Override
+	public void dispose() {
+	}
+
+	@Override
+	public void write(int what) {
+		bytesWritten++;
+	}
+
+	@Override
+	public void write(byte[] bytes) {
+		bytesWritten += bytes.length;
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length) {
+		bytesWritten += length;
+	}
+
+	@Override
+	public void write(String what) {
+		bytesWritten += what.length();
+	}
+}
@@ -0,0 +1,64 @@
+package com.mantis.tinyfittings.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Serial receive buffer: a chunk goes in through receivedData() and is read
+ * back out, by the bulk read and byte by byte, against the old LinkedList.
+ */
+final class SerialBenchmarks {
+
+	private SerialBenchmarks() {
+	}
+
+	static List<Benchmark> create(final int chunkSize) {
+		final byte[] chunk = new byte[chunkSize];
+		for (int i = 0; i < chunkSize; i++)
+			chunk[i] = (byte) i;
+		List<Benchmark> list = new ArrayList<Benchmark>();
+
+		list.add(new Benchmark("serial.legacyLinkedList " + chunkSize + "B read()", chunkSize) {
+			final LegacySerialBuffer serial = new LegacySerialBuffer();
+
+			@Override
+			public long run() {
+				serial.receivedData(chunk, 0, chunk.length);
+				long sum = 0;
+				while (serial.available() > 0)
+					sum += serial.read();
+				return sum;
+			}
+		});
+
+		list.add(new Benchmark("serial.ring " + chunkSize + "B read()", chunkSize) {
+			final NullSerial serial = new NullSerial();
+
+			@Override
+			public long run() {
+				serial.receivedData(chunk, 0, chunk.length, System.nanoTime());
+				long sum = 0;
+				int b;
+				while ((b = serial.read()) >= 0)
+					sum += b;
+				return sum;
+			}
+		});
+
+		list.add(new Benchmark("serial.ring " + chunkSize + "B read(byte[],off,len)", chunkSize) {
+			final NullSerial serial = new NullSerial();
+			final byte[] out = new byte[1024];
+
+			@Override
+			public long run() {
+				serial.receivedData(chunk, 0, chunk.length, System.nanoTime());
+				long sum = 0;
+				int n;
+				while ((n = serial.read(out, 0, out.length)) > 0)
+					sum += n;
+				return sum;
+			}
+		});
+		return list;
+	}
+}
@@ -0,0 +1,113 @@
+package com.mantis.tinyfittings.bench;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import com.mantis.tinyfittings.arduino.ThroughputMeter;
+import com.mantis.tinyfittings.session.Session;
+import com.mantis.tinyfittings.session.SessionManager;
+import com.mantis.tinyfittings.simulator.FirmataSimulator;
+import com.mantis.tinyfittings.simulator.SimulatorFarm;
+import com.mantis.tinyfittings.simulator.Waveforms;
+import com.mantis.tinyfittings.transport.IoThreadPool;
+import com.mantis.tinyfittings.transport.StreamTransport;
+
+/**
+ * Measures complete scans per second per board while one SessionManager
+ * serves a growing number of simulated boards. Each board is a Firmata 2.2
+ * simulator behind a localhost TCP connection; the host side reads the
+ * socket streams through the manager's shared I/O threads, like the RFCOMM
+ * streams of real boards, and negotiates the link profile per session.
+ *
+ * System properties: sessions.seconds (measurement time per case, default 5),
+ * sessions.baud (modeled UART rate of every board, default 57600).
+ */
+public class SessionScaling {
+
+	private static final int PINS = 6;
+	private static final int HOST_IO_THREADS = 2;
+	private static final int BOARD_IO_THREADS = 2;
+
+	public static void main(String[] args) throws Exception {
+		long seconds = Long.getLong("sessions.seconds", 5L);
+		int baud = Integer.getInteger("sessions.baud", 57600);
+		System.out.println(String.format(Locale.US, "%8s %8s %8s %10s %10s %10s %12s",
+				"boards", "baud", "threads", "min/s", "mean/s", "max/s", "total/s"));
+		int[] counts = { 1, 4, 16, 64 };
+		for (int n : counts)
+			System.out.println(measure(n, baud, seconds));
+	}
+
+	static String measure(int boards, final int baud, long seconds) throws Exception {
+		SimulatorFarm farm = new SimulatorFarm(2);
+		IoThreadPool boardPool = new IoThreadPool(BOARD_IO_THREADS, "BoardIO", null);
+		SessionManager manager = new SessionManager(HOST_IO_THREADS, 2, PINS);
+		ServerSocket server = new ServerSocket(0, boards, InetAddress.getLoopbackAddress());
+		try {
+			for (int i = 0; i < boards; i++) {
+				Socket host = new Socket(server.getInetAddress(), server.getLocalPort());
+				host.setTcpNoDelay(true);
+				Socket board = server.accept();
+				board.setTcpNoDelay(true);
+
+				StreamTransport boardLink = new StreamTransport(board.getInputStream(), board.getOutputStream(), board);
+				FirmataSimulator simulator = new FirmataSimulator(boardLink);
+				simulator.setFirmwareVersion(2, 2);
+				simulator.setBaudRate(baud);
+				for (int pin = 0; pin < PINS; pin++)
+					simulator.setWaveform(pin, Waveforms.sine(1000 + 100 * pin, 512, 500));
+				boardPool.register(boardLink);
+				farm.start(simulator);
+
+				manager.open(String.format(Locale.US, "00:00:00:00:%02X:%02X", i >> 8, i & 0xff),
+						host.getInputStream(), host.getOutputStream(), host);
+			}
+
+			List<Session> sessions = awaitReady(manager, boards, 30000);
+			Thread.sleep(1000); // settle: profiles applied, old scans drained
+
+			List<ThroughputMeter> meters = new ArrayList<ThroughputMeter>();
+			for (Session session : sessions)
+				meters.add(new ThroughputMeter(session.getSerial(), session.getArduino()));
+			Thread.sleep(seconds * 1000);
+
+			double min = Double.MAX_VALUE, max = 0, total = 0;
+			for (ThroughputMeter meter : meters) {
+				meter.sample();
+				double scans = meter.getScansPerSecond();
+				min = Math.min(min, scans);
+				max = Math.max(max, scans);
+				total += scans;
+			}
+			return String.format(Locale.US, "%8d %8d %8d %10.1f %10.1f %10.1f %12.1f",
+					boards, baud, manager.getIoThreadCount(), min, total / boards, max, total);
+		} finally {
+			manager.shutdown();
+			farm.shutdown();
+			boardPool.shutdown();
+			server.close();
+		}
+	}
+
+	private static List<Session> awaitReady(SessionManager manager, int boards, long timeoutMs)
+			throws InterruptedException, IOException {
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		while (true) {
+			List<Session> sessions = manager.getSessions();
+			int ready = 0;
+			for (Session session : sessions)
+				if (session.isReady())
+					ready++;
+			if (ready == boards)
+				return sessions;
+			if (System.currentTimeMillis() > deadline)
+				throw new IOException(ready + " of " + boards + " sessions ready");
+			Thread.sleep(50);
+		}
+	}
+}
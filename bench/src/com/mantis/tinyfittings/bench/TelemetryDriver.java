@@ -0,0 +1,267 @@
+package com.mantis.tinyfittings.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+import com.mantis.tinyfittings.telemetry.BatchSender;
+import com.mantis.tinyfittings.telemetry.SampleBatch;
+import com.mantis.tinyfittings.telemetry.SampleOutbox;
+import com.mantis.tinyfittings.telemetry.TelemetryUploader;
+
+/**
+ * Drives a TelemetryUploader against a local stand-in for the server and
+ * checks what arrives. Every sample carries its number in channel 0, so the
+ * stand-in can tell samples lost, sent twice or out of order.
+ *
+ * Cases: batches closed by size and by age, both shedding policies of the
+ * in-memory queue behind a slow server, an outbox riding out an outage and
+ * draining the backlog, and an outbox reopened with samples a previous
+ * uploader never got acknowledged.
+ *
+ * System property: telemetry.dir (outbox directory, default a temporary one).
+ */
+public class TelemetryDriver {
+
+	private static final int CHANNELS = 6;
+
+	public static void main(String[] args) throws Exception {
+		File dir = new File(System.getProperty("telemetry.dir",
+				new File(System.getProperty("java.io.tmpdir"), "tinyfittings-outbox").getPath()));
+		System.out.println(String.format(Locale.US, "%-28s %8s %8s %8s %8s %8s %8s %8s  %s",
+				"Case", "offered", "sent", "dropped", "batches", "mean", "max", "ms", "check"));
+		int failures = 0;
+		failures += batchBySize();
+		failures += batchByAge();
+		failures += shedding(TelemetryUploader.DROP_OLDEST, "shed oldest, slow server");
+		failures += shedding(TelemetryUploader.DROP_NEWEST, "shed newest, slow server");
+		failures += outage(new File(dir, "outage"));
+		failures += reopen(new File(dir, "reopen"));
+		if (failures > 0) {
+			System.out.println(failures + " case(s) failed");
+			System.exit(1);
+		}
+	}
+
+	// 500 samples at once, batches of 50: ten uploads, none waiting for the age
+	static int batchBySize() throws Exception {
+		StandInServer server = new StandInServer(1000);
+		TelemetryUploader uploader = new TelemetryUploader(server, CHANNELS, 1024, 50, 10000,
+				TelemetryUploader.DROP_OLDEST);
+		long start = System.nanoTime();
+		uploader.start();
+		offer(uploader, 0, 500, 0);
+		server.awaitSamples(500, 5000);
+		long ms = (System.nanoTime() - start) / 1000000L;
+		stop(uploader);
+		boolean ok = server.inOrderFrom(0) && server.received == 500 && server.maxBatch == 50 && ms < 10000;
+		return report("batch by size (50)", uploader, server, ms, ok);
+	}
+
+	// 7 samples and then silence: one batch, sent once the oldest is 200 ms old
+	static int batchByAge() throws Exception {
+		StandInServer server = new StandInServer(1000);
+		TelemetryUploader uploader = new TelemetryUploader(server, CHANNELS, 1024, 50, 200,
+				TelemetryUploader.DROP_OLDEST);
+		uploader.start();
+		long start = System.nanoTime();
+		offer(uploader, 0, 7, 0);
+		server.awaitSamples(7, 5000);
+		long ms = (System.nanoTime() - start) / 1000000L;
+		stop(uploader);
+		boolean ok = server.inOrderFrom(0) && server.received == 7 && server.batches == 1
+				&& ms >= 190 && ms < 1000;
+		return report("batch by age (200 ms)", uploader, server, ms, ok);
+	}
+
+	// a queue of 100 behind a server taking 20 ms per batch, fed 2000 samples
+	// at 1 per 0.1 ms: most are shed, and nothing is sent twice or reordered
+	static int shedding(int policy, String name) throws Exception {
+		StandInServer server = new StandInServer(1000);
+		server.latencyMs = 20;
+		TelemetryUploader uploader = new TelemetryUploader(server, CHANNELS, 100, 50, 100, policy);
+		uploader.start();
+		long start = System.nanoTime();
+		offer(uploader, 0, 2000, 100000);
+		Thread.sleep(500); // let the queue drain
+		long ms = (System.nanoTime() - start) / 1000000L;
+		stop(uploader);
+		boolean ok = server.increasing() && server.duplicates == 0
+				&& uploader.getDroppedSamples() > 0
+				&& server.received + uploader.getDroppedSamples() + uploader.getQueueDepth() == 2000
+				&& (policy == TelemetryUploader.DROP_NEWEST ? server.first == 0 : server.last == 1999);
+		return report(name, uploader, server, ms, ok);
+	}
+
+	// the server fails for a second while samples keep coming; afterwards the
+	// backlog goes out in drain batches and every sample arrives once, in order
+	static int outage(File dir) throws Exception {
+		delete(dir);
+		StandInServer server = new StandInServer(4000);
+		server.failing = true;
+		TelemetryUploader uploader = new TelemetryUploader(server,
+				new SampleOutbox(dir, CHANNELS, 256, 8), 20, 50, 400);
+		uploader.start();
+		long start = System.nanoTime();
+		offer(uploader, 0, 1000, 1000000); // 1 s at 1 kHz, all into the outage
+		server.failing = false;
+		offer(uploader, 1000, 1000, 1000000);
+		server.awaitSamples(2000, 10000);
+		long ms = (System.nanoTime() - start) / 1000000L;
+		stop(uploader);
+		boolean ok = server.inOrderFrom(0) && server.received == 2000 && server.rejected > 0
+				&& server.maxBatch == 400 && uploader.getDroppedSamples() == 0;
+		return report("outage, then drain (400)", uploader, server, ms, ok);
+	}
+
+	// an uploader stops with 300 samples unacknowledged; a new one on the
+	// reopened outbox sends exactly those, then the new ones
+	static int reopen(File dir) throws Exception {
+		delete(dir);
+		StandInServer down = new StandInServer(1000);
+		down.failing = true;
+		TelemetryUploader first = new TelemetryUploader(down, new SampleOutbox(dir, CHANNELS, 128, 8), 50, 50, 200);
+		first.start();
+		offer(first, 0, 300, 0);
+		Thread.sleep(200);
+		stop(first);
+
+		StandInServer server = new StandInServer(1000);
+		SampleOutbox reopened = new SampleOutbox(dir, CHANNELS, 128, 8);
+		long backlog = reopened.backlog();
+		TelemetryUploader second = new TelemetryUploader(server, reopened, 50, 50, 200);
+		long start = System.nanoTime();
+		second.start();
+		offer(second, 300, 100, 0);
+		server.awaitSamples(400, 5000);
+		long ms = (System.nanoTime() - start) / 1000000L;
+		stop(second);
+		boolean ok = backlog == 300 && server.inOrderFrom(0) && server.received == 400;
+		return report("reopen with 300 unacked", second, server, ms, ok);
+	}
+
+	private static void offer(TelemetryUploader uploader, int from, int n, long intervalNanos)
+			throws InterruptedException {
+		int[] sample = new int[CHANNELS];
+		long next = System.nanoTime();
+		for (int i = from; i < from + n; i++) {
+			sample[0] = i;
+			for (int channel = 1; channel < CHANNELS; channel++)
+				sample[channel] = 512;
+			uploader.offer(System.currentTimeMillis(), sample);
+			if (intervalNanos > 0) {
+				next += intervalNanos;
+				long wait = next - System.nanoTime();
+				if (wait > 0)
+					Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+			}
+		}
+	}
+
+	private static void stop(TelemetryUploader uploader) throws InterruptedException {
+		uploader.shutdown();
+		uploader.join(5000);
+	}
+
+	private static void delete(File dir) throws IOException {
+		File[] files = dir.listFiles();
+		if (files != null)
+			for (File f : files)
+				if (!f.delete())
+					throw new IOException("cannot delete " + f);
+	}
+
+	private static int report(String name, TelemetryUploader uploader, StandInServer server, long ms, boolean ok) {
+		System.out.println(String.format(Locale.US, "%-28s %8d %8d %8d %8d %8.1f %8d %8d  %s",
+				name, uploader.getOfferedSamples(), server.received, uploader.getDroppedSamples(),
+				server.batches, server.batches == 0 ? 0.0 : (double) server.received / server.batches,
+				server.maxBatch, ms, ok ? "ok" : "FAILED " + server));
+		return ok ? 0 : 1;
+	}
+
+	/**
+	 * Stands in for the upload endpoint: accepts or rejects whole batches,
+	 * optionally after a delay, and keeps the sample numbers it accepted.
+	 */
+	static final class StandInServer implements BatchSender {
+
+		volatile boolean failing = false;
+		volatile long latencyMs = 0;
+
+		// written by the uploader thread, read after it has been joined or under this
+		private final int[] numbers;
+		int received = 0;
+		int batches = 0;
+		int rejected = 0;
+		int maxBatch = 0;
+		int duplicates = 0;
+		int first = -1;
+		int last = -1;
+
+		StandInServer(int capacity) {
+			numbers = new int[capacity];
+		}
+
+		@Override
+		public void send(SampleBatch batch) throws IOException {
+			if (latencyMs > 0) {
+				try {
+					Thread.sleep(latencyMs);
+				} catch (InterruptedException e) {
+					throw new IOException("interrupted");
+				}
+			}
+			synchronized (this) {
+				if (failing) {
+					rejected++;
+					throw new IOException("stand-in server is down");
+				}
+				for (int i = 0; i < batch.size(); i++) {
+					int number = batch.getValue(i, 0);
+					if (number <= last)
+						duplicates++;
+					if (first < 0)
+						first = number;
+					last = number;
+					if (received < numbers.length)
+						numbers[received] = number;
+					received++;
+				}
+				batches++;
+				maxBatch = Math.max(maxBatch, batch.size());
+				notifyAll();
+			}
+		}
+
+		synchronized void awaitSamples(int n, long timeoutMs) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + timeoutMs;
+			while (received < n) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0)
+					return;
+				wait(remaining);
+			}
+		}
+
+		// every number from start on, each once
+		synchronized boolean inOrderFrom(int start) {
+			for (int i = 0; i < Math.min(received, numbers.length); i++)
+				if (numbers[i] != start + i)
+					return false;
+			return duplicates == 0;
+		}
+
+		synchronized boolean increasing() {
+			for (int i = 1; i < Math.min(received, numbers.length); i++)
+				if (numbers[i] <= numbers[i - 1])
+					return false;
+			return true;
+		}
+
+		@Override
+		public synchronized String toString() {
+			return "received " + received + " in " + batches + " batches, " + rejected + " rejected, "
+					+ duplicates + " duplicates, numbers " + first + ".." + last;
+		}
+	}
+}
@@ -1,11 +1,21 @@
 package com.mantis.tinyfittings;
 
-import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
-
 import com.mantis.tinyfittings.bluetooth.BTActivity;
 import com.mantis.tinyfittings.arduino.Arduino;
+import com.mantis.tinyfittings.arduino.Arduino_v1;
+import com.mantis.tinyfittings.arduino.ScanFrame;
+import com.mantis.tinyfittings.arduino.ScanPublisher;
+import com.mantis.tinyfittings.filter.DeadbandFilter;
+import com.mantis.tinyfittings.filter.FilterChain;
+import com.mantis.tinyfittings.filter.MedianFilter;
+import com.mantis.tinyfittings.flow.Subscriber;
+import com.mantis.tinyfittings.flow.Subscription;
+import com.mantis.tinyfittings.telemetry.HttpBatchSender;
+import com.mantis.tinyfittings.telemetry.SampleOutbox;
+import com.mantis.tinyfittings.telemetry.TelemetryUploader;
+
+import java.io.File;
+import java.io.IOException;
 
 import android.net.Uri;
 import android.os.Bundle;
@@ -18,34 +28,29 @@ import android.widget.Button;
 import android.widget.TextView;
 import android.view.View.OnClickListener;
 
-import org.apache.http.HttpResponse;
-import org.apache.http.NameValuePair;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.message.BasicNameValuePair;
-
 public class TinyFittingsOnFirmata extends BTActivity implements OnClickListener{
 
 	private static final String TAG = "TinyFittingsOnFirmata";
 	private static final String fittingId = "1";
 	private static final String TINYFITTINGS_URL = "http://artiswrong.com/tinyFittings/live.html";
+	private static final String UPLOAD_URL = "http://www.artiswrong.com/tinyFittings/index.php";
+	// per pin: a median against spikes, then a deadband so that a resting
+	// sensor's jitter is neither shown nor uploaded
+	private static final int MEDIAN_WINDOW = 3;
+	private static final int DEADBAND = 4;
+	// scans the upload subscription may fall behind before the oldest are lost
+	private static final int UPLOAD_QUEUE_FRAMES = 256;
+	private static final long UI_REFRESH_MS = 100;
 	
-	private HttpClient httpclient = new DefaultHttpClient();
-	private HttpPost httppost = new HttpPost("http://www.artiswrong.com/tinyFittings/index.php");
-	private HttpResponse httpresponse;
-	
-	private List<NameValuePair> nameValuePairs = new ArrayList<NameValuePair>(2);
+	// the upload subscriber holds its own reference, this one is for stopSampling()
+	private volatile TelemetryUploader uploader;
+	// the board the publisher serves, which arduino may no longer be
+	private Arduino sampledArduino;
+	private ScanPublisher publisher;
 	
-	private boolean shouldContinue = true;
-	
-	protected static final int NUM_OF_ANALOG_CHANNELS = 6;
 	Button viewLiveData, initArduino;
 	TextView analogReading0, analogReading1, analogReading2, analogReading3, analogReading4, analogReading5;
 	private boolean ledPin = false;
-	private String[] anValues = {"","","","","",""};
 	
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
@@ -70,14 +75,7 @@ public class TinyFittingsOnFirmata extends BTActivity implements OnClickListener
 	public
 	void onStop() {
 		super.onStop();
-		shouldContinue = false;
-		try {
-			readAnalogValuesThread.join();
-		} catch (InterruptedException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		//readAnalogValuesThread.stop();
+		stopSampling();
 	}
 	
 	@Override
@@ -94,33 +92,63 @@ public class TinyFittingsOnFirmata extends BTActivity implements OnClickListener
 	
 	private void setupArduino() {
 		Log.d(TAG, "Setting up Arduino..");
+		Arduino board = arduino;
+		if(board == null) {
+			Log.d(TAG, "Arduino not connected yet");
+			return;
+		}
+		if(board == sampledArduino) {
+			Log.d(TAG, "Arduino already set up");
+			return;
+		}
+		// another board was picked since; its uploader must let go of the
+		// outbox files before a new one opens them
+		stopSampling();
 		
-		arduino.pinMode(13, Arduino.OUTPUT);
-		arduino.reportState();
-		readAnalogValuesThread.start();
+		board.pinMode(13, Arduino.OUTPUT);
+		if(board instanceof Arduino_v1) {
+			for(int pin = 0; pin < Arduino.REPORTED_ANALOG_PINS; pin++)
+				((Arduino_v1) board).setFilter(pin,
+						new FilterChain(new MedianFilter(MEDIAN_WINDOW), new DeadbandFilter(DEADBAND)));
+		}
+		board.reportState();
+		uploader = createUploader();
+		uploader.start();
+		// each consumer on a delivery thread of its own: the uploader takes
+		// every scan, the display only the latest few times a second
+		publisher = new ScanPublisher(board);
+		publisher.subscribe(uploadSubscriber(uploader), ScanPublisher.OVERFLOW_BUFFER, UPLOAD_QUEUE_FRAMES);
+		publisher.subscribe(displaySubscriber(), ScanPublisher.OVERFLOW_LATEST, 1);
+		sampledArduino = board;
 	}
-	
-	void postAnalogValues(String[] data) throws ClientProtocolException {
-		try{
-			String jsonString = "{\"fittingId\": " + fittingId + ",";
-			for(int i = 0; i < 6; i++) {
-				jsonString += "\"channel-" + i + "\":" + data[i];
-				if(i < 5)
-					jsonString += ",";
-			}
-			jsonString += "}";
-			
-			nameValuePairs.add(new BasicNameValuePair("sample", jsonString));
-	
-			httppost.setEntity(new UrlEncodedFormEntity(nameValuePairs));
-			httpresponse = httpclient.execute(httppost);
-			Log.d(TAG, "response = " + httpresponse.getStatusLine().toString());
-			
-			httpresponse.getEntity().consumeContent();
-			nameValuePairs.clear();
+
+	private void stopSampling() {
+		if(publisher != null) {
+			publisher.close();
+			publisher = null;
+		}
+		sampledArduino = null;
+		TelemetryUploader previous = uploader;
+		if(previous == null)
+			return;
+		previous.shutdown();
+		try {
+			previous.join(); // closes the outbox on its way out
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
-		catch(IOException e) {
-			Log.d(TAG, "some unexplained shit happened...");
+		uploader = null;
+	}
+
+	// samples go through an outbox on local storage, so an outage doesn't lose them
+	private TelemetryUploader createUploader() {
+		HttpBatchSender sender = new HttpBatchSender(UPLOAD_URL, fittingId);
+		try {
+			SampleOutbox outbox = new SampleOutbox(new File(getFilesDir(), "outbox"), Arduino.REPORTED_ANALOG_PINS);
+			return new TelemetryUploader(sender, outbox);
+		} catch (IOException e) {
+			Log.e(TAG, "cannot open outbox, samples are kept in memory only", e);
+			return new TelemetryUploader(sender, Arduino.REPORTED_ANALOG_PINS);
 		}
 	}
 
@@ -156,34 +184,81 @@ public class TinyFittingsOnFirmata extends BTActivity implements OnClickListener
 		analogReading5.setText(data[5]);
 	}
 	
-	Thread readAnalogValuesThread = new Thread() {
-		@Override public void run() {
-			while(shouldContinue) {
-				for(int i = 0; i < NUM_OF_ANALOG_CHANNELS; i++) {
-					//Log.d(TAG, "analog channel " + i + " = " + Integer.toString(arduino.analogRead(i)));
-					anValues[i] = Integer.toString(arduino.analogRead(i));
-				}
-				runOnUiThread(new Runnable() {
+	// every scan in which a pin moved past its deadband is uploaded, not just
+	// the ones the display happens to see; the frame holds every pin,
+	// including those whose filter held back the reading
+	private Subscriber<ScanFrame> uploadSubscriber(final TelemetryUploader uploader) {
+		return new Subscriber<ScanFrame>() {
+			private final int[] scan = new int[Arduino.REPORTED_ANALOG_PINS];
+
+			@Override
+			public void onSubscribe(Subscription subscription) {
+				subscription.request(Long.MAX_VALUE);
+			}
+
+			@Override
+			public void onNext(ScanFrame frame) {
+				if(frame.getAnalogCount() < Arduino.REPORTED_ANALOG_PINS || !frame.isChanged())
+					return;
+				for(int i = 0; i < Arduino.REPORTED_ANALOG_PINS; i++)
+					scan[i] = frame.analogRead(i);
+				// stamped with when the scan arrived, not when it got here
+				long ageMs = (System.nanoTime() - frame.getTimestamp()) / 1000000L;
+				// queued for the uploader thread, never waits for the network
+				uploader.offer(System.currentTimeMillis() - ageMs, scan);
+			}
+
+			@Override
+			public void onError(Throwable error) {
+				Log.e(TAG, "upload subscription failed", error);
+			}
+
+			@Override
+			public void onComplete() {
+			}
+		};
+	}
+
+	// all channels shown come from the same scan
+	private Subscriber<ScanFrame> displaySubscriber() {
+		return new Subscriber<ScanFrame>() {
+			private Subscription subscription;
 
+			@Override
+			public void onSubscribe(Subscription subscription) {
+				this.subscription = subscription;
+				subscription.request(1);
+			}
+
+			@Override
+			public void onNext(ScanFrame frame) {
+				final String[] values = new String[Arduino.REPORTED_ANALOG_PINS];
+				for(int i = 0; i < values.length; i++)
+					values[i] = i < frame.getAnalogCount() ? Integer.toString(frame.analogRead(i)) : "";
+				runOnUiThread(new Runnable() {
 					@Override
 					public void run() {
-						setValuesOnUI(anValues);
+						setValuesOnUI(values);
 					}
 				});
-	
+				// this is the subscription's own thread, waiting here holds up no one
 				try {
-					postAnalogValues(anValues);
-				} catch (ClientProtocolException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
-				try {
-					Thread.sleep(100);
+					Thread.sleep(UI_REFRESH_MS);
 				} catch (InterruptedException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
+					Thread.currentThread().interrupt();
+					return;
 				}
+				subscription.request(1);
 			}
-		}
-	};
+
+			@Override
+			public void onError(Throwable error) {
+				Log.e(TAG, "display subscription failed", error);
+			}
+
+			@Override
+			public void onComplete() {
+			}
+		};
+	}
 }
@@ -0,0 +1,113 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.arduino;
+
+/**
+ * Packing of the ANALOG_FRAME SysEx message of the Firmata 2.1 firmware,
+ * which carries one whole analog scan instead of an ANALOG_MESSAGE per pin:
+ *
+ * 0  START_SYSEX (0xF0)
+ * 1  ANALOG_FRAME (0x01)
+ * 2  mask of the pins in the frame, bit 0 = pin 0 (pins 0-6)
+ * 3  10 bit readings of the pins in the mask, lowest pin first, as a bit
+ *    ...stream cut into 7 bit bytes, LSB first
+ * n  END_SYSEX (0xF7)
+ *
+ * Six pins take 13 bytes instead of 18.
+ */
+public final class AnalogFrameCodec {
+
+	/**
+	 * SysEx command of the frame; sent by the host with one data byte (1 or
+	 * 0) it switches packed frames on or off.
+	 */
+	public static final int ANALOG_FRAME = 0x01;
+
+	/**
+	 * Pins a frame can carry, limited by its one byte mask.
+	 */
+	public static final int MAX_PINS = 7;
+
+	private static final int BITS = 10;
+
+	private AnalogFrameCodec() {
+	}
+
+	/**
+	 * @return the number of data bytes after the command for the given mask
+	 */
+	public static int packedLength(int mask) {
+		return 1 + (Integer.bitCount(mask & 0x7F) * BITS + 6) / 7;
+	}
+
+	/**
+	 * Writes the mask and the packed readings of the pins in it.
+	 *
+	 * @param values readings indexed by pin
+	 * @return the number of bytes written
+	 */
+	public static int encode(int mask, int[] values, byte[] out, int offset) {
+		int start = offset;
+		mask &= 0x7F;
+		out[offset++] = (byte) mask;
+		int bits = 0;
+		int bitCount = 0;
+		for (int pin = 0; pin < MAX_PINS; pin++) {
+			if ((mask & (1 << pin)) == 0)
+				continue;
+			bits |= (values[pin] & 0x3FF) << bitCount;
+			bitCount += BITS;
+			while (bitCount >= 7) {
+				out[offset++] = (byte) (bits & 0x7F);
+				bits >>>= 7;
+				bitCount -= 7;
+			}
+		}
+		if (bitCount > 0)
+			out[offset++] = (byte) bits;
+		return offset - start;
+	}
+
+	/**
+	 * Unpacks the data bytes of a frame into values, indexed by pin.
+	 *
+	 * @return the mask of the pins read, or -1 if the frame is too short
+	 */
+	public static int decode(byte[] data, int offset, int length, int[] values) {
+		if (length < 1)
+			return -1;
+		int mask = data[offset] & 0x7F;
+		if (length < packedLength(mask))
+			return -1;
+		int next = offset + 1;
+		int bits = 0;
+		int bitCount = 0;
+		for (int pin = 0; pin < MAX_PINS; pin++) {
+			if ((mask & (1 << pin)) == 0)
+				continue;
+			while (bitCount < BITS) {
+				bits |= (data[next++] & 0x7F) << bitCount;
+				bitCount += 7;
+			}
+			values[pin] = bits & 0x3FF;
+			bits >>>= BITS;
+			bitCount -= BITS;
+		}
+		return mask;
+	}
+}
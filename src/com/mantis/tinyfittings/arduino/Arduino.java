@@ -67,11 +67,106 @@ public abstract class Arduino implements OnSerialEventListener{
 	 */
 	public static final int HIGH = 1;
 
+	/**
+	 * Number of analog pins, 0 to REPORTED_ANALOG_PINS - 1, that reportState()
+	 * asks the firmware to report.
+	 */
+	public static final int REPORTED_ANALOG_PINS = 6;
+
 	protected Serial serial;
 	
 	protected int majorVersion = 0;
 	protected int minorVersion = 0;
 	
+	private static final OnArduinoEventListener[] NO_LISTENERS = new OnArduinoEventListener[0];
+	private static final OnScanListener[] NO_SCAN_LISTENERS = new OnScanListener[0];
+
+	// copy-on-write, so firing an event takes no lock and allocates nothing
+	private volatile OnArduinoEventListener[] listeners = NO_LISTENERS;
+	private volatile OnScanListener[] scanListeners = NO_SCAN_LISTENERS;
+
+	/**
+	 * Registers a listener for every input message the firmware sends. The
+	 * polling getters keep working alongside.
+	 */
+	public synchronized void addOnArduinoEventListener(OnArduinoEventListener listener) {
+		OnArduinoEventListener[] current = listeners;
+		OnArduinoEventListener[] updated = new OnArduinoEventListener[current.length + 1];
+		System.arraycopy(current, 0, updated, 0, current.length);
+		updated[current.length] = listener;
+		listeners = updated;
+	}
+
+	public synchronized boolean removeOnArduinoEventListener(OnArduinoEventListener listener) {
+		OnArduinoEventListener[] current = listeners;
+		for(int i = 0; i < current.length; i++) {
+			if(current[i] == listener) {
+				OnArduinoEventListener[] updated = new OnArduinoEventListener[current.length - 1];
+				System.arraycopy(current, 0, updated, 0, i);
+				System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+				listeners = updated;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Registers a listener for every complete scan.
+	 */
+	public synchronized void addOnScanListener(OnScanListener listener) {
+		OnScanListener[] current = scanListeners;
+		OnScanListener[] updated = new OnScanListener[current.length + 1];
+		System.arraycopy(current, 0, updated, 0, current.length);
+		updated[current.length] = listener;
+		scanListeners = updated;
+	}
+	
+	public synchronized boolean removeOnScanListener(OnScanListener listener) {
+		OnScanListener[] current = scanListeners;
+		for(int i = 0; i < current.length; i++) {
+			if(current[i] == listener) {
+				OnScanListener[] updated = new OnScanListener[current.length - 1];
+				System.arraycopy(current, 0, updated, 0, i);
+				System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+				scanListeners = updated;
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * @return true if firing a scan event would reach anyone, so that the
+	 * frame need not be filled otherwise
+	 */
+	protected boolean hasScanListeners() {
+		return scanListeners.length > 0;
+	}
+	
+	protected void fireScanEvent(ScanFrame frame) {
+		OnScanListener[] current = scanListeners;
+		for(int i = 0; i < current.length; i++)
+			current[i].scanEvent(frame);
+	}
+	
+	protected void fireAnalogEvent(int pin, int value, long timestamp) {
+		OnArduinoEventListener[] current = listeners;
+		for(int i = 0; i < current.length; i++)
+			current[i].analogEvent(pin, value, timestamp);
+	}
+
+	protected void fireDigitalEvent(int port, int pins, long timestamp) {
+		OnArduinoEventListener[] current = listeners;
+		for(int i = 0; i < current.length; i++)
+			current[i].digitalEvent(port, pins, timestamp);
+	}
+
+	protected void fireVersionEvent(int majorVersion, int minorVersion, long timestamp) {
+		OnArduinoEventListener[] current = listeners;
+		for(int i = 0; i < current.length; i++)
+			current[i].versionEvent(majorVersion, minorVersion, timestamp);
+	}
 
 	@Override
 	public void serialEvent() {
@@ -85,12 +180,49 @@ public abstract class Arduino implements OnSerialEventListener{
 		this.serial.dispose();
 	}
 
+	/**
+	 * @return the protocol major version the firmware reported, 0 until it did
+	 */
+	public int getMajorVersion() {
+		return majorVersion;
+	}
+
+	public int getMinorVersion() {
+		return minorVersion;
+	}
+
 	public abstract void reportState();
 	public abstract int digitalRead(int pin);
 	public abstract int analogRead(int pin);
+	/**
+	 * Copies the latest complete scan into frame, without blocking the
+	 * decoder. All values in a frame come from the same firmware scan.
+	 *
+	 * @return false if no scan completed yet
+	 */
+	public abstract boolean readFrame(ScanFrame frame);
 	public abstract void pinMode(int pin, int mode);
 	public abstract void digitalWrite(int pin, int value);
 	public abstract void analogWrite(int pin, int value);
+	/**
+	 * Sets the digital pins whose bit is set in mask to the matching bit of
+	 * values (bit 0 is pin 0) with a single message.
+	 */
+	public abstract void writeDigitalPort(int mask, int values);
+	
+	/**
+	 * @return an empty transaction whose commit() sends its changes to this board
+	 */
+	public Transaction beginTransaction() {
+		return new Transaction(this);
+	}
+	
+	/**
+	 * Encodes and sends the changes of a transaction.
+	 *
+	 * @return the number of bytes sent
+	 */
+	protected abstract int commit(Transaction transaction);
 	
 	protected abstract void processInput();
 }
@@ -0,0 +1,93 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.arduino;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+import com.mantis.tinyfittings.serial.Serial;
+
+/**
+ * Picks the Arduino implementation matching the firmware on the board. Both
+ * firmwares answer REPORT_VERSION the same way, so the board is asked with
+ * an Arduino_v1 and the reported major version decides.
+ */
+public final class ArduinoSelector implements OnArduinoEventListener {
+
+	private static final String TAG = "ArduinoSelector";
+
+	// the request is repeated, the link may not be up when selection starts
+	private static final long RETRY_INTERVAL_MS = 500;
+
+	private final CountDownLatch answered = new CountDownLatch(1);
+	private volatile int majorVersion = 0;
+
+	private ArduinoSelector() {
+	}
+
+	/**
+	 * Asks the board for its protocol version and returns an Arduino for it.
+	 * Blocks until the board answered or the timeout passed; without an
+	 * answer the Firmata 1 implementation is returned.
+	 */
+	public static Arduino select(Serial serial, long timeoutMs) throws InterruptedException {
+		Arduino_v1 probe = new Arduino_v1(serial);
+		ArduinoSelector selector = new ArduinoSelector();
+		probe.addOnArduinoEventListener(selector);
+
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		boolean done = false;
+		while (!done) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0)
+				break;
+			probe.requestVersion();
+			done = selector.answered.await(Math.min(remaining, RETRY_INTERVAL_MS), TimeUnit.MILLISECONDS);
+		}
+		probe.removeOnArduinoEventListener(selector);
+
+		if (!done) {
+			Log.w(TAG, "no version report, assuming Firmata 1");
+			return probe;
+		}
+		Log.d(TAG, "firmware speaks Firmata " + probe.getMajorVersion() + "." + probe.getMinorVersion());
+		if (selector.majorVersion >= 2) {
+			Arduino_v2 arduino = new Arduino_v2(serial);
+			arduino.requestVersion();
+			arduino.requestFirmware();
+			return arduino;
+		}
+		return probe;
+	}
+
+	@Override
+	public void analogEvent(int pin, int value, long timestamp) {
+	}
+
+	@Override
+	public void digitalEvent(int port, int pins, long timestamp) {
+	}
+
+	@Override
+	public void versionEvent(int majorVersion, int minorVersion, long timestamp) {
+		this.majorVersion = majorVersion;
+		answered.countDown();
+	}
+}
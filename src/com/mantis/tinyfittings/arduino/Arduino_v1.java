@@ -21,6 +21,10 @@ package com.mantis.tinyfittings.arduino;
 
 import android.util.Log;
 
+import com.mantis.tinyfittings.bluetooth.PrioritizedWriter;
+import com.mantis.tinyfittings.filter.Filter;
+import com.mantis.tinyfittings.metrics.Gauge;
+import com.mantis.tinyfittings.metrics.MetricsRegistry;
 import com.mantis.tinyfittings.serial.Serial;
 
 /**
@@ -39,19 +43,69 @@ public class Arduino_v1 extends Arduino {
 	private final int REPORT_ANALOG_PIN      = 0xC0; // enable analog input by pin #
 	private final int SET_DIGITAL_PIN_MODE   = 0xF4; // set a digital pin to INPUT or OUTPUT 
 	private final int REPORT_VERSION         = 0xF9; // report firmware version
+	protected static final int START_SYSEX   = 0xF0; // start a MIDI SysEx message
+	protected static final int END_SYSEX     = 0xF7; // end a MIDI SysEx message
 
-	int inputData;
+	private final FirmataDecoder decoder;
+	private final byte[] chunk = new byte[1024];
+	private long receiveTime; // System.nanoTime() the decoded chunk was read at
 
-	int waitForData = 0;
-	int executeMultiByteCommand = 0;
-	int multiByteChannel = 0;
-	int[] storedInputData = new int[2];
+	// the scan being assembled, owned by the decoding thread
+	private final ScanFrameLock frames = new ScanFrameLock();
+	private final int[] scan = new int[ScanFrame.MAX_ANALOG_PINS];
+	private int scanDigitalPins = 0;
+	private int scanChangedPins = 0;
+	private int lastScanPin = -1;
+	private int highestScanPin = -1;
+	private boolean scanPending = false;
+	private final ScanFrame scanEventFrame = new ScanFrame();
 
-	int[] digitalOutputData = { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 };
+	// per analog pin, copy-on-write so the decoding thread takes no lock
+	private volatile Filter[] filters = new Filter[ScanFrame.MAX_ANALOG_PINS];
+
+	// commands travel as whole messages, pin modes and digital levels ahead of PWM
+	protected static final int CONTROL = PrioritizedWriter.PRIORITY_CONTROL;
+	protected static final int BULK = PrioritizedWriter.PRIORITY_BULK;
+	// pins whose PWM value may still wait in the BULK class, guarded by outputLock
+	private int pwmQueued = 0;
+
+	// digital output levels, bit 0 is pin 0, and the command buffer, guarded by outputLock
+	private final Object outputLock = new Object();
+	private final byte[] command = new byte[3];
+	private int digitalOutputBits = 0;
+	private boolean digitalOutputSent = false;
 	int[] digitalInputData  = { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 };
 	int[] analogInputData = { 0, 0, 0, 0, 0, 0, 0, 0, 0 };
 
 	public Arduino_v1(Serial serial) {
+		this.decoder = new FirmataDecoder(new OnFirmataMessageListener() {
+			@Override
+			public void digitalMessage(int port, int pins0_6, int pins7_13) {
+				setDigitalInputs(pins0_6, pins7_13);
+				scanDigitalPins = pins0_6 | (pins7_13 << 7);
+				fireDigitalEvent(port, pins0_6 | (pins7_13 << 7), receiveTime);
+			}
+
+			@Override
+			public void analogMessage(int pin, int value) {
+				analogReceived(pin, value);
+			}
+
+			@Override
+			public void versionMessage(int majorVersion, int minorVersion) {
+				setVersion(majorVersion, minorVersion);
+				fireVersionEvent(majorVersion, minorVersion, receiveTime);
+			}
+
+			@Override
+			public void sysexMessage(int command, byte[] data, int offset, int length) {
+				processSysex(command, data, offset, length);
+			}
+
+			@Override
+			public void endOfChunk() {
+			}
+		});
 		this.serial = serial;
 		serial.registerArduino(this);
 		reportState();
@@ -59,10 +113,12 @@ public class Arduino_v1 extends Arduino {
 
 	@Override
 	public void reportState(){
-		for (int i = 0; i < 6; i++) {
-			serial.write(REPORT_ANALOG_PIN | i);
-			serial.write(1);
+		byte[] report = new byte[2 * REPORTED_ANALOG_PINS];
+		for (int i = 0; i < REPORTED_ANALOG_PINS; i++) {
+			report[2 * i] = (byte) (REPORT_ANALOG_PIN | i);
+			report[2 * i + 1] = 1;
 		}
+		serial.write(report, 0, report.length, CONTROL);
 //		new Thread() {
 //			public void run(){
 //				try {
@@ -78,6 +134,35 @@ public class Arduino_v1 extends Arduino {
 //		}.start();
 	}
 
+	/**
+	 * Asks the firmware to report its protocol version; the answer updates
+	 * getMajorVersion() and fires a version event.
+	 */
+	public void requestVersion() {
+		synchronized (outputLock) {
+			send(CONTROL, 1, REPORT_VERSION, 0, 0);
+		}
+	}
+
+	/**
+	 * Registers the decoder's damage counters as gauges named prefix_resyncs
+	 * and prefix_stray_bytes.
+	 */
+	public void instrument(MetricsRegistry registry, String prefix) {
+		registry.gauge(prefix + "_resyncs", new Gauge() {
+			@Override
+			public long value() {
+				return decoder.getResyncs();
+			}
+		});
+		registry.gauge(prefix + "_stray_bytes", new Gauge() {
+			@Override
+			public long value() {
+				return decoder.getStrayBytes();
+			}
+		});
+	}
+
 	/**
 	 * Returns the last known value read from the digital pin: HIGH or LOW.
 	 *
@@ -100,6 +185,11 @@ public class Arduino_v1 extends Arduino {
 		return analogInputData[pin];
 	}
 
+	@Override
+	public boolean readFrame(ScanFrame frame) {
+		return frames.read(frame);
+	}
+
 	/**
 	 * Set a digital pin to input or output mode.
 	 *
@@ -108,9 +198,9 @@ public class Arduino_v1 extends Arduino {
 	 */
 	@Override
 	public void pinMode(int pin, int mode) {
-		serial.write(SET_DIGITAL_PIN_MODE);
-		serial.write(pin);
-		serial.write(mode);
+		synchronized (outputLock) {
+			send(priorityFor(1 << pin), 3, SET_DIGITAL_PIN_MODE, pin, mode);
+		}
 	}
 
 	/**
@@ -123,21 +213,23 @@ public class Arduino_v1 extends Arduino {
 	 */
 	@Override
 	public void digitalWrite(int pin, int value) {
-		int transmitByte;
-		digitalOutputData[pin] = value;
-		serial.write(DIGITAL_MESSAGE);
-
-		transmitByte = 0;
-		for (int i = 0; i <= 6; i++)
-			if (digitalOutputData[i] != 0)
-				transmitByte |= 1 << i;
-		serial.write(transmitByte);
+		writeDigitalPort(1 << pin, value != LOW ? 1 << pin : 0);
+	}
 
-		transmitByte = 0;
-		for (int i = 7; i <= 13; i++)
-			if (digitalOutputData[i] != 0)
-				transmitByte |= (1 << (i - 7));
-		serial.write(transmitByte);
+	/**
+	 * Write several digital pins with one message. Pins outside mask keep
+	 * the level they were last written with.
+	 *
+	 * @param mask the pins to write, bit 0 being pin 0
+	 * @param values the levels for those pins, a set bit is Arduino.HIGH
+	 */
+	@Override
+	public void writeDigitalPort(int mask, int values) {
+		synchronized (outputLock) {
+			digitalOutputBits = (digitalOutputBits & ~mask) | (values & mask);
+			digitalOutputSent = true;
+			send(priorityFor(mask), 3, DIGITAL_MESSAGE, digitalOutputBits & 0x7F, (digitalOutputBits >> 7) & 0x7F);
+		}
 	}
 
 	/**
@@ -150,9 +242,76 @@ public class Arduino_v1 extends Arduino {
 	 */
 	@Override
 	public void analogWrite(int pin, int value) {
-		serial.write(ANALOG_MESSAGE | (pin & 0x0F));
-		serial.write(value & 0x7F);
-		serial.write(value >> 7);
+		synchronized (outputLock) {
+			send(BULK, 3, ANALOG_MESSAGE | (pin & 0x0F), value & 0x7F, value >> 7);
+			pwmQueued |= 1 << (pin & 0x0F);
+		}
+	}
+
+	// CONTROL, unless the message is for a pin whose PWM value may still be
+	// queued as BULK: the firmware switches a pin to PWM when the value
+	// arrives, so a mode or level overtaking it would be undone. Such a
+	// message queues behind the value instead. Called with outputLock held.
+	private int priorityFor(int pins) {
+		if ((pwmQueued & pins) == 0)
+			return CONTROL;
+		if (serial.pending(BULK) == 0) {
+			pwmQueued = 0; // everything queued as BULK has left
+			return CONTROL;
+		}
+		return BULK;
+	}
+
+	// writes a message of up to three bytes with one call, so that it stays
+	// whole in the writer's queue; called with outputLock held
+	private void send(int priority, int length, int b0, int b1, int b2) {
+		command[0] = (byte) b0;
+		command[1] = (byte) b1;
+		command[2] = (byte) b2;
+		serial.write(command, 0, length, priority);
+	}
+
+	@Override
+	protected int commit(Transaction t) {
+		synchronized (outputLock) {
+			byte[] b = t.buffer;
+			int n = 0;
+			for (int pin = 0; pin < Transaction.DIGITAL_PINS; pin++) {
+				if ((t.modeMask & (1 << pin)) == 0)
+					continue;
+				b[n++] = (byte) SET_DIGITAL_PIN_MODE;
+				b[n++] = (byte) pin;
+				b[n++] = (byte) t.modes[pin];
+			}
+			if (t.digitalMask != 0) {
+				int bits = (digitalOutputBits & ~t.digitalMask) | t.digitalValues;
+				if (bits != digitalOutputBits || !digitalOutputSent) {
+					b[n++] = (byte) DIGITAL_MESSAGE;
+					b[n++] = (byte) (bits & 0x7F);
+					b[n++] = (byte) ((bits >> 7) & 0x7F);
+					digitalOutputBits = bits;
+					digitalOutputSent = true;
+				}
+			}
+			int control = n;
+			for (int pin = 0; pin < Transaction.PWM_PINS; pin++) {
+				if ((t.pwmMask & (1 << pin)) == 0)
+					continue;
+				b[n++] = (byte) (ANALOG_MESSAGE | pin);
+				b[n++] = (byte) (t.pwm[pin] & 0x7F);
+				b[n++] = (byte) ((t.pwm[pin] >> 7) & 0x7F);
+			}
+			if (control > 0 && priorityFor(t.modeMask | t.digitalMask) == BULK)
+				control = 0; // behind queued PWM of its pins, all of it goes as BULK
+			if (control > 0)
+				serial.write(b, 0, control, CONTROL);
+			if (n > control)
+				serial.write(b, control, n - control, BULK);
+			pwmQueued |= t.pwmMask;
+			if (n > 0)
+				serial.flush();
+			return n;
+		}
 	}
 
 	private void setDigitalInputs(int inputData0, int inputData1) {
@@ -164,55 +323,112 @@ public class Arduino_v1 extends Arduino {
 		}
 	}
 
-	private void setAnalogInput(int pin, int inputData0, int inputData1) {
-		//System.out.println("analog pin " + pin + " is " + (inputData1 * 128 + inputData0));
-		analogInputData[pin] = (inputData1 * 128 + inputData0);
+	/**
+	 * Records an analog reading and passes it on to the scan frame and the
+	 * listeners, in the order the firmware reported the pins.
+	 */
+	protected void analogReceived(int pin, int value) {
+		Filter filter = pin < ScanFrame.MAX_ANALOG_PINS ? filters[pin] : null;
+		if (filter != null) {
+			value = filter.apply(value);
+			if (value == Filter.NONE) {
+				// the scan keeps the pin's last filtered value
+				addToScan(pin, scan[pin], false);
+				return;
+			}
+		}
+		setAnalogInput(pin, value);
+		addToScan(pin, value, true);
+		fireAnalogEvent(pin, value, receiveTime);
+	}
+
+	/**
+	 * Puts a filter, usually a {@link com.mantis.tinyfittings.filter.FilterChain},
+	 * between the decoder and everything that reads the analog pin:
+	 * analogRead(), scan frames and analog events. A reading the filter
+	 * reports as Filter.NONE fires no event, and the scan carries the last
+	 * value the filter passed on, with the pin left out of
+	 * ScanFrame.getChangedPins(). The filter runs on the decoding thread and
+	 * must not be shared between pins.
+	 *
+	 * @param filter the filter, or null to pass the raw readings again
+	 */
+	public synchronized void setFilter(int pin, Filter filter) {
+		if (pin < 0 || pin >= ScanFrame.MAX_ANALOG_PINS)
+			throw new IllegalArgumentException("no such analog pin: " + pin);
+		Filter[] updated = filters.clone();
+		updated[pin] = filter;
+		filters = updated;
+	}
+
+	private void setAnalogInput(int pin, int value) {
+		//System.out.println("analog pin " + pin + " is " + value);
+		if (pin < analogInputData.length)
+			analogInputData[pin] = value;
+	}
+
+	// The firmware reports the analog pins in ascending order, so a pin that
+	// is not above the previous one starts a new scan. Once the highest pin
+	// of a scan is known the frame is published as soon as it arrives,
+	// instead of waiting for the next scan to begin.
+	private void addToScan(int pin, int value, boolean changed) {
+		if (pin >= ScanFrame.MAX_ANALOG_PINS)
+			return;
+		if (pin <= lastScanPin) {
+			highestScanPin = lastScanPin;
+			if (scanPending)
+				publishScan(lastScanPin + 1);
+		}
+		scan[pin] = value;
+		if (changed)
+			scanChangedPins |= 1 << pin;
+		scanPending = true;
+		lastScanPin = pin;
+		if (pin == highestScanPin)
+			publishScan(pin + 1);
+	}
+
+	private void publishScan(int count) {
+		frames.publish(scan, count, scanDigitalPins, scanChangedPins, receiveTime);
+		scanChangedPins = 0;
+		scanPending = false;
+		// the decoding thread is the only writer, so this read never retries
+		if (hasScanListeners() && frames.read(scanEventFrame))
+			fireScanEvent(scanEventFrame);
 	}
 
-	private void setVersion(int inputData0, int inputData1) {
-		//System.out.println("version is " + inputData1 + "." + inputData0);
-		majorVersion = inputData1;
-		minorVersion = inputData0;
+	private void setVersion(int major, int minor) {
+		//System.out.println("version is " + major + "." + minor);
+		majorVersion = major;
+		minorVersion = minor;
 	}
 
 
+	/**
+	 * Called for every SysEx message received. The Firmata 1 message set has
+	 * none, so they are ignored here.
+	 */
+	protected void processSysex(int command, byte[] data, int offset, int length) {
+	}
+
+	/**
+	 * Drains the serial buffer in chunks and hands them to the decoder, instead
+	 * of pulling one byte per processInput() call.
+	 */
+	@Override
+	public void serialEvent() {
+		int n;
+		while ((n = serial.read(chunk, 0, chunk.length)) > 0) {
+			receiveTime = serial.getReceiveTime();
+			decoder.decode(chunk, 0, n);
+		}
+	}
+
 	protected void processInput() {
-		inputData = serial.read();
-		if (waitForData > 0 && inputData < 128) {
-			waitForData--;
-			storedInputData[waitForData] = inputData;
-
-			if((executeMultiByteCommand!=0) && (waitForData==0)) {
-				//we got everything
-				switch(executeMultiByteCommand) {
-				case DIGITAL_MESSAGE:
-					setDigitalInputs(storedInputData[1], storedInputData[0]);
-					break;
-				case ANALOG_MESSAGE:
-					setAnalogInput(multiByteChannel, storedInputData[1], storedInputData[0]);
-					break;
-				case REPORT_VERSION:
-					setVersion(storedInputData[1], storedInputData[0]);
-					break;
-				}
-			}
-		} else {
-			int command;
-			if(inputData < 0xF0) {
-				command = inputData & 0xF0;
-				multiByteChannel = inputData & 0x0F;
-			} else {
-				command = inputData;
-				// commands in the 0xF* range don't use channel data
-			}
-			switch (command) {
-			case DIGITAL_MESSAGE:
-			case ANALOG_MESSAGE:
-			case REPORT_VERSION:
-				waitForData = 2;
-				executeMultiByteCommand = command;
-				break;      
-			}
+		int inputData = serial.read();
+		if (inputData >= 0) {
+			receiveTime = serial.getReceiveTime();
+			decoder.decode(inputData);
 		}
 	}
 }
@@ -0,0 +1,184 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.arduino;
+
+import android.util.Log;
+
+import com.mantis.tinyfittings.serial.Serial;
+
+/**
+ * Talks to the Firmata 2 firmware (firmware/tinyFittings_Firmata_v2.pde). It
+ * understands everything Arduino_v1 does, plus SysEx: the host can set the
+ * analog sampling interval, ask for the firmware's name and version, and
+ * switch to packed analog frames (firmware 2.1), which carry a whole scan
+ * in one message, and ask for the UART rate of the link (firmware 2.2).
+ * {@link ArduinoSelector} picks this class when the board reports major
+ * version 2 or later.
+ */
+public class Arduino_v2 extends Arduino_v1 {
+
+	public static final String TAG = "Arduino_v2";
+
+	protected static final int LINK_PROFILE      = 0x02; // report the UART rate
+	protected static final int STRING_DATA       = 0x71; // a string message
+	protected static final int REPORT_FIRMWARE   = 0x79; // report name and version of the firmware
+	protected static final int SAMPLING_INTERVAL = 0x7A; // set the interval of the analog scan
+
+	/**
+	 * Scan interval the firmware starts with, in milliseconds.
+	 */
+	public static final int DEFAULT_SAMPLING_INTERVAL = 20;
+	/**
+	 * Longest interval SAMPLING_INTERVAL can carry (14 bits).
+	 */
+	public static final int MAX_SAMPLING_INTERVAL = 0x3FFF;
+
+	private volatile int samplingInterval = DEFAULT_SAMPLING_INTERVAL;
+	private volatile String firmwareName = null;
+
+	private final int[] frameValues = new int[AnalogFrameCodec.MAX_PINS];
+
+	private int linkBaudRate = -1; // guarded by this, -1 until reported
+
+	public Arduino_v2(Serial serial) {
+		super(serial);
+	}
+
+	/**
+	 * Sets how often the firmware reads and reports the analog pins. The scan
+	 * cannot run faster than its bytes fit through the serial link, so short
+	 * intervals only help at higher baud rates or with few pins reported.
+	 *
+	 * @param millis 1 to MAX_SAMPLING_INTERVAL
+	 */
+	public void setSamplingInterval(int millis) {
+		if (millis < 1 || millis > MAX_SAMPLING_INTERVAL)
+			throw new IllegalArgumentException("sampling interval out of range: " + millis);
+		sendSysex(new byte[] { (byte) START_SYSEX, (byte) SAMPLING_INTERVAL,
+				(byte) (millis & 0x7F), (byte) (millis >> 7), (byte) END_SYSEX });
+		samplingInterval = millis;
+	}
+
+	/**
+	 * @return the last interval set with setSamplingInterval()
+	 */
+	public int getSamplingInterval() {
+		return samplingInterval;
+	}
+
+	/**
+	 * Asks the firmware for its name and version; the answer is available from
+	 * getFirmwareName() once it arrived.
+	 */
+	public void requestFirmware() {
+		sendSysex(new byte[] { (byte) START_SYSEX, (byte) REPORT_FIRMWARE, (byte) END_SYSEX });
+	}
+
+	/**
+	 * Switches the firmware between one ANALOG_FRAME per scan and one
+	 * ANALOG_MESSAGE per pin. Listeners see the same per-pin events either
+	 * way. Firmware 2.0 ignores the request.
+	 */
+	public void setPackedFrames(boolean packed) {
+		sendSysex(new byte[] { (byte) START_SYSEX, (byte) AnalogFrameCodec.ANALOG_FRAME,
+				(byte) (packed ? 1 : 0), (byte) END_SYSEX });
+	}
+
+	/**
+	 * Asks the firmware for the UART rate of its link profile.
+	 */
+	public void requestLinkProfile() {
+		sendSysex(new byte[] { (byte) START_SYSEX, (byte) LINK_PROFILE, (byte) END_SYSEX });
+	}
+
+	/**
+	 * Waits for the answer to requestLinkProfile().
+	 *
+	 * @return the UART rate in baud, 0 for a link without a modeled rate, or
+	 * -1 if the firmware did not answer in time (before 2.2 it never does)
+	 */
+	public synchronized int awaitLinkProfile(long timeoutMs) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		long remaining = timeoutMs;
+		while (linkBaudRate < 0 && remaining > 0) {
+			wait(remaining);
+			remaining = deadline - System.currentTimeMillis();
+		}
+		return linkBaudRate;
+	}
+
+	/**
+	 * @return the reported UART rate in baud, -1 if not reported yet
+	 */
+	public synchronized int getLinkBaudRate() {
+		return linkBaudRate;
+	}
+
+	/**
+	 * @return the name of the sketch, null until the firmware reported it
+	 */
+	public String getFirmwareName() {
+		return firmwareName;
+	}
+
+	@Override
+	protected void processSysex(int command, byte[] data, int offset, int length) {
+		switch (command) {
+		case AnalogFrameCodec.ANALOG_FRAME:
+			int mask = AnalogFrameCodec.decode(data, offset, length, frameValues);
+			if (mask < 0) {
+				Log.w(TAG, "short analog frame dropped");
+				break;
+			}
+			for (int pin = 0; pin < AnalogFrameCodec.MAX_PINS; pin++)
+				if ((mask & (1 << pin)) != 0)
+					analogReceived(pin, frameValues[pin]);
+			break;
+		case LINK_PROFILE:
+			if (length >= 2) {
+				synchronized (this) {
+					linkBaudRate = ((data[offset] & 0x7F) | ((data[offset + 1] & 0x7F) << 7)) * 100;
+					notifyAll();
+				}
+			}
+			break;
+		case REPORT_FIRMWARE:
+			if (length >= 2) {
+				// version bytes, then the name as 7 bit pairs, LSB first
+				firmwareName = twoByteString(data, offset + 2, length - 2);
+				Log.d(TAG, "firmware " + firmwareName + " " + data[offset] + "." + data[offset + 1]);
+			}
+			break;
+		case STRING_DATA:
+			Log.d(TAG, "firmware says: " + twoByteString(data, offset, length));
+			break;
+		}
+	}
+
+	// configuration commands are rare, control priority keeps them ahead of PWM output
+	private void sendSysex(byte[] message) {
+		serial.write(message, 0, message.length, CONTROL);
+	}
+
+	private static String twoByteString(byte[] data, int offset, int length) {
+		StringBuilder s = new StringBuilder(length / 2);
+		for (int i = 0; i + 1 < length; i += 2)
+			s.append((char) (data[offset + i] | (data[offset + i + 1] << 7)));
+		return s.toString();
+	}
+}
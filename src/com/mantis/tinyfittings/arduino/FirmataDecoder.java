@@ -0,0 +1,195 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.arduino;
+
+/**
+ * Parser for the messages sent by the Firmata firmware. It works on whole
+ * chunks of received bytes and keeps its position in a message between calls,
+ * so a message may be split over any number of chunks.
+ *
+ * Status bytes are looked up in a table holding the number of data bytes the
+ * command carries; anything not listed there is skipped along with its data.
+ * SysEx messages (Firmata 2) are collected between START_SYSEX and END_SYSEX;
+ * any other status byte in between aborts them.
+ *
+ * Damage in the stream is counted: a status byte arriving before the data
+ * of the previous message was complete is a resync, a data byte outside of
+ * any message a stray byte.
+ */
+public class FirmataDecoder {
+
+	static final int DIGITAL_MESSAGE = 0x90; // send data for a digital pin
+	static final int ANALOG_MESSAGE  = 0xE0; // send data for an analog pin (or PWM)
+	static final int REPORT_VERSION  = 0xF9; // report firmware version
+	static final int START_SYSEX     = 0xF0; // start a MIDI SysEx message
+	static final int END_SYSEX       = 0xF7; // end a MIDI SysEx message
+
+	static final int MAX_SYSEX_LENGTH = 64; // longer messages are cut off
+
+	// number of data bytes following each status byte, 0 for ignored commands
+	private static final byte[] DATA_LENGTH = new byte[256];
+
+	static {
+		for(int channel = 0; channel < 16; channel++) {
+			DATA_LENGTH[DIGITAL_MESSAGE | channel] = 2;
+			DATA_LENGTH[ANALOG_MESSAGE | channel] = 2;
+		}
+		DATA_LENGTH[REPORT_VERSION] = 2;
+	}
+
+	private final OnFirmataMessageListener listener;
+
+	// parser state, survives between chunks
+	private int command = 0;
+	private int waitForData = 0;
+	private int firstData = 0;
+	private boolean inSysex = false;
+	private final byte[] sysex = new byte[MAX_SYSEX_LENGTH];
+	private int sysexLength = 0;
+
+	// written by the decoding thread only, once per chunk
+	private volatile long resyncs = 0;
+	private volatile long strayBytes = 0;
+
+	public FirmataDecoder(OnFirmataMessageListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Parses len bytes of b starting at off.
+	 */
+	public void decode(byte[] b, int off, int len) {
+		int command = this.command;
+		int waitForData = this.waitForData;
+		int firstData = this.firstData;
+		int resyncs = 0;
+		int strayBytes = 0;
+
+		for(int end = off + len; off < end; off++) {
+			int inputData = b[off] & 0xff;
+			if(inputData >= 0x80) {
+				if(waitForData > 0)
+					resyncs++;
+				if(inSysex || inputData == START_SYSEX)
+					sysexStatus(inputData);
+				waitForData = DATA_LENGTH[inputData];
+				command = inputData;
+				continue;
+			}
+			if(waitForData == 0) {
+				if(!inSysex)
+					strayBytes++;
+				else if(sysexLength < MAX_SYSEX_LENGTH)
+					sysex[sysexLength++] = (byte) inputData;
+				continue;
+			}
+			if(--waitForData > 0) {
+				firstData = inputData;
+				continue;
+			}
+			dispatch(command, firstData, inputData);
+		}
+
+		this.command = command;
+		this.waitForData = waitForData;
+		this.firstData = firstData;
+		if(resyncs != 0)
+			this.resyncs += resyncs;
+		if(strayBytes != 0)
+			this.strayBytes += strayBytes;
+		listener.endOfChunk();
+	}
+
+	/**
+	 * Parses a single byte, for callers that read byte by byte.
+	 */
+	public void decode(int inputData) {
+		inputData &= 0xff;
+		if(inputData >= 0x80) {
+			if(waitForData > 0)
+				resyncs++;
+			if(inSysex || inputData == START_SYSEX)
+				sysexStatus(inputData);
+			waitForData = DATA_LENGTH[inputData];
+			command = inputData;
+		}
+		else if(inSysex) {
+			if(sysexLength < MAX_SYSEX_LENGTH)
+				sysex[sysexLength++] = (byte) inputData;
+		}
+		else if(waitForData > 0) {
+			if(--waitForData > 0)
+				firstData = inputData;
+			else
+				dispatch(command, firstData, inputData);
+		}
+		else {
+			strayBytes++;
+		}
+	}
+
+	/**
+	 * @return messages cut off by the status byte of the next one
+	 */
+	public long getResyncs() {
+		return resyncs;
+	}
+
+	/**
+	 * @return data bytes that belonged to no message, including the data of
+	 * ignored commands
+	 */
+	public long getStrayBytes() {
+		return strayBytes;
+	}
+
+	/**
+	 * Forgets a partially received message.
+	 */
+	public void reset() {
+		command = 0;
+		waitForData = 0;
+		firstData = 0;
+		inSysex = false;
+		sysexLength = 0;
+	}
+
+	// START_SYSEX opens a message, END_SYSEX delivers it, anything else drops it
+	private void sysexStatus(int inputData) {
+		if(inSysex && inputData == END_SYSEX && sysexLength > 0)
+			listener.sysexMessage(sysex[0], sysex, 1, sysexLength - 1);
+		inSysex = inputData == START_SYSEX;
+		sysexLength = 0;
+	}
+
+	private void dispatch(int command, int data0, int data1) {
+		if(command >= 0xF0) {
+			// only REPORT_VERSION has data in this range
+			listener.versionMessage(data1, data0);
+			return;
+		}
+		switch(command & 0xF0) {
+		case DIGITAL_MESSAGE:
+			listener.digitalMessage(command & 0x0F, data0, data1);
+			break;
+		case ANALOG_MESSAGE:
+			listener.analogMessage(command & 0x0F, (data1 << 7) | data0);
+			break;
+		}
+	}
+}
@@ -0,0 +1,125 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.arduino;
+
+import android.util.Log;
+
+/**
+ * How the host drives the link to a Firmata 2 board: the UART rate of the
+ * firmware's link profile, whether scans travel as packed ANALOG_FRAMEs and
+ * the sampling interval that keeps the link below TARGET_UTILIZATION.
+ *
+ * negotiate() asks the board for its profile and applies the plan. Firmware
+ * older than 2.2 does not answer; it is assumed to run at DEFAULT_BAUD_RATE.
+ */
+public final class LinkProfile {
+
+	private static final String TAG = "LinkProfile";
+
+	/**
+	 * UART rate of firmware that cannot report its profile.
+	 */
+	public static final int DEFAULT_BAUD_RATE = 9600;
+
+	/**
+	 * Share of the link the analog scan may use; the rest is left for digital
+	 * messages and for answers to commands.
+	 */
+	public static final double TARGET_UTILIZATION = 0.8;
+
+	private final int baudRate;
+	private final boolean packedFrames;
+	private final int bytesPerScan;
+	private final int samplingInterval;
+
+	private LinkProfile(int baudRate, boolean packedFrames, int bytesPerScan, int samplingInterval) {
+		this.baudRate = baudRate;
+		this.packedFrames = packedFrames;
+		this.bytesPerScan = bytesPerScan;
+		this.samplingInterval = samplingInterval;
+	}
+
+	/**
+	 * Asks the board for its link profile, then sets the encoding and the
+	 * sampling interval to fit it.
+	 *
+	 * @param analogPins number of analog pins reported, starting at pin 0
+	 */
+	public static LinkProfile negotiate(Arduino_v2 arduino, int analogPins, long timeoutMs)
+			throws InterruptedException {
+		arduino.requestLinkProfile();
+		int baud = arduino.awaitLinkProfile(timeoutMs);
+		boolean packed = true;
+		if (baud < 0) {
+			// no LINK_PROFILE before 2.2, no ANALOG_FRAME before 2.1
+			baud = DEFAULT_BAUD_RATE;
+			packed = arduino.getMinorVersion() >= 1;
+		}
+		LinkProfile profile = plan(baud, analogPins, packed);
+		arduino.setPackedFrames(profile.packedFrames);
+		arduino.setSamplingInterval(profile.samplingInterval);
+		Log.d(TAG, "link profile " + profile);
+		return profile;
+	}
+
+	/**
+	 * @param baudRate UART rate, 0 for a link without a rate limit
+	 */
+	public static LinkProfile plan(int baudRate, int analogPins, boolean packedFrames) {
+		int bytesPerScan = packedFrames
+				? 3 + AnalogFrameCodec.packedLength((1 << analogPins) - 1) // START, command, data, END
+				: 3 * analogPins;
+		int interval = 1;
+		if (baudRate > 0) {
+			// 8N1: ten bits on the wire per byte
+			double bytesPerMs = baudRate / 10.0 / 1000.0 * TARGET_UTILIZATION;
+			interval = (int) Math.ceil(bytesPerScan / bytesPerMs);
+		}
+		interval = Math.max(1, Math.min(interval, Arduino_v2.MAX_SAMPLING_INTERVAL));
+		return new LinkProfile(baudRate, packedFrames, bytesPerScan, interval);
+	}
+
+	public int getBaudRate() {
+		return baudRate;
+	}
+
+	public boolean isPackedFrames() {
+		return packedFrames;
+	}
+
+	public int getBytesPerScan() {
+		return bytesPerScan;
+	}
+
+	public int getSamplingInterval() {
+		return samplingInterval;
+	}
+
+	/**
+	 * @return the scans per second the plan expects the link to carry
+	 */
+	public double getExpectedScansPerSecond() {
+		return 1000.0 / samplingInterval;
+	}
+
+	@Override
+	public String toString() {
+		return baudRate + " baud, " + (packedFrames ? "packed" : "per pin") + ", "
+				+ bytesPerScan + " B/scan, " + samplingInterval + " ms";
+	}
+}
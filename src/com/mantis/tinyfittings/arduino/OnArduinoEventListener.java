@@ -0,0 +1,45 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.arduino;
+
+/**
+ * Receives the inputs of an {@link Arduino} as the firmware reports them.
+ *
+ * Callbacks run on the thread that decodes the serial input, once per
+ * message, so they must return quickly and must not block. The timestamp is
+ * the System.nanoTime() at which the chunk holding the message was read from
+ * the link.
+ */
+public interface OnArduinoEventListener {
+
+	/**
+	 * An ANALOG_MESSAGE: value is 0 (0 volts) to 1023 (5 volts).
+	 */
+	void analogEvent(int pin, int value, long timestamp);
+
+	/**
+	 * A DIGITAL_MESSAGE: pins holds one bit per pin of the port, bit 0 being
+	 * pin 0 and bit 13 pin 13.
+	 */
+	void digitalEvent(int port, int pins, long timestamp);
+
+	/**
+	 * A REPORT_VERSION with the firmware's protocol version.
+	 */
+	void versionEvent(int majorVersion, int minorVersion, long timestamp);
+}
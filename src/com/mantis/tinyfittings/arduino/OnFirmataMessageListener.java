@@ -0,0 +1,54 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.arduino;
+
+/**
+ * Receives the messages decoded by {@link FirmataDecoder}. All calls for one
+ * chunk of input are made from the thread that called decode(), followed by a
+ * single call to endOfChunk().
+ */
+public interface OnFirmataMessageListener {
+
+	/**
+	 * @param port the port the message refers to (0 for the 14 pin boards)
+	 * @param pins0_6 bitmask of digital pins 0-6
+	 * @param pins7_13 bitmask of digital pins 7-13
+	 */
+	void digitalMessage(int port, int pins0_6, int pins7_13);
+
+	/**
+	 * @param pin the analog pin (0 to 15)
+	 * @param value the reading (0 to 1023 on a 10 bit ADC)
+	 */
+	void analogMessage(int pin, int value);
+
+	void versionMessage(int majorVersion, int minorVersion);
+
+	/**
+	 * A SysEx message (Firmata 2). data holds the 7 bit bytes between the
+	 * command and END_SYSEX and is only valid during the call.
+	 *
+	 * @param command the first byte after START_SYSEX
+	 */
+	void sysexMessage(int command, byte[] data, int offset, int length);
+
+	/**
+	 * Called once after all messages completed by a chunk were delivered.
+	 */
+	void endOfChunk();
+}
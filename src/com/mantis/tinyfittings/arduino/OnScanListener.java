@@ -0,0 +1,31 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.arduino;
+
+/**
+ * Receives every complete scan of an {@link Arduino}, the same frame that
+ * readFrame() returns afterwards.
+ *
+ * Callbacks run on the thread that decodes the serial input, so they must
+ * return quickly and must not block. The frame is reused for the next scan;
+ * copy what is needed with {@link ScanFrame#copyFrom(ScanFrame)}.
+ */
+public interface OnScanListener {
+
+	void scanEvent(ScanFrame frame);
+}
@@ -0,0 +1,254 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.arduino;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.mantis.tinyfittings.metrics.Counter;
+import com.mantis.tinyfittings.metrics.Histogram;
+import com.mantis.tinyfittings.metrics.MetricsRegistry;
+
+/**
+ * Paces output for control code that writes faster than the link carries.
+ * analogWrite() and digitalWrite() only record the value; a write to a pin
+ * that still has a value pending replaces it and is counted as superseded.
+ * Every period the scheduler sends what is pending, as one transaction, up
+ * to the byte budget of that period: one ANALOG_MESSAGE per PWM pin and
+ * one DIGITAL_MESSAGE for all digital pins, taken round robin so that a
+ * busy pin cannot starve the others. What does not fit stays pending.
+ *
+ * The board therefore never receives more than the budget and never gets a
+ * backlog of stale values: a value is sent, or replaced by a newer one,
+ * within (pending messages * 3 / budget per period + 1) periods, however
+ * fast the callers write. setPinInterval() further limits single PWM pins.
+ *
+ * The default budget is OUTPUT_SHARE of the host-to-board direction of the
+ * link. The UART is full duplex, so the analog scan, which travels the other
+ * way, takes nothing from it. Writes, superseded writes and sent messages go to
+ * the counters prefix_out_writes, prefix_out_superseded and
+ * prefix_out_messages, the time from a write to its sending to the
+ * histogram prefix_out_latency_micros.
+ */
+public class OutputScheduler {
+
+	public static final long DEFAULT_PERIOD_MS = 20;
+	public static final long MIN_PERIOD_MS = 1;
+
+	/**
+	 * Share of the host-to-board direction the default budget takes; the rest
+	 * is left for commands that bypass the scheduler, such as pinMode() and
+	 * heartbeats.
+	 */
+	public static final double OUTPUT_SHARE = 0.8;
+
+	private static final int MESSAGE_LENGTH = 3;
+	private static final int DIGITAL_SLOT = Transaction.PWM_PINS;
+	private static final int SLOTS = Transaction.PWM_PINS + 1;
+	private static final long[] LATENCY_MICROS_BOUNDS = Histogram.powersOfTwo(100, 1 << 22); // 0.1 ms to 4 s
+
+	private final Arduino arduino;
+	private final long periodMs;
+	private final int bytesPerPeriod;
+	private final Transaction transaction;
+
+	private final Counter writes;
+	private final Counter superseded;
+	private final Counter messages;
+	private final Histogram latencyMicros;
+
+	// pending output, guarded by this
+	private int pendingDigitalMask = 0;
+	private int pendingDigitalValues = 0;
+	private long digitalWrittenAt = 0;
+	private int pendingPwmMask = 0;
+	private final int[] pwm = new int[Transaction.PWM_PINS];
+	private final long[] pwmWrittenAt = new long[Transaction.PWM_PINS];
+	private final long[] pwmSentAt = new long[Transaction.PWM_PINS];
+	private int sentPwmMask = 0; // pins whose pwmSentAt is set
+	private final long[] pwmIntervalNanos = new long[Transaction.PWM_PINS];
+	private int nextSlot = 0;
+	private ScheduledFuture<?> task;
+
+	/**
+	 * Paces to OUTPUT_SHARE of what a baudRate link carries from host to
+	 * board, sending every DEFAULT_PERIOD_MS.
+	 */
+	public OutputScheduler(Arduino arduino, int baudRate, MetricsRegistry registry, String prefix) {
+		this(arduino, DEFAULT_PERIOD_MS, (int) (baudRate / 10 * OUTPUT_SHARE), registry, prefix);
+	}
+
+	/**
+	 * @param periodMs time between sends, at least MIN_PERIOD_MS
+	 * @param bytesPerSecond output budget; at least one message is sent per period
+	 */
+	public OutputScheduler(Arduino arduino, long periodMs, int bytesPerSecond,
+			MetricsRegistry registry, String prefix) {
+		if(bytesPerSecond <= 0)
+			throw new IllegalArgumentException("budget must be positive");
+		this.arduino = arduino;
+		this.periodMs = Math.max(periodMs, MIN_PERIOD_MS);
+		this.bytesPerPeriod = Math.max((int) (bytesPerSecond * this.periodMs / 1000), MESSAGE_LENGTH);
+		this.transaction = arduino.beginTransaction();
+		this.writes = registry.counter(prefix + "_out_writes");
+		this.superseded = registry.counter(prefix + "_out_superseded");
+		this.messages = registry.counter(prefix + "_out_messages");
+		this.latencyMicros = registry.histogram(prefix + "_out_latency_micros", LATENCY_MICROS_BOUNDS);
+	}
+
+	public synchronized void start(ScheduledExecutorService scheduler) {
+		if(task != null)
+			return;
+		task = scheduler.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				send();
+			}
+		}, periodMs, periodMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops sending. Pending values stay pending for the next start().
+	 */
+	public synchronized void stop() {
+		if(task == null)
+			return;
+		task.cancel(false);
+		task = null;
+	}
+
+	/**
+	 * Sends PWM pin at most once per intervalMs; 0 removes the limit.
+	 */
+	public synchronized void setPinInterval(int pin, long intervalMs) {
+		if(pin < 0 || pin >= Transaction.PWM_PINS)
+			throw new IllegalArgumentException("no such pin: " + pin);
+		pwmIntervalNanos[pin] = Math.max(intervalMs, 0) * 1000000L;
+	}
+
+	public void analogWrite(int pin, int value) {
+		if(pin < 0 || pin >= Transaction.PWM_PINS)
+			throw new IllegalArgumentException("no such pin: " + pin);
+		writes.increment();
+		synchronized(this) {
+			int bit = 1 << pin;
+			if((pendingPwmMask & bit) != 0)
+				superseded.increment();
+			pendingPwmMask |= bit;
+			pwm[pin] = value;
+			pwmWrittenAt[pin] = System.nanoTime();
+		}
+	}
+
+	public void digitalWrite(int pin, int value) {
+		if(pin < 0 || pin >= Transaction.DIGITAL_PINS)
+			throw new IllegalArgumentException("no such pin: " + pin);
+		writeDigitalPort(1 << pin, value != Arduino.LOW ? 1 << pin : 0);
+	}
+
+	/**
+	 * Records levels for the digital pins in mask, bit 0 being pin 0. All
+	 * digital pins travel in one message, so they are sent together.
+	 */
+	public void writeDigitalPort(int mask, int values) {
+		writes.increment();
+		synchronized(this) {
+			if((pendingDigitalMask & mask) != 0)
+				superseded.increment();
+			pendingDigitalMask |= mask;
+			pendingDigitalValues = (pendingDigitalValues & ~mask) | (values & mask);
+			digitalWrittenAt = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Sends what is pending within one period's budget. Called by the
+	 * scheduler; must not be called from more than one thread at a time.
+	 *
+	 * @return the number of bytes sent
+	 */
+	public int send() {
+		Transaction t = transaction;
+		int budget = bytesPerPeriod;
+		int sent = 0;
+		long now = System.nanoTime();
+		synchronized(this) {
+			// the digital port takes its turn after the last PWM pin
+			int slot = nextSlot;
+			for(int i = 0; i < SLOTS && budget >= MESSAGE_LENGTH; i++, slot = (slot + 1) % SLOTS) {
+				if(slot == DIGITAL_SLOT) {
+					if(pendingDigitalMask == 0)
+						continue;
+					t.writeDigitalPort(pendingDigitalMask, pendingDigitalValues);
+					latencyMicros.record((now - digitalWrittenAt) / 1000);
+					pendingDigitalMask = 0;
+					pendingDigitalValues = 0;
+				}
+				else {
+					int bit = 1 << slot;
+					if((pendingPwmMask & bit) == 0)
+						continue;
+					if((sentPwmMask & bit) != 0 && now - pwmSentAt[slot] < pwmIntervalNanos[slot])
+						continue;
+					t.analogWrite(slot, pwm[slot]);
+					latencyMicros.record((now - pwmWrittenAt[slot]) / 1000);
+					pwmSentAt[slot] = now;
+					sentPwmMask |= bit;
+					pendingPwmMask &= ~bit;
+				}
+				budget -= MESSAGE_LENGTH;
+				sent++;
+				nextSlot = (slot + 1) % SLOTS;
+			}
+		}
+		if(sent == 0)
+			return 0;
+		int n = t.commit();
+		messages.add(n / MESSAGE_LENGTH);
+		return n;
+	}
+
+	/**
+	 * @return the number of pins with a value waiting to be sent, counting
+	 * all digital pins as one
+	 */
+	public synchronized int getPending() {
+		return Integer.bitCount(pendingPwmMask) + (pendingDigitalMask != 0 ? 1 : 0);
+	}
+
+	public long getWrites() {
+		return writes.get();
+	}
+
+	public long getSuperseded() {
+		return superseded.get();
+	}
+
+	public long getMessages() {
+		return messages.get();
+	}
+
+	public int getBytesPerPeriod() {
+		return bytesPerPeriod;
+	}
+
+	public long getPeriodMs() {
+		return periodMs;
+	}
+}
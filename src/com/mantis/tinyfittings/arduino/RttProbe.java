@@ -0,0 +1,178 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.arduino;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.mantis.tinyfittings.metrics.Counter;
+import com.mantis.tinyfittings.metrics.Histogram;
+import com.mantis.tinyfittings.metrics.HistogramSnapshot;
+import com.mantis.tinyfittings.metrics.MetricsRegistry;
+
+/**
+ * Measures the round trip to the board by sending REPORT_VERSION every
+ * interval and timing the version report that comes back, from the write to
+ * the receive time of the chunk holding the answer.
+ *
+ * The answer carries no id, so only one probe is in flight at a time. A
+ * probe that got no answer within the timeout is counted as lost, and the
+ * next one waits for another timeout so a late answer cannot be taken for
+ * it. A probe costs one byte out and three bytes back: at the default
+ * interval of one second that is 0.3% of a 9600 baud link.
+ *
+ * Round trips go to the histogram prefix_rtt_micros, probes and losses to
+ * the counters prefix_rtt_probes and prefix_rtt_timeouts.
+ */
+public class RttProbe implements OnArduinoEventListener {
+
+	public static final long DEFAULT_INTERVAL_MS = 1000;
+	public static final long DEFAULT_TIMEOUT_MS = 2000;
+	public static final long MIN_INTERVAL_MS = 100;
+
+	private static final long[] RTT_MICROS_BOUNDS = Histogram.powersOfTwo(1000, 1 << 22); // 1 ms to 4 s
+
+	private final Arduino_v1 arduino;
+	private final long intervalMs;
+	private final long timeoutNanos;
+
+	private final Histogram rttMicros;
+	private final Counter probes;
+	private final Counter timeouts;
+
+	// guarded by this
+	private boolean outstanding = false;
+	private long sentAt = 0;
+	private long quietUntil = 0;
+	private ScheduledFuture<?> task;
+
+	private volatile long lastRttMicros = -1;
+
+	public RttProbe(Arduino_v1 arduino, MetricsRegistry registry, String prefix) {
+		this(arduino, DEFAULT_INTERVAL_MS, DEFAULT_TIMEOUT_MS, registry, prefix);
+	}
+
+	/**
+	 * @param intervalMs time between probes, at least MIN_INTERVAL_MS
+	 * @param timeoutMs time after which a probe counts as lost
+	 */
+	public RttProbe(Arduino_v1 arduino, long intervalMs, long timeoutMs,
+			MetricsRegistry registry, String prefix) {
+		if(timeoutMs <= 0)
+			throw new IllegalArgumentException("timeout must be positive");
+		this.arduino = arduino;
+		this.intervalMs = Math.max(intervalMs, MIN_INTERVAL_MS);
+		this.timeoutNanos = timeoutMs * 1000000L;
+		this.rttMicros = registry.histogram(prefix + "_rtt_micros", RTT_MICROS_BOUNDS);
+		this.probes = registry.counter(prefix + "_rtt_probes");
+		this.timeouts = registry.counter(prefix + "_rtt_timeouts");
+	}
+
+	/**
+	 * Starts probing on the scheduler.
+	 */
+	public synchronized void start(ScheduledExecutorService scheduler) {
+		if(task != null)
+			return;
+		arduino.addOnArduinoEventListener(this);
+		task = scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				probe();
+			}
+		}, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void stop() {
+		if(task == null)
+			return;
+		task.cancel(false);
+		task = null;
+		arduino.removeOnArduinoEventListener(this);
+		outstanding = false;
+	}
+
+	/**
+	 * Sends a probe unless one is still waiting for its answer. Called by
+	 * the scheduler; may be called directly for a probe on demand.
+	 */
+	public void probe() {
+		synchronized(this) {
+			long now = System.nanoTime();
+			if(outstanding) {
+				if(now - sentAt < timeoutNanos)
+					return;
+				outstanding = false;
+				timeouts.increment();
+				quietUntil = now + timeoutNanos;
+			}
+			if(now - quietUntil < 0)
+				return;
+			outstanding = true;
+			sentAt = now;
+		}
+		probes.increment();
+		arduino.requestVersion();
+		arduino.serial.flush();
+	}
+
+	@Override
+	public void versionEvent(int majorVersion, int minorVersion, long timestamp) {
+		long rtt;
+		synchronized(this) {
+			// an answer received before the probe was sent is not ours
+			if(!outstanding || timestamp - sentAt < 0)
+				return;
+			outstanding = false;
+			rtt = (timestamp - sentAt) / 1000;
+		}
+		lastRttMicros = rtt;
+		rttMicros.record(rtt);
+	}
+
+	@Override
+	public void analogEvent(int pin, int value, long timestamp) {
+	}
+
+	@Override
+	public void digitalEvent(int port, int pins, long timestamp) {
+	}
+
+	/**
+	 * @return the latest round trip in microseconds, -1 before the first answer
+	 */
+	public long getLastRttMicros() {
+		return lastRttMicros;
+	}
+
+	/**
+	 * @return round trips so far, shared by every probe with the same prefix
+	 */
+	public HistogramSnapshot getRttSnapshot() {
+		return rttMicros.snapshot();
+	}
+
+	public long getProbes() {
+		return probes.get();
+	}
+
+	public long getTimeouts() {
+		return timeouts.get();
+	}
+}
@@ -0,0 +1,111 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.arduino;
+
+/**
+ * The inputs of one firmware scan: every reported analog pin plus the
+ * digital pins as they stood when the scan completed. Filled in by
+ * {@link Arduino#readFrame(ScanFrame)}; a caller keeps one instance and
+ * reuses it.
+ */
+public class ScanFrame {
+
+	/**
+	 * Highest number of analog pins a frame holds.
+	 */
+	public static final int MAX_ANALOG_PINS = 16;
+
+	final int[] analog = new int[MAX_ANALOG_PINS];
+	int analogCount;
+	int digitalPins;
+	int changedPins;
+	long sequence;
+	long timestamp;
+
+	/**
+	 * Makes this frame a copy of other.
+	 */
+	public void copyFrom(ScanFrame other) {
+		System.arraycopy(other.analog, 0, analog, 0, other.analogCount);
+		analogCount = other.analogCount;
+		digitalPins = other.digitalPins;
+		changedPins = other.changedPins;
+		sequence = other.sequence;
+		timestamp = other.timestamp;
+	}
+
+	/**
+	 * @return the number of the scan, counting from 1; frames with the same
+	 * sequence hold the same values
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * @return the System.nanoTime() at which the scan's last reading arrived
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * @return the number of analog pins in the frame, pins 0 to count - 1
+	 */
+	public int getAnalogCount() {
+		return analogCount;
+	}
+
+	/**
+	 * @return the reading of the analog pin, 0 (0 volts) to 1023 (5 volts)
+	 */
+	public int analogRead(int pin) {
+		return analog[pin];
+	}
+
+	/**
+	 * @return Arduino.HIGH or Arduino.LOW
+	 */
+	public int digitalRead(int pin) {
+		return (digitalPins >> pin) & 1;
+	}
+
+	/**
+	 * @return the digital pins 0 to 13 as bits 0 to 13
+	 */
+	public int getDigitalPins() {
+		return digitalPins;
+	}
+
+	/**
+	 * @return bit n set if analog pin n brought a new value in this scan: a
+	 * pin without a filter always does, a filtered pin only when its filter
+	 * passed the reading on
+	 */
+	public int getChangedPins() {
+		return changedPins;
+	}
+
+	/**
+	 * @return false if the filters held back the readings of every pin, so
+	 * the frame repeats the values of the scans before
+	 */
+	public boolean isChanged() {
+		return changedPins != 0;
+	}
+}
@@ -0,0 +1,89 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.arduino;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Seqlock over the latest {@link ScanFrame}, written by the decoding thread
+ * and read by any number of threads. The writer never waits: it makes the
+ * version odd, stores the frame, and makes the version even again. A reader
+ * copies the frame between two reads of the version and retries if the
+ * version changed or was odd.
+ */
+final class ScanFrameLock {
+
+	private static final int COUNT = ScanFrame.MAX_ANALOG_PINS;
+	private static final int DIGITAL = ScanFrame.MAX_ANALOG_PINS + 1;
+	private static final int CHANGED = ScanFrame.MAX_ANALOG_PINS + 2;
+
+	private final AtomicLong version = new AtomicLong(0);
+	private final AtomicIntegerArray data = new AtomicIntegerArray(ScanFrame.MAX_ANALOG_PINS + 3);
+	private final AtomicLong timestamp = new AtomicLong(0);
+
+	/**
+	 * Must only be called from one thread.
+	 */
+	void publish(int[] analog, int count, int digitalPins, int changedPins, long time) {
+		long v = version.get();
+		version.set(v + 1);
+		// ordered stores: none of them can move above the odd version, and
+		// the even version below is a full barrier
+		for(int pin = 0; pin < count; pin++)
+			data.lazySet(pin, analog[pin]);
+		data.lazySet(COUNT, count);
+		data.lazySet(DIGITAL, digitalPins);
+		data.lazySet(CHANGED, changedPins);
+		timestamp.lazySet(time);
+		version.set(v + 2);
+	}
+
+	/**
+	 * @return false if no frame was published yet
+	 */
+	boolean read(ScanFrame frame) {
+		while(true) {
+			long v = version.get();
+			if(v == 0)
+				return false;
+			if((v & 1) != 0) {
+				Thread.yield();
+				continue;
+			}
+			int count = data.get(COUNT);
+			for(int pin = 0; pin < count; pin++)
+				frame.analog[pin] = data.get(pin);
+			frame.digitalPins = data.get(DIGITAL);
+			frame.changedPins = data.get(CHANGED);
+			frame.timestamp = timestamp.get();
+			if(version.get() == v) {
+				frame.analogCount = count;
+				frame.sequence = v >> 1;
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * @return the sequence of the latest frame, 0 if none was published
+	 */
+	long getSequence() {
+		return version.get() >> 1;
+	}
+}
@@ -0,0 +1,315 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.arduino;
+
+import android.util.Log;
+
+import com.mantis.tinyfittings.flow.Publisher;
+import com.mantis.tinyfittings.flow.Subscriber;
+import com.mantis.tinyfittings.flow.Subscription;
+
+/**
+ * Publishes the complete scans of an {@link Arduino} to any number of
+ * subscribers, each consuming at its own pace: the UI a few frames a second,
+ * an uploader in bursts, a rule engine every scan.
+ *
+ * Every subscription has its own delivery thread and its own queue of
+ * frames, filled by the decoding thread without waiting. A subscriber gets
+ * frames only as far as it request()ed them; what arrives beyond that is
+ * handled by the overflow strategy chosen on subscribe:
+ *
+ * OVERFLOW_LATEST keeps only the newest frame waiting, OVERFLOW_BUFFER keeps
+ * up to the given number of frames and then drops the oldest, OVERFLOW_SAMPLE
+ * takes only every given number of scans and keeps the newest of those.
+ *
+ * The frame handed to onNext() is reused once onNext() returns; copy what
+ * is needed with {@link ScanFrame#copyFrom(ScanFrame)}. Nothing is allocated
+ * per scan.
+ */
+public class ScanPublisher implements Publisher<ScanFrame> {
+
+	private static final String TAG = "ScanPublisher";
+
+	public static final int OVERFLOW_LATEST = 0;
+	public static final int OVERFLOW_BUFFER = 1;
+	public static final int OVERFLOW_SAMPLE = 2;
+
+	private static final ScanSubscription[] NONE = new ScanSubscription[0];
+
+	private final Arduino arduino;
+	private final OnScanListener scanListener = new OnScanListener() {
+		@Override
+		public void scanEvent(ScanFrame frame) {
+			ScanSubscription[] current = subscriptions;
+			for(int i = 0; i < current.length; i++)
+				current[i].offer(frame);
+		}
+	};
+
+	// copy-on-write, so a scan is handed on without a lock
+	private volatile ScanSubscription[] subscriptions = NONE;
+	private boolean closed = false; // guarded by this
+
+	public ScanPublisher(Arduino arduino) {
+		this.arduino = arduino;
+		arduino.addOnScanListener(scanListener);
+	}
+
+	/**
+	 * Subscribes with OVERFLOW_LATEST.
+	 */
+	@Override
+	public void subscribe(Subscriber<? super ScanFrame> subscriber) {
+		subscribe(subscriber, OVERFLOW_LATEST, 1);
+	}
+
+	/**
+	 * @param overflow OVERFLOW_LATEST, OVERFLOW_BUFFER or OVERFLOW_SAMPLE
+	 * @param n the buffer size for OVERFLOW_BUFFER, take every n-th scan for
+	 * OVERFLOW_SAMPLE; ignored for OVERFLOW_LATEST
+	 */
+	public ScanSubscription subscribe(Subscriber<? super ScanFrame> subscriber, int overflow, int n) {
+		if(overflow < OVERFLOW_LATEST || overflow > OVERFLOW_SAMPLE)
+			throw new IllegalArgumentException("unknown overflow strategy: " + overflow);
+		if(n <= 0)
+			throw new IllegalArgumentException("n must be positive");
+		ScanSubscription subscription = new ScanSubscription(this, subscriber,
+				overflow == OVERFLOW_BUFFER ? n : 1, overflow == OVERFLOW_SAMPLE ? n : 1);
+		synchronized(this) {
+			if(closed) {
+				subscription.complete();
+			}
+			else {
+				ScanSubscription[] current = subscriptions;
+				ScanSubscription[] updated = new ScanSubscription[current.length + 1];
+				System.arraycopy(current, 0, updated, 0, current.length);
+				updated[current.length] = subscription;
+				subscriptions = updated;
+			}
+		}
+		subscription.start();
+		return subscription;
+	}
+
+	public ScanSubscription[] getSubscriptions() {
+		return subscriptions.clone();
+	}
+
+	/**
+	 * Stops publishing. Every subscriber gets onComplete() once it received
+	 * the frames it asked for, or right away if it asked for none.
+	 */
+	public void close() {
+		arduino.removeOnScanListener(scanListener);
+		ScanSubscription[] current;
+		synchronized(this) {
+			closed = true;
+			current = subscriptions;
+			subscriptions = NONE;
+		}
+		for(int i = 0; i < current.length; i++)
+			current[i].complete();
+	}
+
+	synchronized void remove(ScanSubscription subscription) {
+		ScanSubscription[] current = subscriptions;
+		for(int i = 0; i < current.length; i++) {
+			if(current[i] == subscription) {
+				ScanSubscription[] updated = new ScanSubscription[current.length - 1];
+				System.arraycopy(current, 0, updated, 0, i);
+				System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+				subscriptions = updated;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * One subscriber: its queue of frames, its demand and the thread that
+	 * delivers to it.
+	 */
+	public static final class ScanSubscription implements Subscription {
+
+		private final ScanPublisher publisher;
+		private final Subscriber<? super ScanFrame> subscriber;
+		private final int sampleEvery;
+		private final Thread thread;
+
+		// guarded by lock
+		private final Object lock = new Object();
+		private final ScanFrame[] queue;
+		private int head = 0;
+		private int count = 0;
+		private int skipped = 0;
+		private long demand = 0;
+		private boolean canceled = false;
+		private boolean completed = false;
+		private Throwable error = null;
+
+		private volatile long delivered = 0;
+		private volatile long dropped = 0;
+
+		ScanSubscription(ScanPublisher publisher, Subscriber<? super ScanFrame> subscriber,
+				int capacity, int sampleEvery) {
+			this.publisher = publisher;
+			this.subscriber = subscriber;
+			this.sampleEvery = sampleEvery;
+			queue = new ScanFrame[capacity];
+			for(int i = 0; i < capacity; i++)
+				queue[i] = new ScanFrame();
+			thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					deliver();
+				}
+			}, "ScanSubscription");
+			thread.setDaemon(true);
+		}
+
+		void start() {
+			thread.start();
+		}
+
+		@Override
+		public void request(long n) {
+			synchronized(lock) {
+				if(canceled)
+					return;
+				if(n <= 0)
+					error = new IllegalArgumentException("request(" + n + "), demand must be positive");
+				else
+					demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+				lock.notify();
+			}
+		}
+
+		@Override
+		public void cancel() {
+			synchronized(lock) {
+				canceled = true;
+				lock.notify();
+			}
+			publisher.remove(this);
+		}
+
+		// called on the decoding thread
+		void offer(ScanFrame frame) {
+			synchronized(lock) {
+				if(canceled || completed)
+					return;
+				if(++skipped < sampleEvery)
+					return;
+				skipped = 0;
+				if(count == queue.length) {
+					head = (head + 1) % queue.length;
+					count--;
+					dropped++;
+				}
+				queue[(head + count) % queue.length].copyFrom(frame);
+				count++;
+				if(demand > 0)
+					lock.notify();
+			}
+		}
+
+		void complete() {
+			synchronized(lock) {
+				completed = true;
+				lock.notify();
+			}
+		}
+
+		private void deliver() {
+			ScanFrame frame = new ScanFrame();
+			try {
+				subscriber.onSubscribe(this);
+				while(true) {
+					Throwable failure;
+					boolean next = false;
+					synchronized(lock) {
+						while(!canceled && error == null && !completed && (count == 0 || demand == 0))
+							lock.wait();
+						if(canceled)
+							break;
+						failure = error;
+						if(failure == null && count > 0 && demand > 0) {
+							frame.copyFrom(queue[head]);
+							head = (head + 1) % queue.length;
+							count--;
+							if(demand != Long.MAX_VALUE)
+								demand--;
+							next = true;
+						}
+					}
+					if(failure != null) {
+						cancel();
+						subscriber.onError(failure);
+						break;
+					}
+					if(!next) {
+						// completed, and nothing left that was asked for
+						publisher.remove(this);
+						subscriber.onComplete();
+						break;
+					}
+					subscriber.onNext(frame);
+					delivered++;
+				}
+			}
+			catch(InterruptedException e) {
+				cancel();
+			}
+			catch(RuntimeException e) {
+				// a subscriber that throws has broken its contract, drop it
+				Log.e(TAG, "subscriber " + subscriber + " failed, canceled", e);
+				cancel();
+			}
+		}
+
+		public Subscriber<? super ScanFrame> getSubscriber() {
+			return subscriber;
+		}
+
+		/**
+		 * @return frames waiting for demand
+		 */
+		public int getQueued() {
+			synchronized(lock) {
+				return count;
+			}
+		}
+
+		public long getDemand() {
+			synchronized(lock) {
+				return demand;
+			}
+		}
+
+		public long getDelivered() {
+			return delivered;
+		}
+
+		/**
+		 * @return frames lost to the overflow strategy, not counting the scans
+		 * OVERFLOW_SAMPLE leaves out
+		 */
+		public long getDropped() {
+			return dropped;
+		}
+	}
+}
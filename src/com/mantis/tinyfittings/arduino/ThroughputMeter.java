@@ -0,0 +1,105 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.arduino;
+
+import com.mantis.tinyfittings.metrics.Gauge;
+import com.mantis.tinyfittings.metrics.MetricsRegistry;
+import com.mantis.tinyfittings.serial.Serial;
+
+/**
+ * Measures what the link actually delivers: received bytes and complete
+ * scans per second between two calls of sample(). Meant to be sampled by
+ * one thread, every second or so; instrument() makes the rates part of the
+ * metrics snapshot.
+ */
+public class ThroughputMeter {
+
+	private final Serial serial;
+	private final Arduino arduino;
+	private final ScanFrame frame = new ScanFrame();
+
+	private long lastTime;
+	private long lastBytes;
+	private long lastScans;
+
+	private volatile double bytesPerSecond = 0;
+	private volatile double scansPerSecond = 0;
+
+	public ThroughputMeter(Serial serial, Arduino arduino) {
+		this.serial = serial;
+		this.arduino = arduino;
+		lastTime = System.nanoTime();
+		lastBytes = serial.getReceivedBytes();
+		lastScans = currentScan();
+	}
+
+	/**
+	 * Registers the rates of the last sample() as the gauges
+	 * prefix_bytes_per_second and prefix_scans_per_second.
+	 */
+	public void instrument(MetricsRegistry registry, String prefix) {
+		registry.gauge(prefix + "_bytes_per_second", new Gauge() {
+			@Override
+			public long value() {
+				return Math.round(bytesPerSecond);
+			}
+		});
+		registry.gauge(prefix + "_scans_per_second", new Gauge() {
+			@Override
+			public long value() {
+				return Math.round(scansPerSecond);
+			}
+		});
+	}
+
+	/**
+	 * Updates the rates with the traffic since the previous call.
+	 */
+	public void sample() {
+		long now = System.nanoTime();
+		long bytes = serial.getReceivedBytes();
+		long scans = currentScan();
+		double seconds = (now - lastTime) / 1e9;
+		if (seconds > 0) {
+			bytesPerSecond = (bytes - lastBytes) / seconds;
+			scansPerSecond = (scans - lastScans) / seconds;
+		}
+		lastTime = now;
+		lastBytes = bytes;
+		lastScans = scans;
+	}
+
+	public double getBytesPerSecond() {
+		return bytesPerSecond;
+	}
+
+	public double getScansPerSecond() {
+		return scansPerSecond;
+	}
+
+	/**
+	 * @return the share of a link of the given rate the received bytes used
+	 */
+	public double getUtilization(int baudRate) {
+		return baudRate > 0 ? bytesPerSecond * 10 / baudRate : 0;
+	}
+
+	private long currentScan() {
+		return arduino.readFrame(frame) ? frame.getSequence() : 0;
+	}
+}
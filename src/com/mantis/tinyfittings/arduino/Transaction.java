@@ -0,0 +1,121 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.arduino;
+
+/**
+ * Output changes for one board, collected and sent together. Pin modes,
+ * digital levels and PWM values are recorded per pin with the last change
+ * winning, and commit() encodes the fewest messages that reach that state:
+ * one SET_DIGITAL_PIN_MODE per pin whose mode was set, a single
+ * DIGITAL_MESSAGE for all digital pins (left out if it would not change the
+ * outputs) and one ANALOG_MESSAGE per PWM pin. Modes go first so a pin is
+ * an output before it is driven.
+ *
+ * The messages leave in two writes: modes and the digital message at control
+ * priority, then the PWM values at bulk priority. On a link that prioritizes
+ * control traffic other control messages may go out between the two, so a
+ * transaction is no longer one contiguous buffer on the wire; the PWM values
+ * still follow the modes they depend on. If a pin of the transaction still
+ * has a PWM value queued as bulk, the whole transaction goes as bulk in one
+ * write, so it cannot overtake that value.
+ *
+ * Switching eight relays takes one 3-byte message instead of eight.
+ *
+ * commit() clears the transaction, so it can be kept and reused without
+ * allocating. A transaction is not thread safe.
+ */
+public class Transaction {
+
+	public static final int DIGITAL_PINS = 14;
+	public static final int PWM_PINS = 16; // the pin travels in 4 bits of ANALOG_MESSAGE
+
+	static final int MAX_LENGTH = 3 * DIGITAL_PINS + 3 + 3 * PWM_PINS;
+
+	private final Arduino arduino;
+
+	int modeMask = 0;
+	final int[] modes = new int[DIGITAL_PINS];
+	int digitalMask = 0;
+	int digitalValues = 0;
+	int pwmMask = 0;
+	final int[] pwm = new int[PWM_PINS];
+	final byte[] buffer = new byte[MAX_LENGTH];
+
+	Transaction(Arduino arduino) {
+		this.arduino = arduino;
+	}
+
+	public Transaction pinMode(int pin, int mode) {
+		checkPin(pin, DIGITAL_PINS);
+		modes[pin] = mode;
+		modeMask |= 1 << pin;
+		return this;
+	}
+
+	public Transaction digitalWrite(int pin, int value) {
+		checkPin(pin, DIGITAL_PINS);
+		return writeDigitalPort(1 << pin, value != Arduino.LOW ? 1 << pin : 0);
+	}
+
+	/**
+	 * Sets the digital pins whose bit is set in mask to the matching bit of
+	 * values, bit 0 being pin 0.
+	 */
+	public Transaction writeDigitalPort(int mask, int values) {
+		mask &= (1 << DIGITAL_PINS) - 1;
+		digitalValues = (digitalValues & ~mask) | (values & mask);
+		digitalMask |= mask;
+		return this;
+	}
+
+	public Transaction analogWrite(int pin, int value) {
+		checkPin(pin, PWM_PINS);
+		pwm[pin] = value;
+		pwmMask |= 1 << pin;
+		return this;
+	}
+
+	public boolean isEmpty() {
+		return modeMask == 0 && digitalMask == 0 && pwmMask == 0;
+	}
+
+	public void clear() {
+		modeMask = 0;
+		digitalMask = 0;
+		digitalValues = 0;
+		pwmMask = 0;
+	}
+
+	/**
+	 * Sends the collected changes and clears the transaction.
+	 *
+	 * @return the number of bytes sent
+	 */
+	public int commit() {
+		try {
+			return arduino.commit(this);
+		} finally {
+			clear();
+		}
+	}
+
+	private static void checkPin(int pin, int pins) {
+		if (pin < 0 || pin >= pins)
+			throw new IllegalArgumentException("no such pin: " + pin);
+	}
+}
@@ -17,6 +17,11 @@
 */
 package com.mantis.tinyfittings.bluetooth;
 
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
 import android.content.Intent;
@@ -27,7 +32,13 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import com.mantis.tinyfittings.R;
 import com.mantis.tinyfittings.arduino.Arduino;
+import com.mantis.tinyfittings.arduino.ArduinoSelector;
 import com.mantis.tinyfittings.arduino.Arduino_v1;
+import com.mantis.tinyfittings.arduino.Arduino_v2;
+import com.mantis.tinyfittings.arduino.LinkProfile;
+import com.mantis.tinyfittings.arduino.RttProbe;
+import com.mantis.tinyfittings.arduino.ThroughputMeter;
+import com.mantis.tinyfittings.metrics.MetricsRegistry;
 import com.mantis.tinyfittings.serial.StandAloneSerial;
 
 public abstract class BTActivity extends Activity {
@@ -36,9 +47,19 @@ public abstract class BTActivity extends Activity {
 	
 	private static final int REQUEST_CONNECT_DEVICE = 1;
 	private static final int REQUEST_ENABLE_BT = 3;
+	// covers the time the Bluetooth connection takes to come up
+	private static final long SELECT_TIMEOUT_MS = 10000;
+	private static final long LINK_PROFILE_TIMEOUT_MS = 1000;
+	private static final long THROUGHPUT_SAMPLE_MS = 1000;
 	
 	static BTHandler btHandler;
-	protected Arduino arduino;
+	// null until the firmware version is known
+	protected volatile Arduino arduino;
+	protected volatile RttProbe rttProbe;
+	// the serial of the latest pick, disposed when the next one is made
+	private volatile StandAloneSerial serial;
+	private ScheduledFuture<?> throughputTask; // guarded by this
+	private final ScheduledExecutorService probeScheduler = Executors.newSingleThreadScheduledExecutor();
 
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
@@ -73,6 +94,7 @@ public abstract class BTActivity extends Activity {
 	public void onPause() {
 		super.onPause();
 		Log.d(TAG, "ON PAUSE");
+		Log.i(TAG, MetricsRegistry.getDefault().snapshot().toText());
 	}
 	
 	@Override
@@ -87,8 +109,10 @@ public abstract class BTActivity extends Activity {
 	@Override
 	public void onDestroy() {
 		super.onDestroy();
+		disposeSerial(null);
 		if(btHandler != null)
 			btHandler.stop();
+		probeScheduler.shutdownNow();
 		Log.d(TAG, "ON DESTROY");
 	}
 	
@@ -117,8 +141,41 @@ public abstract class BTActivity extends Activity {
 		case REQUEST_CONNECT_DEVICE:
 			if(resultCode == Activity.RESULT_OK) {
 				btHandler.connectDevice(data);
-				StandAloneSerial mStandAloneSerial = new StandAloneSerial(btHandler);
-				arduino = new Arduino_v1(mStandAloneSerial);
+				final StandAloneSerial mStandAloneSerial = new StandAloneSerial(btHandler);
+				disposeSerial(mStandAloneSerial);
+				new Thread("ArduinoSelector") {
+					@Override
+					public void run() {
+						try {
+							Arduino selected = ArduinoSelector.select(mStandAloneSerial, SELECT_TIMEOUT_MS);
+							// fit scan interval and encoding to the board's UART rate
+							if(selected instanceof Arduino_v2)
+								LinkProfile.negotiate((Arduino_v2) selected, Arduino.REPORTED_ANALOG_PINS, LINK_PROFILE_TIMEOUT_MS);
+							synchronized(BTActivity.this) {
+								if(serial != mStandAloneSerial)
+									return; // another board was picked meanwhile
+								mStandAloneSerial.instrument(MetricsRegistry.getDefault(), "serial");
+								if(selected instanceof Arduino_v1) {
+									((Arduino_v1) selected).instrument(MetricsRegistry.getDefault(), "firmata");
+									RttProbe probe = new RttProbe((Arduino_v1) selected, MetricsRegistry.getDefault(), "bt");
+									probe.start(probeScheduler);
+									rttProbe = probe;
+								}
+								final ThroughputMeter meter = new ThroughputMeter(mStandAloneSerial, selected);
+								meter.instrument(MetricsRegistry.getDefault(), "link");
+								throughputTask = probeScheduler.scheduleAtFixedRate(new Runnable() {
+									@Override
+									public void run() {
+										meter.sample();
+									}
+								}, THROUGHPUT_SAMPLE_MS, THROUGHPUT_SAMPLE_MS, TimeUnit.MILLISECONDS);
+								arduino = selected;
+							}
+						} catch (InterruptedException e) {
+							Log.d(TAG, "Arduino selection interrupted");
+						}
+					}
+				}.start();
 			}
 		case REQUEST_ENABLE_BT:
 			if(resultCode == Activity.RESULT_OK) {
@@ -130,4 +187,21 @@ public abstract class BTActivity extends Activity {
 			}
 		}
 	}
-}
\ No newline at end of file
+
+	// stops the previous board's serial and prober, so its listener does not
+	// stay on the BTHandler; arduino keeps the old board until the next is ready
+	private synchronized void disposeSerial(StandAloneSerial next) {
+		RttProbe probe = rttProbe;
+		if(probe != null)
+			probe.stop();
+		rttProbe = null;
+		if(throughputTask != null) {
+			throughputTask.cancel(false);
+			throughputTask = null;
+		}
+		StandAloneSerial previous = serial;
+		serial = next;
+		if(previous != null)
+			previous.dispose();
+	}
+}
\ No newline at end of file
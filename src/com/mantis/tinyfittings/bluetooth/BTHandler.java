@@ -22,14 +22,26 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothServerSocket;
 import android.bluetooth.BluetoothSocket;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.ByteBuffer;
-import java.util.ArrayList;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import com.mantis.tinyfittings.arduino.Arduino;
 import com.mantis.tinyfittings.bluetooth.OnReceivedDataListener;
+import com.mantis.tinyfittings.metrics.Counter;
+import com.mantis.tinyfittings.metrics.Gauge;
+import com.mantis.tinyfittings.metrics.Histogram;
+import com.mantis.tinyfittings.metrics.MetricsRegistry;
+import com.mantis.tinyfittings.session.Session;
+import com.mantis.tinyfittings.session.SessionManager;
 
 import android.content.Intent;
 import android.os.Bundle;
@@ -42,8 +54,6 @@ public class BTHandler {
 	private static final String TAG = "tinyFittings BTHandler";
 	
 	public static final int MESSAGE_STATE_CHANGE = 1;
-	public static final int MESSAGE_READ = 2;
-	public static final int MESSAGE_WRITE = 3;
 	public static final int MESSAGE_DEVICE_NAME = 4;
 	public static final int MESSAGE_TOAST = 5;
 	
@@ -51,12 +61,35 @@ public class BTHandler {
 	private static final UUID MY_UUID = 
 			UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
 	
+	// Firmata's version request, every firmware answers it; used as heartbeat
+	private static final int REPORT_VERSION = 0xF9;
+	
+	// reconnects and heartbeats of every handler; a daemon, so a handler that
+	// is dropped without stop() cannot keep the process alive
+	private static final ScheduledExecutorService TIMER =
+			Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "BTHandlerTimer");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+	
 	private AcceptThread mAcceptThread;
 	private ConnectThread mConnectThread;
-	private ConnectedThread mConnectedThread;
+	// volatile so sendData() can pick up the current connection without locking
+	private volatile ConnectedThread mConnectedThread;
 	private int mState;
 
-	private ArrayList<OnReceivedDataListener> onReceivedDataListeners;
+	private final ReceivedDataDispatcher onReceivedDataListeners = new ReceivedDataDispatcher();
+	
+	// traffic counters, exported through MetricsRegistry.getDefault()
+	private final MetricsRegistry mMetrics = MetricsRegistry.getDefault();
+	private final Counter mBytesIn = mMetrics.counter("bt_in_bytes");
+	private final Counter mReads = mMetrics.counter("bt_in_reads");
+	private final Histogram mChunkBytes = mMetrics.histogram("bt_in_chunk_bytes",
+			Histogram.powersOfTwo(1, 1024));
 	
 	public static final int STATE_NONE = 0;
 	public static final int STATE_LISTEN = 1;
@@ -68,16 +101,58 @@ public class BTHandler {
 	
 	private String mConnectedDeviceName = null;
 	
+	// reconnecting to the last device after the link is lost, guarded by this
+	private String mLastAddress = null;
+	private boolean mAutoReconnect = true;
+	private boolean mReconnectPending = false;
+	private ReconnectPolicy mReconnectPolicy = new ReconnectPolicy();
+	private final ReconnectStats mReconnectStats = new ReconnectStats();
+	private final ScheduledExecutorService mTimer = TIMER;
+	private ScheduledFuture<?> mReconnectTask;
+	private ScheduledFuture<?> mHeartbeatTask;
+	
+	// boards connected through connectSession(), next to the single connection above
+	private volatile SessionManager mSessions;
+	private ExecutorService mSessionConnector;
+	
 	protected BluetoothAdapter mBluetoothAdapter = null;
 	
 	public BTHandler() {
 		Log.d(TAG, "BTHandler created");
+		instrument();
 		mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
 		if(mBluetoothAdapter == null) {
 			Log.d(TAG, "No bluetooth support.");
 			return;
 		}
-		onReceivedDataListeners = new ArrayList<OnReceivedDataListener>();
+	}
+	
+	private void instrument() {
+		onReceivedDataListeners.instrument(mMetrics, "bt_listener");
+		mMetrics.gauge("bt_outages", new Gauge() {
+			@Override
+			public long value() {
+				return mReconnectStats.getOutages();
+			}
+		});
+		mMetrics.gauge("bt_stale_links", new Gauge() {
+			@Override
+			public long value() {
+				return mReconnectStats.getStaleLinks();
+			}
+		});
+		mMetrics.gauge("bt_last_reconnect_ms", new Gauge() {
+			@Override
+			public long value() {
+				return mReconnectStats.getLastReconnectMs();
+			}
+		});
+		mMetrics.gauge("bt_current_outage_ms", new Gauge() {
+			@Override
+			public long value() {
+				return mReconnectStats.getCurrentOutageMs();
+			}
+		});
 	}
 	
 	public boolean isEnabled() {
@@ -104,6 +179,7 @@ public class BTHandler {
 			mConnectedThread = null;
 		}
 		
+		cancelHeartbeat();
 		setState(STATE_LISTEN);
 		
 //		if(mAcceptThread == null) {
@@ -112,9 +188,18 @@ public class BTHandler {
 //		}
 	}
 	
+	/**
+	 * Drops the connection and stops every thread the handler owns. The
+	 * received data listeners are unregistered and their delivery threads
+	 * end; register again after a later start().
+	 */
 	public synchronized void stop() {
 		Log.d(TAG, "stop");
 		
+		cancelReconnect();
+		cancelHeartbeat();
+		onReceivedDataListeners.close();
+		
 		if(mConnectThread != null) {
 			mConnectThread.cancel();
 			mConnectThread = null;
@@ -133,31 +218,257 @@ public class BTHandler {
 		setState(STATE_NONE);
 	}
 	
+	/**
+	 * Queues data as bulk output, waiting for room in the queue if need be.
+	 */
 	public void sendData(byte[] out) {
-		ConnectedThread r;
-		synchronized(this) {
-			if(mState != STATE_CONNECTED)
-				return;
-			r = mConnectedThread;
-		}
-		r.write(out);
+		sendData(out, 0, out.length, PrioritizedWriter.PRIORITY_BULK);
 	}
 	
 	public void sendData(int out) {
-		ConnectedThread r;
-		synchronized(this) {
-			if(mState != STATE_CONNECTED)
-				return;
-			r = mConnectedThread;
-		}
-		r.write(out);
+		sendData(out, PrioritizedWriter.PRIORITY_BULK);
+	}
+	
+	/**
+	 * Queues one message in the given class, waiting for room in its queue
+	 * if need be. Control messages overtake queued bulk output.
+	 *
+	 * @param priority PrioritizedWriter.PRIORITY_CONTROL or PRIORITY_BULK
+	 */
+	public void sendData(byte[] out, int offset, int length, int priority) {
+		ConnectedThread r = mConnectedThread;
+		if(r == null)
+			return;
+		r.write(out, offset, length, priority);
+	}
+	
+	public void sendData(int out, int priority) {
+		ConnectedThread r = mConnectedThread;
+		if(r == null)
+			return;
+		r.write(out, priority);
+	}
+	
+	/**
+	 * Queues one message in the given class unless its queue is full.
+	 *
+	 * @return false if the message was rejected or there is no connection
+	 */
+	public boolean offerData(byte[] out, int offset, int length, int priority) {
+		ConnectedThread r = mConnectedThread;
+		return r != null && r.offer(out, offset, length, priority);
+	}
+	
+	/**
+	 * Queues one message in the given class, waiting up to timeoutMs for
+	 * room in its queue.
+	 *
+	 * @return false if the message was rejected or there is no connection
+	 */
+	public boolean offerData(byte[] out, int offset, int length, int priority, long timeoutMs)
+			throws InterruptedException {
+		ConnectedThread r = mConnectedThread;
+		return r != null && r.offer(out, offset, length, priority, timeoutMs);
+	}
+	
+	/**
+	 * @return bytes of the priority class waiting in the writer, 0 without a
+	 * connection
+	 */
+	public int pending(int priority) {
+		ConnectedThread r = mConnectedThread;
+		return r == null ? 0 : r.pending(priority);
+	}
+	
+	/**
+	 * Sends the queued data now instead of waiting for the writer's flush
+	 * window to close.
+	 */
+	public void flush() {
+		ConnectedThread r = mConnectedThread;
+		if(r == null)
+			return;
+		r.flush();
 	}
 	
 	public void connectDevice(Intent data) {
 		String address = data.getExtras()
 				.getString(DeviceListActivity.EXTRA_DEVICE_ADDRESS);
-		BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
-		connect(device);
+		connectDevice(address);
+	}
+	
+	/**
+	 * Connects to the device and remembers it, a lost link to it is
+	 * reconnected while auto reconnect is on.
+	 */
+	public synchronized void connectDevice(String address) {
+		mLastAddress = address;
+		cancelReconnect();
+		mReconnectPolicy.reset();
+		connect(mBluetoothAdapter.getRemoteDevice(address));
+	}
+	
+	/**
+	 * @return the address of the device last asked for, or null
+	 */
+	public synchronized String getLastAddress() {
+		return mLastAddress;
+	}
+	
+	public synchronized void setAutoReconnect(boolean autoReconnect) {
+		mAutoReconnect = autoReconnect;
+		if(!autoReconnect)
+			cancelReconnect();
+	}
+	
+	public synchronized void setReconnectPolicy(ReconnectPolicy policy) {
+		mReconnectPolicy = policy;
+	}
+	
+	public ReconnectStats getReconnectStats() {
+		return mReconnectStats;
+	}
+	
+	// caller holds the lock
+	private void scheduleReconnect() {
+		if(!mAutoReconnect || mLastAddress == null || mReconnectPending)
+			return;
+		long delay = mReconnectPolicy.nextDelayMs();
+		Log.d(TAG, "reconnect to " + mLastAddress + " in " + delay + " ms");
+		mReconnectPending = true;
+		mReconnectTask = mTimer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				synchronized(BTHandler.this) {
+					if(!mReconnectPending)
+						return;
+					mReconnectPending = false;
+					mReconnectTask = null;
+					if(mState == STATE_CONNECTING || mState == STATE_CONNECTED)
+						return;
+					mReconnectStats.attempt();
+					connect(mBluetoothAdapter.getRemoteDevice(mLastAddress));
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+	
+	// caller holds the lock
+	private void cancelReconnect() {
+		mReconnectPending = false;
+		if(mReconnectTask != null) {
+			mReconnectTask.cancel(false);
+			mReconnectTask = null;
+		}
+	}
+	
+	// caller holds the lock
+	private void startHeartbeat(final ConnectedThread connection) {
+		cancelHeartbeat();
+		final long interval = mReconnectPolicy.getHeartbeatIntervalMs();
+		final long timeout = mReconnectPolicy.getHeartbeatTimeoutMs();
+		mHeartbeatTask = mTimer.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				long silentMs = (System.nanoTime() - connection.mmLastReceived) / 1000000L;
+				if(silentMs >= timeout) {
+					Log.w(TAG, "nothing received for " + silentMs + " ms, dropping the link");
+					mReconnectStats.linkStale();
+					connection.abort();
+				}
+				else if(silentMs >= interval) {
+					// never block here: on a dead link the writer hangs in the
+					// socket and only the abort() above gets us out; a full
+					// control queue simply counts as more silence
+					if(connection.offer(REPORT_VERSION, PrioritizedWriter.PRIORITY_CONTROL))
+						connection.flush();
+				}
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+	
+	// caller holds the lock
+	private void cancelHeartbeat() {
+		if(mHeartbeatTask != null) {
+			mHeartbeatTask.cancel(false);
+			mHeartbeatTask = null;
+		}
+	}
+	
+	/**
+	 * Connects to another board and keeps it as a session of its own, with
+	 * its own Serial and Arduino, next to the boards already connected. The
+	 * links of all sessions share the I/O threads of one SessionManager.
+	 * Returns right away; the session shows up in getSessions() once the
+	 * RFCOMM connect succeeded and is ready once its Arduino is set up.
+	 */
+	public void connectSession(final String address) {
+		ExecutorService connector;
+		synchronized(this) {
+			getSessionManager();
+			connector = mSessionConnector;
+		}
+		connector.execute(new Runnable() {
+			@Override
+			public void run() {
+				BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
+				BluetoothSocket socket;
+				try{
+					socket = device.createInsecureRfcommSocketToServiceRecord(MY_UUID);
+				}
+				catch(IOException e) {
+					Log.e(TAG, "create() failed for " + address, e);
+					return;
+				}
+				mBluetoothAdapter.cancelDiscovery();
+				try{
+					socket.connect();
+					getSessionManager().open(address, socket.getInputStream(),
+							socket.getOutputStream(), new SocketCloser(socket));
+				}
+				catch(IOException e) {
+					Log.e(TAG, "unable to connect session " + address, e);
+					try{
+						socket.close();
+					}
+					catch(IOException e2) {
+						Log.e(TAG, "unable to close() socket during connection failure", e2);
+					}
+				}
+			}
+		});
+	}
+	
+	public Session getSession(String address) {
+		SessionManager sessions = mSessions;
+		return sessions == null ? null : sessions.get(address);
+	}
+	
+	public void disconnectSession(String address) {
+		SessionManager sessions = mSessions;
+		if(sessions != null)
+			sessions.close(address);
+	}
+	
+	public synchronized SessionManager getSessionManager() {
+		if(mSessions == null) {
+			mSessions = new SessionManager(SessionManager.DEFAULT_IO_THREADS, SessionManager.DEFAULT_SETUP_THREADS,
+					Arduino.REPORTED_ANALOG_PINS, mReconnectPolicy);
+			mSessionConnector = Executors.newSingleThreadExecutor();
+		}
+		return mSessions;
+	}
+	
+	/**
+	 * Disconnects every session and stops their threads.
+	 */
+	public synchronized void stopSessions() {
+		if(mSessions == null)
+			return;
+		mSessionConnector.shutdownNow();
+		mSessions.shutdown();
+		mSessionConnector = null;
+		mSessions = null;
 	}
 	
 	private final Handler mHandler = new Handler() {
@@ -179,8 +490,6 @@ public class BTHandler {
 					break;
 				}
 				break;
-			case MESSAGE_WRITE:
-			case MESSAGE_READ:
 			case MESSAGE_DEVICE_NAME:
 				break;
 			case MESSAGE_TOAST:
@@ -199,11 +508,9 @@ public class BTHandler {
 	private synchronized void connect(BluetoothDevice device) {
 		Log.d(TAG, "#############connect to: " + device);
 		
-		if(mState == STATE_CONNECTING) {
-			if(mConnectedThread != null) {
-				mConnectThread.cancel();
-				mConnectThread = null;
-			}
+		if(mConnectThread != null) {
+			mConnectThread.cancel();
+			mConnectThread = null;
 		}
 		
 		if(mConnectedThread != null) {
@@ -237,6 +544,11 @@ public class BTHandler {
 		mConnectedThread = new ConnectedThread(socket);
 		mConnectedThread.start();
 		
+		cancelReconnect();
+		mReconnectPolicy.reset();
+		mReconnectStats.connected(System.currentTimeMillis());
+		startHeartbeat(mConnectedThread);
+		
 		Message msg = mHandler.obtainMessage(BTHandler.MESSAGE_DEVICE_NAME);
 		Bundle bundle = new Bundle();
 		bundle.putString(BTHandler.DEVICE_NAME, "ngongo");
@@ -254,17 +566,24 @@ public class BTHandler {
 		msg.setData(bundle);
 		mHandler.sendMessage(msg);
 		
-		BTHandler.this.start();
+		synchronized(this) {
+			BTHandler.this.start();
+			scheduleReconnect();
+		}
 	}
 	
 	private void connectionLost() {
+		mReconnectStats.linkLost(System.currentTimeMillis());
 		Message msg = mHandler.obtainMessage(BTHandler.MESSAGE_TOAST);
 		Bundle bundle = new Bundle();
 		bundle.putString(BTHandler.TOAST, "Device connection was lost");
 		msg.setData(bundle);
 		mHandler.sendMessage(msg);
 		
-		BTHandler.this.start();
+		synchronized(this) {
+			BTHandler.this.start();
+			scheduleReconnect();
+		}
 	}
 	
 	private class AcceptThread extends Thread {
@@ -333,6 +652,7 @@ public class BTHandler {
 	
 	private class ConnectThread extends Thread {
 		private final BluetoothSocket mmSocket;
+		private volatile boolean mmCanceled = false;
 		private final BluetoothDevice mmDevice;
 		
 		public ConnectThread(BluetoothDevice device) {
@@ -364,18 +684,29 @@ public class BTHandler {
 				catch(IOException e2) {
 					Log.e(TAG, "unable to close() socket during connection failure", e2);
 				}
-				connectionFailed();
+				if(!mmCanceled)
+					connectionFailed();
 				return;
 			}
 			
 			synchronized(BTHandler.this) {
+				// stop() or a newer connect() took over while the socket connected
+				if(mmCanceled || mConnectThread != this) {
+					try{
+						mmSocket.close();
+					}
+					catch(IOException e) {
+						Log.e(TAG, "unable to close() socket of a canceled connect", e);
+					}
+					return;
+				}
 				mConnectThread = null;
+				connected(mmSocket, mmDevice);
 			}
-			
-			connected(mmSocket, mmDevice);
 		}
 		
 		public void cancel() {
+			mmCanceled = true;
 			try{
 				mmSocket.close();
 			}
@@ -389,7 +720,10 @@ public class BTHandler {
 		private final BluetoothSocket mmSocket;
 		private final InputStream mmInStream;
 		private final OutputStream mmOutStream;
-		ByteBuffer bBuffer = null;
+		private final PrioritizedWriter mmWriter;
+		private volatile boolean mmCanceled = false;
+		// System.nanoTime() of the last read, for the heartbeat
+		volatile long mmLastReceived = System.nanoTime();
 		
 		public ConnectedThread(BluetoothSocket socket) {
 			Log.d(TAG, "create ConnectedThread");
@@ -407,58 +741,75 @@ public class BTHandler {
 		
 			mmInStream = tmpIn;
 			mmOutStream = tmpOut;
+			mmWriter = new PrioritizedWriter(mmOutStream);
+			mmWriter.instrument(mMetrics, "bt_out");
 		}
 	
 		public void run() {
 			Log.d(TAG, "Begin mConnectedThread");
+			mmWriter.start();
+			// reused for every read, listeners only see it during their callback
 			byte[] buffer = new byte[1024];
 			int bytes;
 			
-			while(true) {
-				try{
-					while((bytes = mmInStream.read(buffer)) != -1) {
-						bBuffer = ByteBuffer.allocate(bytes);
-						bBuffer.put(buffer, 0, bytes);
-						
-						notifyListeners(bBuffer.array());
-					}
-					
-					mHandler.obtainMessage(BTHandler.MESSAGE_READ, bytes, -1, buffer)
-						.sendToTarget();
+			try{
+				while((bytes = mmInStream.read(buffer)) != -1) {
+					mmLastReceived = System.nanoTime();
+					mBytesIn.add(bytes);
+					mReads.increment();
+					mChunkBytes.record(bytes);
+					onReceivedDataListeners.dispatch(buffer, 0, bytes);
 				}
-				catch(IOException e) {
+				if(!mmCanceled) {
+					Log.d(TAG, "disconnected, end of stream");
+					connectionLost();
+				}
+			}
+			catch(IOException e) {
+				if(!mmCanceled) {
 					Log.d(TAG, "disconnected", e);
 					connectionLost();
-					BTHandler.this.start();
-					break;
 				}
 			}
 		}
 		
-		public void write(byte[] buffer) {
-			try{
-				mmOutStream.write(buffer);
-				mHandler.obtainMessage(BTHandler.MESSAGE_WRITE, -1, -1, buffer)
-					.sendToTarget();
-			}
-			catch(IOException e) {
-				Log.e(TAG,  "Exception during write", e);
-			}
+		public void write(byte[] buffer, int offset, int length, int priority) {
+			mmWriter.write(buffer, offset, length, priority);
 		}
 		
-		public void write(int oneByte) {
-			try{
-				Log.d(TAG, "sending data " + Integer.toString(oneByte));
-				mmOutStream.write(oneByte);
-				mHandler.obtainMessage(BTHandler.MESSAGE_WRITE, -1, -1, oneByte)
-					.sendToTarget();
-			}
-			catch(IOException e) {
-				Log.e(TAG,  "Exception during write", e);
-			}
+		public void write(int oneByte, int priority) {
+			mmWriter.write(oneByte, priority);
+		}
+		
+		public boolean offer(int oneByte, int priority) {
+			return mmWriter.offer(oneByte, priority);
+		}
+		
+		public boolean offer(byte[] buffer, int offset, int length, int priority) {
+			return mmWriter.offer(buffer, offset, length, priority);
+		}
+		
+		public boolean offer(byte[] buffer, int offset, int length, int priority, long timeoutMs)
+				throws InterruptedException {
+			return mmWriter.offer(buffer, offset, length, priority, timeoutMs);
+		}
+		
+		public int pending(int priority) {
+			return mmWriter.pending(priority);
+		}
+		
+		public void flush() {
+			mmWriter.flush();
 		}
 		
 		public void cancel() {
+			mmCanceled = true;
+			abort();
+		}
+		
+		// closes the socket without canceling, the reader reports the lost link
+		void abort() {
+			mmWriter.close();
 			try{
 				mmSocket.close();
 			}
@@ -466,12 +817,6 @@ public class BTHandler {
 				Log.e(TAG, "close() of connect socket failed", e);
 			}
 		}
-		
-		private synchronized void notifyListeners(byte[] data) {
-			for(OnReceivedDataListener l : onReceivedDataListeners) {
-				l.receivedData(data.clone());
-			}
-		}
 	}
 	
 	public void addOnReceivedDataListener(OnReceivedDataListener listener) {
@@ -481,4 +826,25 @@ public class BTHandler {
 	public boolean removeOnReceivedDataListener(OnReceivedDataListener listener) {
 		return onReceivedDataListeners.remove(listener);
 	}
+	
+	/**
+	 * @return the queue of the listener with its lag and drop counts, or null
+	 */
+	public ReceivedDataDispatcher.Subscription getSubscription(OnReceivedDataListener listener) {
+		return onReceivedDataListeners.getSubscription(listener);
+	}
+	
+	// BluetoothSocket only implements Closeable from API 17 on
+	private static class SocketCloser implements Closeable {
+		private final BluetoothSocket socket;
+		
+		SocketCloser(BluetoothSocket socket) {
+			this.socket = socket;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			socket.close();
+		}
+	}
 }
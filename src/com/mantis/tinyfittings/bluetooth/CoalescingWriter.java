@@ -0,0 +1,265 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.bluetooth;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import android.util.Log;
+
+import com.mantis.tinyfittings.metrics.Counter;
+import com.mantis.tinyfittings.metrics.Gauge;
+import com.mantis.tinyfittings.metrics.Histogram;
+import com.mantis.tinyfittings.metrics.MetricsRegistry;
+
+/**
+ * Writer thread that sits between the senders and a socket's OutputStream.
+ *
+ * Any number of threads queue bytes without taking a lock: they claim a range
+ * of a byte ring with a CAS on the tail, copy their bytes in and mark each
+ * slot as published. The writer thread collects everything that is published
+ * and hands it to the stream in one write() call once flushSize bytes are
+ * pending, flushDelay has passed since the first pending byte, or flush() was
+ * called. A Firmata command that is queued as three single bytes goes out as
+ * one socket write together with whatever else was sent in the same window.
+ */
+public class CoalescingWriter extends Thread {
+
+	private static final String TAG = "tinyFittings CoalescingWriter";
+
+	public static final int DEFAULT_CAPACITY = 4096;
+	public static final int DEFAULT_FLUSH_SIZE = 128;
+	public static final long DEFAULT_FLUSH_DELAY_MS = 2;
+
+	private static final long[] WRITE_MICROS_BOUNDS = Histogram.powersOfTwo(16, 1 << 20);
+
+	private final OutputStream mmOutStream;
+
+	private final byte[] data;
+	private final int mask;
+	private final int shift;
+	// per slot: lap of the position last published into it, plus one
+	private final AtomicIntegerArray published;
+
+	private final AtomicLong tail = new AtomicLong(); // next position to claim
+	private volatile long head = 0; // next position to write out, only moved by this thread
+
+	private final int flushSize;
+	private final long flushDelayNanos;
+	private final byte[] chunk;
+
+	private volatile boolean flushRequested = false;
+
+	// unregistered until instrument() is called, then shared under their names
+	private Counter bytesOut = new Counter();
+	private Counter writes = new Counter();
+	private Histogram writeMicros = new Histogram(WRITE_MICROS_BOUNDS);
+	private volatile boolean running = true;
+
+	public CoalescingWriter(OutputStream out) {
+		this(out, DEFAULT_CAPACITY, DEFAULT_FLUSH_SIZE, DEFAULT_FLUSH_DELAY_MS);
+	}
+
+	/**
+	 * @param out the stream all queued bytes end up in
+	 * @param capacity size of the queue in bytes, rounded up to a power of two
+	 * @param flushSize number of pending bytes that triggers a write right away
+	 * @param flushDelayMs longest time a byte waits for more bytes to join it
+	 */
+	public CoalescingWriter(OutputStream out, int capacity, int flushSize, long flushDelayMs) {
+		if(capacity <= 0 || capacity > (1 << 30))
+			throw new IllegalArgumentException("capacity out of range: " + capacity);
+		int size = 1;
+		int bits = 0;
+		while(size < capacity) {
+			size <<= 1;
+			bits++;
+		}
+		mmOutStream = out;
+		data = new byte[size];
+		mask = size - 1;
+		shift = bits;
+		published = new AtomicIntegerArray(size);
+		this.flushSize = Math.max(1, Math.min(flushSize, size));
+		this.flushDelayNanos = flushDelayMs * 1000000L;
+		chunk = new byte[size];
+		setName("WriterThread");
+		setDaemon(true);
+	}
+
+	public void write(int oneByte) {
+		long t = claim(1);
+		if(t < 0)
+			return;
+		data[(int) (t & mask)] = (byte) oneByte;
+		publish(t, 1);
+	}
+
+	public void write(byte[] buffer) {
+		write(buffer, 0, buffer.length);
+	}
+
+	public void write(byte[] buffer, int offset, int length) {
+		while(length > 0) {
+			int n = Math.min(length, data.length);
+			long t = claim(n);
+			if(t < 0)
+				return;
+			for(int i = 0; i < n; i++)
+				data[(int) ((t + i) & mask)] = buffer[offset + i];
+			publish(t, n);
+			offset += n;
+			length -= n;
+		}
+	}
+
+	/**
+	 * Counts into the registry: prefix_bytes and prefix_writes, the duration
+	 * of each stream write in prefix_write_micros, and the queue depth as the
+	 * gauge prefix_queue_bytes. Call before start().
+	 */
+	public void instrument(MetricsRegistry registry, String prefix) {
+		bytesOut = registry.counter(prefix + "_bytes");
+		writes = registry.counter(prefix + "_writes");
+		writeMicros = registry.histogram(prefix + "_write_micros", WRITE_MICROS_BOUNDS);
+		registry.gauge(prefix + "_queue_bytes", new Gauge() {
+			@Override
+			public long value() {
+				return pending();
+			}
+		});
+	}
+
+	/**
+	 * Makes the writer send everything queued so far without waiting for the
+	 * flush window to close. Does not wait for the socket write itself.
+	 */
+	public void flush() {
+		flushRequested = true;
+		LockSupport.unpark(this);
+	}
+
+	/**
+	 * @return the number of bytes queued but not yet handed to the stream
+	 */
+	public int pending() {
+		return (int) (tail.get() - head);
+	}
+
+	/**
+	 * Stops the writer thread, bytes still queued are discarded. Writes from
+	 * then on are dropped, including those waiting for room in a full queue.
+	 */
+	public void close() {
+		running = false;
+		LockSupport.unpark(this);
+	}
+
+	@Override
+	public void run() {
+		Log.d(TAG, "Begin WriterThread");
+		long firstPendingAt = 0;
+
+		while(running) {
+			long h = head;
+			int pending = (int) (tail.get() - h);
+			if(pending == 0) {
+				firstPendingAt = 0;
+				LockSupport.park(this);
+				continue;
+			}
+
+			if(!flushRequested && pending < flushSize) {
+				long now = System.nanoTime();
+				if(firstPendingAt == 0)
+					firstPendingAt = now;
+				long remaining = firstPendingAt + flushDelayNanos - now;
+				if(remaining > 0) {
+					LockSupport.parkNanos(this, remaining);
+					continue;
+				}
+			}
+
+			int n = collect(h);
+			if(n == 0) {
+				// a sender claimed space but is still copying
+				Thread.yield();
+				continue;
+			}
+			flushRequested = false;
+			firstPendingAt = 0;
+
+			try{
+				long start = System.nanoTime();
+				mmOutStream.write(chunk, 0, n);
+				writeMicros.record((System.nanoTime() - start) / 1000);
+				bytesOut.add(n);
+				writes.increment();
+			}
+			catch(IOException e) {
+				Log.e(TAG, "Exception during write", e);
+			}
+			head = h + n;
+		}
+		Log.d(TAG, "End WriterThread");
+	}
+
+	// returns the first claimed position, or -1 once the writer is closed
+	private long claim(int n) {
+		while(true) {
+			if(!running)
+				return -1;
+			long t = tail.get();
+			if(t + n - head > data.length) {
+				// queue full, let the writer drain it
+				LockSupport.unpark(this);
+				LockSupport.parkNanos(100000);
+				continue;
+			}
+			if(tail.compareAndSet(t, t + n))
+				return t;
+		}
+	}
+
+	private void publish(long t, int n) {
+		for(int i = 0; i < n; i++) {
+			long position = t + i;
+			published.lazySet((int) (position & mask), (int) (position >>> shift) + 1);
+		}
+		long pending = t + n - head;
+		if(pending == n || pending >= flushSize)
+			LockSupport.unpark(this);
+	}
+
+	// copies the published bytes following h into chunk
+	private int collect(long h) {
+		long t = tail.get();
+		int n = 0;
+		while(h + n < t) {
+			long position = h + n;
+			int slot = (int) (position & mask);
+			if(published.get(slot) != (int) (position >>> shift) + 1)
+				break;
+			chunk[n++] = data[slot];
+		}
+		return n;
+	}
+}
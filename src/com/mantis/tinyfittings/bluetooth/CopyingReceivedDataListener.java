@@ -0,0 +1,34 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.bluetooth;
+
+/**
+ * For listeners that hold on to received data after the callback returns.
+ * Each chunk is copied into a new array of its own before it is handed over.
+ */
+public abstract class CopyingReceivedDataListener implements OnReceivedDataListener {
+
+	@Override
+	public final void receivedData(byte[] buffer, int offset, int length, long receiveTime) {
+		byte[] copy = new byte[length];
+		System.arraycopy(buffer, offset, copy, 0, length);
+		receivedData(copy);
+	}
+
+	public abstract void receivedData(byte[] data);
+}
@@ -17,7 +17,18 @@
 */
 package com.mantis.tinyfittings.bluetooth;
 
+/**
+ * Receives the chunks read from the Bluetooth socket. The array is the
+ * reader's buffer or, behind a {@link ReceivedDataDispatcher}, the listener's
+ * queue, and is overwritten afterwards, so it may only be accessed for the
+ * duration of the call. Listeners that need to keep the data must copy it,
+ * or extend {@link CopyingReceivedDataListener}.
+ */
 public interface OnReceivedDataListener {
 
-	void receivedData(byte[] b);
+	/**
+	 * @param receiveTime System.nanoTime() at which the chunk was read from
+	 * the link, before any queue it waited in on the way here
+	 */
+	void receivedData(byte[] buffer, int offset, int length, long receiveTime);
 }
@@ -0,0 +1,448 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.bluetooth;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import android.util.Log;
+
+import com.mantis.tinyfittings.metrics.Counter;
+import com.mantis.tinyfittings.metrics.Gauge;
+import com.mantis.tinyfittings.metrics.Histogram;
+import com.mantis.tinyfittings.metrics.MetricsRegistry;
+
+/**
+ * Writer thread with two bounded queues in front of a socket's OutputStream:
+ * PRIORITY_CONTROL for commands that must not wait (pin modes, digital
+ * levels, configuration) and PRIORITY_BULK for everything else (PWM streams,
+ * text). Each write is kept whole as one message, so a control message never
+ * lands inside a bulk one; order is kept within a class only.
+ *
+ * The writer hands all queued control messages and up to flushSize bytes of
+ * bulk messages to the stream in one write() call, control first. A control
+ * message therefore waits for at most one such write, however much bulk
+ * output is queued. Control messages go out at once; bulk messages are
+ * coalesced as by {@link CoalescingWriter}, until flushSize bytes are
+ * queued, the oldest has waited flushDelay or flush() is called.
+ *
+ * offer() rejects a message that does not fit into its queue, the timed
+ * offer() waits for room up to a timeout, write() waits as long as it takes.
+ */
+public class PrioritizedWriter extends Thread {
+
+	private static final String TAG = "tinyFittings PrioritizedWriter";
+
+	public static final int PRIORITY_CONTROL = 0;
+	public static final int PRIORITY_BULK = 1;
+
+	public static final int DEFAULT_CONTROL_CAPACITY = 512;
+	public static final int DEFAULT_BULK_CAPACITY = 4096;
+
+	private static final long[] WRITE_MICROS_BOUNDS = Histogram.powersOfTwo(16, 1 << 20);
+	private static final long[] WAIT_MICROS_BOUNDS = Histogram.powersOfTwo(16, 1 << 24); // to 16 s
+
+	private final OutputStream mmOutStream;
+	private final int flushSize;
+	private final long flushDelayNanos;
+	private final byte[] chunk;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Lane[] lanes;
+	// guarded by lock
+	private boolean flushRequested = false;
+	private boolean running = true;
+
+	// unregistered until instrument() is called, then shared under their names
+	private Counter bytesOut = new Counter();
+	private Counter writes = new Counter();
+	private Histogram writeMicros = new Histogram(WRITE_MICROS_BOUNDS);
+
+	public PrioritizedWriter(OutputStream out) {
+		this(out, DEFAULT_CONTROL_CAPACITY, DEFAULT_BULK_CAPACITY,
+				CoalescingWriter.DEFAULT_FLUSH_SIZE, CoalescingWriter.DEFAULT_FLUSH_DELAY_MS);
+	}
+
+	/**
+	 * @param out the stream all queued bytes end up in
+	 * @param controlCapacity size of the control queue in bytes
+	 * @param bulkCapacity size of the bulk queue in bytes
+	 * @param flushSize number of queued bulk bytes that triggers a write right
+	 * away, and the most bulk bytes in one write
+	 * @param flushDelayMs longest time a bulk message waits for more to join it
+	 */
+	public PrioritizedWriter(OutputStream out, int controlCapacity, int bulkCapacity,
+			int flushSize, long flushDelayMs) {
+		if(controlCapacity <= 0 || bulkCapacity <= 0)
+			throw new IllegalArgumentException("capacities must be positive");
+		mmOutStream = out;
+		lanes = new Lane[] { new Lane(controlCapacity), new Lane(bulkCapacity) };
+		this.flushSize = Math.max(1, Math.min(flushSize, bulkCapacity));
+		this.flushDelayNanos = flushDelayMs * 1000000L;
+		chunk = new byte[controlCapacity + bulkCapacity];
+		setName("WriterThread");
+		setDaemon(true);
+	}
+
+	/**
+	 * Queues a message unless its queue is full.
+	 *
+	 * @return false if the message was rejected
+	 */
+	public boolean offer(byte[] buffer, int offset, int length, int priority) {
+		Lane lane = lane(priority, length);
+		lock.lock();
+		try {
+			if(!running || !lane.fits(length)) {
+				lane.rejected.increment();
+				return false;
+			}
+			enqueue(lane, buffer, offset, length);
+			return true;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Queues a single byte message unless its queue is full.
+	 *
+	 * @return false if the byte was rejected
+	 */
+	public boolean offer(int oneByte, int priority) {
+		Lane lane = lane(priority, 1);
+		lock.lock();
+		try {
+			if(!running || !lane.fits(1)) {
+				lane.rejected.increment();
+				return false;
+			}
+			boolean wasIdle = isIdle();
+			lane.put(oneByte, System.nanoTime());
+			signalWriter(lane, wasIdle);
+			return true;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Queues a message, waiting up to timeoutMs for room in its queue.
+	 *
+	 * @return false if the message was rejected
+	 */
+	public boolean offer(byte[] buffer, int offset, int length, int priority, long timeoutMs)
+			throws InterruptedException {
+		Lane lane = lane(priority, length);
+		long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+		lock.lockInterruptibly();
+		try {
+			while(running && !lane.fits(length)) {
+				if(remaining <= 0)
+					break;
+				remaining = lane.notFull.awaitNanos(remaining);
+			}
+			if(!running || !lane.fits(length)) {
+				lane.rejected.increment();
+				return false;
+			}
+			enqueue(lane, buffer, offset, length);
+			return true;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Queues a message, waiting as long as it takes for room. Messages
+	 * written after close() are discarded.
+	 */
+	public void write(byte[] buffer, int offset, int length, int priority) {
+		Lane lane = lane(priority, length);
+		lock.lock();
+		try {
+			while(running && !lane.fits(length))
+				lane.notFull.awaitUninterruptibly();
+			if(running)
+				enqueue(lane, buffer, offset, length);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public void write(int oneByte, int priority) {
+		Lane lane = lane(priority, 1);
+		lock.lock();
+		try {
+			while(running && !lane.fits(1))
+				lane.notFull.awaitUninterruptibly();
+			if(running) {
+				boolean wasIdle = isIdle();
+				lane.put(oneByte, System.nanoTime());
+				signalWriter(lane, wasIdle);
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Counts into the registry: prefix_bytes and prefix_writes, the duration
+	 * of each stream write in prefix_write_micros and the bytes queued in
+	 * prefix_queue_bytes, as CoalescingWriter does. Per class, with class
+	 * control or bulk: the time from queueing to the stream write in
+	 * prefix_class_wait_micros, rejected offers in prefix_class_rejected and
+	 * the queue depth in prefix_class_queue_bytes. Call before start().
+	 */
+	public void instrument(MetricsRegistry registry, String prefix) {
+		bytesOut = registry.counter(prefix + "_bytes");
+		writes = registry.counter(prefix + "_writes");
+		writeMicros = registry.histogram(prefix + "_write_micros", WRITE_MICROS_BOUNDS);
+		registry.gauge(prefix + "_queue_bytes", new Gauge() {
+			@Override
+			public long value() {
+				return pending(PRIORITY_CONTROL) + pending(PRIORITY_BULK);
+			}
+		});
+		String[] names = { "_control", "_bulk" };
+		for(int i = 0; i < lanes.length; i++) {
+			final int priority = i;
+			lanes[i].waitMicros = registry.histogram(prefix + names[i] + "_wait_micros", WAIT_MICROS_BOUNDS);
+			lanes[i].rejected = registry.counter(prefix + names[i] + "_rejected");
+			registry.gauge(prefix + names[i] + "_queue_bytes", new Gauge() {
+				@Override
+				public long value() {
+					return pending(priority);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Makes the writer send everything queued so far without waiting for the
+	 * flush window to close. Does not wait for the socket write itself.
+	 */
+	public void flush() {
+		lock.lock();
+		try {
+			flushRequested = true;
+			notEmpty.signal();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of bytes in the queue of the class not yet handed to the stream
+	 */
+	public int pending(int priority) {
+		lock.lock();
+		try {
+			return lanes[priority].count;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public long getRejected(int priority) {
+		return lanes[priority].rejected.get();
+	}
+
+	/**
+	 * Stops the writer thread, messages still queued are discarded and
+	 * waiting writers return.
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			running = false;
+			notEmpty.signal();
+			for(int i = 0; i < lanes.length; i++)
+				lanes[i].notFull.signalAll();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void run() {
+		Log.d(TAG, "Begin WriterThread");
+		Lane control = lanes[PRIORITY_CONTROL];
+		Lane bulk = lanes[PRIORITY_BULK];
+
+		while(true) {
+			int n;
+			lock.lock();
+			try {
+				if(!running)
+					break;
+				if(control.count == 0) {
+					if(bulk.count == 0) {
+						flushRequested = false;
+						notEmpty.awaitUninterruptibly();
+						continue;
+					}
+					if(!flushRequested && bulk.count < flushSize) {
+						long remaining = bulk.headTime() + flushDelayNanos - System.nanoTime();
+						if(remaining > 0) {
+							notEmpty.awaitNanos(remaining);
+							continue;
+						}
+					}
+				}
+				long now = System.nanoTime();
+				n = control.drain(chunk, 0, control.count, now);
+				n = bulk.drain(chunk, n, flushSize, now);
+				flushRequested = false;
+			}
+			catch(InterruptedException e) {
+				continue;
+			}
+			finally {
+				lock.unlock();
+			}
+
+			try{
+				long start = System.nanoTime();
+				mmOutStream.write(chunk, 0, n);
+				writeMicros.record((System.nanoTime() - start) / 1000);
+				bytesOut.add(n);
+				writes.increment();
+			}
+			catch(IOException e) {
+				Log.e(TAG, "Exception during write", e);
+			}
+		}
+		Log.d(TAG, "End WriterThread");
+	}
+
+	private Lane lane(int priority, int length) {
+		if(priority != PRIORITY_CONTROL && priority != PRIORITY_BULK)
+			throw new IllegalArgumentException("unknown priority: " + priority);
+		Lane lane = lanes[priority];
+		if(length > lane.data.length)
+			throw new IllegalArgumentException("message of " + length + " bytes exceeds the queue");
+		return lane;
+	}
+
+	// called with lock held
+	private void enqueue(Lane lane, byte[] buffer, int offset, int length) {
+		if(length == 0)
+			return;
+		boolean wasIdle = isIdle();
+		lane.put(buffer, offset, length, System.nanoTime());
+		signalWriter(lane, wasIdle);
+	}
+
+	private boolean isIdle() {
+		return lanes[PRIORITY_CONTROL].count == 0 && lanes[PRIORITY_BULK].count == 0;
+	}
+
+	// wakes the writer if the new message is due before the writer would wake up
+	private void signalWriter(Lane lane, boolean wasIdle) {
+		if(wasIdle || lane == lanes[PRIORITY_CONTROL] || lane.count >= flushSize)
+			notEmpty.signal();
+	}
+
+	/**
+	 * One priority class: a byte ring and a ring of message lengths and queue
+	 * times, guarded by the writer's lock.
+	 */
+	private final class Lane {
+		final byte[] data;
+		final int[] lengths;
+		final long[] times;
+		final Condition notFull = lock.newCondition();
+		int head = 0; // first queued byte
+		int count = 0; // queued bytes
+		int firstMessage = 0;
+		int messages = 0;
+
+		Counter rejected = new Counter();
+		Histogram waitMicros = new Histogram(WAIT_MICROS_BOUNDS);
+
+		Lane(int capacity) {
+			data = new byte[capacity];
+			lengths = new int[capacity];
+			times = new long[capacity];
+		}
+
+		boolean fits(int length) {
+			return data.length - count >= length;
+		}
+
+		long headTime() {
+			return times[firstMessage];
+		}
+
+		void put(int oneByte, long now) {
+			data[(head + count) % data.length] = (byte) oneByte;
+			count++;
+			add(1, now);
+		}
+
+		void put(byte[] buffer, int offset, int length, long now) {
+			int tail = (head + count) % data.length;
+			int first = Math.min(length, data.length - tail);
+			System.arraycopy(buffer, offset, data, tail, first);
+			System.arraycopy(buffer, offset + first, data, 0, length - first);
+			count += length;
+			add(length, now);
+		}
+
+		private void add(int length, long now) {
+			int slot = (firstMessage + messages) % lengths.length;
+			lengths[slot] = length;
+			times[slot] = now;
+			messages++;
+		}
+
+		// moves whole messages, at least one and then up to max bytes, into
+		// out at offset; returns the new offset
+		int drain(byte[] out, int offset, int max, long now) {
+			int n = 0;
+			while(messages > 0 && (n == 0 || n + lengths[firstMessage] <= max)) {
+				n += lengths[firstMessage];
+				waitMicros.record((now - times[firstMessage]) / 1000);
+				firstMessage = (firstMessage + 1) % lengths.length;
+				messages--;
+			}
+			if(n == 0)
+				return offset;
+			int first = Math.min(n, data.length - head);
+			System.arraycopy(data, head, out, offset, first);
+			System.arraycopy(data, 0, out, offset + first, n - first);
+			head = (head + n) % data.length;
+			count -= n;
+			notFull.signalAll();
+			return offset + n;
+		}
+	}
+}
@@ -0,0 +1,323 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.bluetooth;
+
+import java.util.concurrent.locks.LockSupport;
+
+import android.util.Log;
+
+import com.mantis.tinyfittings.metrics.Gauge;
+import com.mantis.tinyfittings.metrics.MetricsRegistry;
+
+/**
+ * Hands the chunks read from the socket to the registered listeners without
+ * running them on the reader thread.
+ *
+ * Every listener gets a Subscription: a byte ring of its own and a thread
+ * that delivers from it. dispatch() only takes the receive time, copies the
+ * chunk into each ring, publishes the new write sequence and returns to
+ * read(); it never waits. A
+ * listener that falls behind by more than its ring loses the chunks that do
+ * not fit, counted in its drop metrics, while the other listeners and the
+ * reader go on unaffected.
+ *
+ * A listener sees the stream in order, with each chunk's receive time as
+ * taken in dispatch(), so its timestamps do not include the queueing. A chunk
+ * that wraps around the end of the ring arrives in two slices, and a slice is
+ * only valid during the call. A listener that throws is logged and removed.
+ * Subscriptions are a copy-on-write array, so dispatching takes no lock.
+ */
+public class ReceivedDataDispatcher {
+
+	private static final String TAG = "tinyFittings ReceivedDataDispatcher";
+
+	public static final int DEFAULT_QUEUE_SIZE = 8192;
+
+	private static final int IDLE_SPINS = 16;
+
+	// chunks a listener may fall behind; a ring of small chunks drops at this
+	private static final int CHUNK_SLOTS = 256;
+
+	private static final Subscription[] NO_SUBSCRIPTIONS = new Subscription[0];
+
+	private volatile Subscription[] subscriptions = NO_SUBSCRIPTIONS;
+	private final int queueSize;
+
+	public ReceivedDataDispatcher() {
+		this(DEFAULT_QUEUE_SIZE);
+	}
+
+	/**
+	 * @param queueSize bytes each listener may fall behind, rounded up to a
+	 * power of two
+	 */
+	public ReceivedDataDispatcher(int queueSize) {
+		if(queueSize <= 0 || queueSize > (1 << 30))
+			throw new IllegalArgumentException("queue size out of range: " + queueSize);
+		this.queueSize = queueSize;
+	}
+
+	public synchronized Subscription add(OnReceivedDataListener listener) {
+		Subscription subscription = new Subscription(this, listener, queueSize);
+		Subscription[] current = subscriptions;
+		Subscription[] updated = new Subscription[current.length + 1];
+		System.arraycopy(current, 0, updated, 0, current.length);
+		updated[current.length] = subscription;
+		subscriptions = updated;
+		subscription.start();
+		return subscription;
+	}
+
+	public synchronized boolean remove(OnReceivedDataListener listener) {
+		Subscription[] current = subscriptions;
+		for(int i = 0; i < current.length; i++) {
+			if(current[i].listener == listener) {
+				Subscription[] updated = new Subscription[current.length - 1];
+				System.arraycopy(current, 0, updated, 0, i);
+				System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+				subscriptions = updated;
+				current[i].close();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the subscription of the listener, or null
+	 */
+	public Subscription getSubscription(OnReceivedDataListener listener) {
+		Subscription[] current = subscriptions;
+		for(int i = 0; i < current.length; i++) {
+			if(current[i].listener == listener)
+				return current[i];
+		}
+		return null;
+	}
+
+	public Subscription[] getSubscriptions() {
+		return subscriptions.clone();
+	}
+
+	/**
+	 * Registers gauges over all listeners: the largest current lag as
+	 * prefix_max_lag_bytes, the drops as prefix_dropped_bytes and
+	 * prefix_dropped_chunks.
+	 */
+	public void instrument(MetricsRegistry registry, String prefix) {
+		registry.gauge(prefix + "_max_lag_bytes", new Gauge() {
+			@Override
+			public long value() {
+				Subscription[] current = subscriptions;
+				long max = 0;
+				for(int i = 0; i < current.length; i++)
+					max = Math.max(max, current[i].getLag());
+				return max;
+			}
+		});
+		registry.gauge(prefix + "_dropped_bytes", new Gauge() {
+			@Override
+			public long value() {
+				Subscription[] current = subscriptions;
+				long sum = 0;
+				for(int i = 0; i < current.length; i++)
+					sum += current[i].getDroppedBytes();
+				return sum;
+			}
+		});
+		registry.gauge(prefix + "_dropped_chunks", new Gauge() {
+			@Override
+			public long value() {
+				Subscription[] current = subscriptions;
+				long sum = 0;
+				for(int i = 0; i < current.length; i++)
+					sum += current[i].getDroppedChunks();
+				return sum;
+			}
+		});
+	}
+
+	/**
+	 * Queues a chunk for every listener. Called by the reader thread only.
+	 */
+	public void dispatch(byte[] data, int offset, int length) {
+		long receiveTime = System.nanoTime();
+		Subscription[] current = subscriptions;
+		for(int i = 0; i < current.length; i++)
+			current[i].offer(data, offset, length, receiveTime);
+	}
+
+	/**
+	 * Stops the delivery threads; data still queued is discarded.
+	 */
+	public synchronized void close() {
+		Subscription[] current = subscriptions;
+		subscriptions = NO_SUBSCRIPTIONS;
+		for(int i = 0; i < current.length; i++)
+			current[i].close();
+	}
+
+	/**
+	 * One listener's queue and delivery thread, with its lag and drop metrics.
+	 * The ring has one producer, the reader, and one consumer, the delivery
+	 * thread; each side only moves its own sequence. Next to the bytes, a
+	 * smaller ring holds where each chunk ends and when it was received.
+	 */
+	public static final class Subscription {
+
+		private final ReceivedDataDispatcher dispatcher;
+		private final OnReceivedDataListener listener;
+		private final byte[] ring;
+		private final int mask;
+		private final long[] chunkEnds = new long[CHUNK_SLOTS];
+		private final long[] chunkTimes = new long[CHUNK_SLOTS];
+		private final Thread thread;
+
+		private volatile long written = 0; // moved by the reader only
+		private volatile long read = 0; // moved by the delivery thread only
+		private long chunksWritten = 0; // reader only
+		private volatile long chunksRead = 0; // moved by the delivery thread only
+		private volatile boolean parked = false;
+		private volatile boolean running = true;
+
+		// written by the reader only
+		private volatile long droppedBytes = 0;
+		private volatile long droppedChunks = 0;
+		private volatile int maxLag = 0;
+
+		Subscription(ReceivedDataDispatcher dispatcher, OnReceivedDataListener listener, int queueSize) {
+			int size = 1;
+			while(size < queueSize)
+				size <<= 1;
+			this.dispatcher = dispatcher;
+			this.listener = listener;
+			this.ring = new byte[size];
+			this.mask = size - 1;
+			thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					deliver();
+				}
+			}, "ReceivedDataDelivery");
+			thread.setDaemon(true);
+		}
+
+		void start() {
+			thread.start();
+		}
+
+		void offer(byte[] data, int offset, int length, long receiveTime) {
+			long w = written;
+			int lag = (int) (w - read);
+			if(length > ring.length - lag || chunksWritten - chunksRead == CHUNK_SLOTS) {
+				droppedBytes += length;
+				droppedChunks++;
+				return;
+			}
+			int start = (int) (w & mask);
+			int first = Math.min(length, ring.length - start);
+			System.arraycopy(data, offset, ring, start, first);
+			if(first < length)
+				System.arraycopy(data, offset + first, ring, 0, length - first);
+			int slot = (int) (chunksWritten & (CHUNK_SLOTS - 1));
+			chunkEnds[slot] = w + length;
+			chunkTimes[slot] = receiveTime;
+			chunksWritten++;
+			written = w + length; // publishes the chunk record too
+			if(lag + length > maxLag)
+				maxLag = lag + length;
+			if(parked)
+				LockSupport.unpark(thread);
+		}
+
+		void close() {
+			running = false;
+			LockSupport.unpark(thread);
+		}
+
+		private void deliver() {
+			Log.d(TAG, "Begin delivery to " + listener);
+			int idle = 0;
+			while(running) {
+				long r = read;
+				long w = written;
+				if(r == w) {
+					// a few yields first, a park costs the reader an unpark per chunk
+					if(++idle < IDLE_SPINS) {
+						Thread.yield();
+						continue;
+					}
+					parked = true;
+					if(written == r && running)
+						LockSupport.park(this);
+					parked = false;
+					continue;
+				}
+				idle = 0;
+				long c = chunksRead;
+				int slot = (int) (c & (CHUNK_SLOTS - 1));
+				long end = chunkEnds[slot];
+				int start = (int) (r & mask);
+				int n = (int) Math.min(end - r, ring.length - start);
+				try{
+					listener.receivedData(ring, start, n, chunkTimes[slot]);
+				}
+				catch(RuntimeException e) {
+					Log.e(TAG, "listener " + listener + " failed, removing it", e);
+					dispatcher.remove(listener);
+					break;
+				}
+				if(r + n == end)
+					chunksRead = c + 1;
+				read = r + n;
+			}
+			Log.d(TAG, "End delivery to " + listener);
+		}
+
+		public OnReceivedDataListener getListener() {
+			return listener;
+		}
+
+		public int getCapacity() {
+			return ring.length;
+		}
+
+		/**
+		 * @return bytes queued but not yet delivered
+		 */
+		public int getLag() {
+			return (int) (written - read);
+		}
+
+		public int getMaxLag() {
+			return maxLag;
+		}
+
+		public long getDeliveredBytes() {
+			return read;
+		}
+
+		public long getDroppedBytes() {
+			return droppedBytes;
+		}
+
+		public long getDroppedChunks() {
+			return droppedChunks;
+		}
+	}
+}
@@ -0,0 +1,97 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.bluetooth;
+
+import java.util.Random;
+
+/**
+ * When BTHandler tries again after a lost or failed connection, and when it
+ * gives up on a link that went silent.
+ *
+ * The delay before attempt n is drawn from [d/2, d] with
+ * d = min(maxDelay, baseDelay * 2^n), so a board that is out of range is not
+ * hammered, and several phones that lost the same board do not retry in
+ * lockstep. A successful connection starts over at baseDelay.
+ *
+ * While connected, the link is pinged with REPORT_VERSION once nothing was
+ * received for heartbeatInterval, and given up once nothing was received
+ * for heartbeatTimeout. A board that is streaming is never pinged.
+ */
+public class ReconnectPolicy {
+
+	public static final long DEFAULT_BASE_DELAY_MS = 250;
+	public static final long DEFAULT_MAX_DELAY_MS = 30000;
+	public static final long DEFAULT_HEARTBEAT_INTERVAL_MS = 1000;
+	public static final long DEFAULT_HEARTBEAT_TIMEOUT_MS = 3000;
+
+	private final long baseDelayMs;
+	private final long maxDelayMs;
+	private final long heartbeatIntervalMs;
+	private final long heartbeatTimeoutMs;
+	private final Random random = new Random();
+	private int attempt = 0;
+
+	public ReconnectPolicy() {
+		this(DEFAULT_BASE_DELAY_MS, DEFAULT_MAX_DELAY_MS,
+				DEFAULT_HEARTBEAT_INTERVAL_MS, DEFAULT_HEARTBEAT_TIMEOUT_MS);
+	}
+
+	public ReconnectPolicy(long baseDelayMs, long maxDelayMs,
+			long heartbeatIntervalMs, long heartbeatTimeoutMs) {
+		if(baseDelayMs <= 0 || maxDelayMs < baseDelayMs)
+			throw new IllegalArgumentException("need 0 < baseDelayMs <= maxDelayMs");
+		if(heartbeatIntervalMs <= 0 || heartbeatTimeoutMs < heartbeatIntervalMs)
+			throw new IllegalArgumentException("need 0 < heartbeatIntervalMs <= heartbeatTimeoutMs");
+		this.baseDelayMs = baseDelayMs;
+		this.maxDelayMs = maxDelayMs;
+		this.heartbeatIntervalMs = heartbeatIntervalMs;
+		this.heartbeatTimeoutMs = heartbeatTimeoutMs;
+	}
+
+	/**
+	 * @return the delay before the next attempt, growing with every call
+	 * until reset()
+	 */
+	public synchronized long nextDelayMs() {
+		long delay = baseDelayMs << Math.min(attempt, 30);
+		if(delay <= 0 || delay > maxDelayMs)
+			delay = maxDelayMs;
+		attempt++;
+		long half = delay / 2;
+		return delay - half + (long) (random.nextDouble() * (half + 1));
+	}
+
+	public synchronized void reset() {
+		attempt = 0;
+	}
+
+	/**
+	 * @return attempts since the last reset()
+	 */
+	public synchronized int getAttempts() {
+		return attempt;
+	}
+
+	public long getHeartbeatIntervalMs() {
+		return heartbeatIntervalMs;
+	}
+
+	public long getHeartbeatTimeoutMs() {
+		return heartbeatTimeoutMs;
+	}
+}
@@ -0,0 +1,107 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.bluetooth;
+
+/**
+ * Counts outages of the BTHandler link and how long getting it back took.
+ * An outage starts when an established link is lost, or found stale by the
+ * heartbeat, and ends with the next established connection.
+ */
+public class ReconnectStats {
+
+	private long outageStart = -1;
+	private long outages = 0;
+	private long staleLinks = 0;
+	private long attempts = 0;
+	private long reconnects = 0;
+	private long lastReconnectMs = 0;
+	private long maxReconnectMs = 0;
+	private long totalReconnectMs = 0;
+
+	synchronized void linkLost(long now) {
+		if(outageStart >= 0)
+			return;
+		outageStart = now;
+		outages++;
+	}
+
+	synchronized void linkStale() {
+		staleLinks++;
+	}
+
+	synchronized void attempt() {
+		attempts++;
+	}
+
+	synchronized void connected(long now) {
+		if(outageStart < 0)
+			return;
+		long took = now - outageStart;
+		outageStart = -1;
+		reconnects++;
+		lastReconnectMs = took;
+		if(took > maxReconnectMs)
+			maxReconnectMs = took;
+		totalReconnectMs += took;
+	}
+
+	/**
+	 * @return how long the current outage lasts, 0 while connected
+	 */
+	public synchronized long getCurrentOutageMs() {
+		return outageStart < 0 ? 0 : System.currentTimeMillis() - outageStart;
+	}
+
+	public synchronized long getOutages() {
+		return outages;
+	}
+
+	/**
+	 * @return links given up because the heartbeat got no answer
+	 */
+	public synchronized long getStaleLinks() {
+		return staleLinks;
+	}
+
+	public synchronized long getAttempts() {
+		return attempts;
+	}
+
+	public synchronized long getReconnects() {
+		return reconnects;
+	}
+
+	public synchronized long getLastReconnectMs() {
+		return lastReconnectMs;
+	}
+
+	public synchronized long getMaxReconnectMs() {
+		return maxReconnectMs;
+	}
+
+	public synchronized double getMeanReconnectMs() {
+		return reconnects == 0 ? 0 : (double) totalReconnectMs / reconnects;
+	}
+
+	/**
+	 * @return downtime of all finished outages
+	 */
+	public synchronized long getTotalDowntimeMs() {
+		return totalReconnectMs;
+	}
+}
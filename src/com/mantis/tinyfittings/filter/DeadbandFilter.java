@@ -0,0 +1,56 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.filter;
+
+/**
+ * Passes a reading on only when it differs from the last value passed on by
+ * more than the deadband, and reports NONE otherwise. A sensor that drifts
+ * slowly or jitters by a few counts then produces output only when it
+ * really moved. Because the comparison is against the last output and not
+ * the last reading, noise around a threshold cannot make the output flap
+ * (hysteresis of the deadband width).
+ */
+public class DeadbandFilter implements Filter {
+
+	private final int deadband;
+	private int last;
+	private boolean started = false;
+
+	/**
+	 * @param deadband largest change that is still suppressed, in counts
+	 */
+	public DeadbandFilter(int deadband) {
+		if(deadband < 0)
+			throw new IllegalArgumentException("deadband must not be negative");
+		this.deadband = deadband;
+	}
+
+	@Override
+	public int apply(int value) {
+		if(started && Math.abs(value - last) <= deadband)
+			return NONE;
+		last = value;
+		started = true;
+		return value;
+	}
+
+	@Override
+	public void reset() {
+		started = false;
+	}
+}
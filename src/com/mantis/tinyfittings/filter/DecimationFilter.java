@@ -0,0 +1,49 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.filter;
+
+/**
+ * Passes on every n-th reading, starting with the first, and reports NONE
+ * for the others. Put an average in front to keep what the skipped
+ * readings had to say.
+ */
+public class DecimationFilter implements Filter {
+
+	private final int n;
+	private int skipped;
+
+	public DecimationFilter(int n) {
+		if(n <= 0)
+			throw new IllegalArgumentException("n must be positive");
+		this.n = n;
+		this.skipped = n - 1;
+	}
+
+	@Override
+	public int apply(int value) {
+		if(++skipped < n)
+			return NONE;
+		skipped = 0;
+		return value;
+	}
+
+	@Override
+	public void reset() {
+		skipped = n - 1;
+	}
+}
@@ -0,0 +1,56 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.filter;
+
+/**
+ * Exponential moving average: each reading moves the output by alpha of the
+ * distance to it. Smaller alpha smooths more and follows changes later; the
+ * output settles within about 1 / alpha readings.
+ */
+public class ExponentialFilter implements Filter {
+
+	private final double alpha;
+	private double average;
+	private boolean started = false;
+
+	/**
+	 * @param alpha weight of the newest reading, above 0 and at most 1
+	 */
+	public ExponentialFilter(double alpha) {
+		if(!(alpha > 0 && alpha <= 1))
+			throw new IllegalArgumentException("alpha out of range: " + alpha);
+		this.alpha = alpha;
+	}
+
+	@Override
+	public int apply(int value) {
+		if(started) {
+			average += alpha * (value - average);
+		}
+		else {
+			average = value;
+			started = true;
+		}
+		return (int) Math.round(average);
+	}
+
+	@Override
+	public void reset() {
+		started = false;
+	}
+}
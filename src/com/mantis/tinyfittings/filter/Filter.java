@@ -0,0 +1,45 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.filter;
+
+/**
+ * One stage of a {@link FilterChain}, working on the readings of a single
+ * channel. A filter keeps its state in primitive fields and arrays allocated
+ * up front, so filtering a reading allocates nothing.
+ *
+ * Filters are not thread safe; a chain is run by the decoding thread only.
+ */
+public interface Filter {
+
+	/**
+	 * Returned by apply() when the reading produces no output, for example
+	 * when it is skipped by decimation or lies inside a deadband. Readings
+	 * are never negative, so this is never a real value.
+	 */
+	int NONE = Integer.MIN_VALUE;
+
+	/**
+	 * @return the filtered value, or NONE if nothing is to be passed on
+	 */
+	int apply(int value);
+
+	/**
+	 * Forgets everything seen so far, as after a reconnect.
+	 */
+	void reset();
+}
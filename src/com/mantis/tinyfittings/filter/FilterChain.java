@@ -0,0 +1,67 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.filter;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Filters run one after another on the readings of one channel, each on
+ * the output of the one before. A stage that reports NONE ends the run for
+ * that reading. The chain counts readings in and values out, so the effect
+ * of a deadband or decimation on the event volume can be read off.
+ *
+ * Typical chains: a median of 3 against spikes, then an average, then a
+ * deadband of a few counts so that only real changes travel on.
+ */
+public class FilterChain implements Filter {
+
+	private final Filter[] filters;
+
+	// written by the decoding thread only; lazySet spares the fence of a
+	// volatile store, a good part of the cost of a short chain
+	private final AtomicLong inputs = new AtomicLong();
+	private final AtomicLong outputs = new AtomicLong();
+
+	public FilterChain(Filter... filters) {
+		this.filters = filters.clone();
+	}
+
+	@Override
+	public int apply(int value) {
+		inputs.lazySet(inputs.get() + 1);
+		for(int i = 0; i < filters.length && value != NONE; i++)
+			value = filters[i].apply(value);
+		if(value != NONE)
+			outputs.lazySet(outputs.get() + 1);
+		return value;
+	}
+
+	@Override
+	public void reset() {
+		for(int i = 0; i < filters.length; i++)
+			filters[i].reset();
+	}
+
+	public long getInputs() {
+		return inputs.get();
+	}
+
+	public long getOutputs() {
+		return outputs.get();
+	}
+}
@@ -0,0 +1,70 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.filter;
+
+/**
+ * Median of the last n readings, which removes single spikes without
+ * blurring steps the way an average does. The window is kept in arrival
+ * order in a ring and in value order in a sorted array; each reading
+ * replaces the oldest one in both, at a cost of O(n). Meant for small n.
+ */
+public class MedianFilter implements Filter {
+
+	private final int[] window;
+	private final int[] sorted;
+	private int next = 0;
+	private int count = 0;
+
+	public MedianFilter(int n) {
+		if(n <= 0)
+			throw new IllegalArgumentException("window must be positive");
+		window = new int[n];
+		sorted = new int[n];
+	}
+
+	@Override
+	public int apply(int value) {
+		int i;
+		if(count == window.length) {
+			// take the oldest reading out of the sorted array
+			int oldest = window[next];
+			i = 0;
+			while(sorted[i] != oldest)
+				i++;
+			System.arraycopy(sorted, i + 1, sorted, i, count - i - 1);
+			count--;
+		}
+		window[next] = value;
+		next = (next + 1) % window.length;
+		// insert, moving larger readings up
+		i = count;
+		while(i > 0 && sorted[i - 1] > value) {
+			sorted[i] = sorted[i - 1];
+			i--;
+		}
+		sorted[i] = value;
+		count++;
+		return sorted[count / 2];
+	}
+
+	@Override
+	public void reset() {
+		next = 0;
+		count = 0;
+	}
+}
@@ -0,0 +1,55 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.filter;
+
+/**
+ * Mean of the last n readings, kept as a running sum over a ring of them.
+ * Until n readings arrived it is the mean of those seen.
+ */
+public class MovingAverageFilter implements Filter {
+
+	private final int[] window;
+	private int next = 0;
+	private int count = 0;
+	private long sum = 0;
+
+	public MovingAverageFilter(int n) {
+		if(n <= 0)
+			throw new IllegalArgumentException("window must be positive");
+		window = new int[n];
+	}
+
+	@Override
+	public int apply(int value) {
+		if(count == window.length)
+			sum -= window[next];
+		else
+			count++;
+		window[next] = value;
+		sum += value;
+		next = (next + 1) % window.length;
+		return (int) ((sum + count / 2) / count);
+	}
+
+	@Override
+	public void reset() {
+		next = 0;
+		count = 0;
+		sum = 0;
+	}
+}
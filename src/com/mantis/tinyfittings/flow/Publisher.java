@@ -0,0 +1,32 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.flow;
+
+/**
+ * A source of items for any number of {@link Subscriber}s, each taking items
+ * only as fast as it asks for them. Shaped after java.util.concurrent.Flow
+ * and Reactive Streams, which the Android releases we target do not ship.
+ */
+public interface Publisher<T> {
+
+	/**
+	 * Adds a subscriber. It is handed its {@link Subscription} through
+	 * onSubscribe() and receives nothing before it calls request().
+	 */
+	void subscribe(Subscriber<? super T> subscriber);
+}
@@ -0,0 +1,34 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.flow;
+
+/**
+ * Receives the items of a {@link Publisher}. The methods of one subscriber
+ * are called from one thread at a time, in the order onSubscribe(), any
+ * number of onNext(), then at most one of onError() and onComplete().
+ */
+public interface Subscriber<T> {
+
+	void onSubscribe(Subscription subscription);
+
+	void onNext(T item);
+
+	void onError(Throwable error);
+
+	void onComplete();
+}
@@ -0,0 +1,37 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.flow;
+
+/**
+ * The link between a {@link Publisher} and one of its subscribers.
+ */
+public interface Subscription {
+
+	/**
+	 * Allows the publisher to deliver n more items. Demand adds up and is
+	 * capped at Long.MAX_VALUE, which means unbounded. n must be positive;
+	 * otherwise the subscriber gets onError() and the subscription ends.
+	 */
+	void request(long n);
+
+	/**
+	 * Ends the subscription. A few items already on their way may still
+	 * arrive.
+	 */
+	void cancel();
+}
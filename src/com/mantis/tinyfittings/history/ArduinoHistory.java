@@ -0,0 +1,67 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.history;
+
+import com.mantis.tinyfittings.arduino.OnArduinoEventListener;
+
+/**
+ * Records the inputs of an Arduino into one {@link SampleHistory} per analog
+ * pin and one for the digital port, whose values are the 14 pin bits.
+ * Register it with Arduino.addOnArduinoEventListener(); timestamps are the
+ * event times converted to milliseconds.
+ */
+public class ArduinoHistory implements OnArduinoEventListener {
+
+	private final SampleHistory[] analog;
+	private final SampleHistory digital;
+
+	public ArduinoHistory(int analogPins) {
+		this(analogPins, SampleHistory.DEFAULT_CAPACITY,
+				SampleHistory.DEFAULT_TIER_WIDTHS_MS, SampleHistory.DEFAULT_TIER_CAPACITIES);
+	}
+
+	public ArduinoHistory(int analogPins, int capacity, long[] tierWidthsMs, int[] tierCapacities) {
+		analog = new SampleHistory[analogPins];
+		for(int pin = 0; pin < analogPins; pin++)
+			analog[pin] = new SampleHistory(capacity, tierWidthsMs, tierCapacities);
+		digital = new SampleHistory(capacity, tierWidthsMs, tierCapacities);
+	}
+
+	public SampleHistory getAnalog(int pin) {
+		return analog[pin];
+	}
+
+	public SampleHistory getDigital() {
+		return digital;
+	}
+
+	@Override
+	public void analogEvent(int pin, int value, long timestamp) {
+		if(pin < analog.length)
+			analog[pin].append(timestamp / 1000000L, value);
+	}
+
+	@Override
+	public void digitalEvent(int port, int pins, long timestamp) {
+		digital.append(timestamp / 1000000L, pins);
+	}
+
+	@Override
+	public void versionEvent(int majorVersion, int minorVersion, long timestamp) {
+	}
+}
@@ -0,0 +1,87 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.history;
+
+/**
+ * Downsampled buckets copied out of a {@link SampleHistory} tier. A caller
+ * keeps one instance and reuses it for every query.
+ */
+public class Buckets {
+
+	private final long[] starts;
+	private final int[] mins;
+	private final int[] maxs;
+	private final long[] sums;
+	private final int[] counts;
+	private int size = 0;
+
+	public Buckets(int capacity) {
+		starts = new long[capacity];
+		mins = new int[capacity];
+		maxs = new int[capacity];
+		sums = new long[capacity];
+		counts = new int[capacity];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int capacity() {
+		return starts.length;
+	}
+
+	/**
+	 * @return the timestamp at which bucket i begins
+	 */
+	public long getStart(int i) {
+		return starts[i];
+	}
+
+	public int getMin(int i) {
+		return mins[i];
+	}
+
+	public int getMax(int i) {
+		return maxs[i];
+	}
+
+	public double getMean(int i) {
+		return (double) sums[i] / counts[i];
+	}
+
+	/**
+	 * @return the number of samples in bucket i
+	 */
+	public int getCount(int i) {
+		return counts[i];
+	}
+
+	void clear() {
+		size = 0;
+	}
+
+	void add(long start, int min, int max, long sum, int count) {
+		starts[size] = start;
+		mins[size] = min;
+		maxs[size] = max;
+		sums[size] = sum;
+		counts[size] = count;
+		size++;
+	}
+}
@@ -0,0 +1,244 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.history;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Bounded history of one input: a ring of (timestamp, value) records plus
+ * downsampling tiers, all kept in direct buffers outside the Java heap, so
+ * minutes of samples at full rate put no load on the garbage collector.
+ *
+ * append() costs O(1): it writes one record and folds the value into the
+ * current bucket of every tier. Timestamps are milliseconds on any clock
+ * that does not go backwards; a timestamp older than the previous one is
+ * recorded as the previous one.
+ *
+ * One thread appends; any thread may query. Both take the instance lock,
+ * which the appending thread holds only for the O(1) update.
+ */
+public class SampleHistory {
+
+	public static final int DEFAULT_CAPACITY = 65536;
+	public static final long[] DEFAULT_TIER_WIDTHS_MS = { 1000, 60000 };
+	public static final int[] DEFAULT_TIER_CAPACITIES = { 3600, 1440 };
+
+	private static final int RECORD_SIZE = 12; // long timestamp, int value
+
+	private final ByteBuffer records;
+	private final int capacity;
+	private long written = 0;
+	private long newest = Long.MIN_VALUE;
+
+	private final Tier[] tiers;
+
+	public SampleHistory() {
+		this(DEFAULT_CAPACITY, DEFAULT_TIER_WIDTHS_MS, DEFAULT_TIER_CAPACITIES);
+	}
+
+	/**
+	 * @param capacity samples kept at full rate
+	 * @param tierWidthsMs bucket width of each downsampling tier
+	 * @param tierCapacities buckets kept by each tier
+	 */
+	public SampleHistory(int capacity, long[] tierWidthsMs, int[] tierCapacities) {
+		if(capacity <= 0 || tierWidthsMs.length != tierCapacities.length)
+			throw new IllegalArgumentException("capacity must be positive, one capacity per tier");
+		this.capacity = capacity;
+		this.records = ByteBuffer.allocateDirect(capacity * RECORD_SIZE).order(ByteOrder.nativeOrder());
+		this.tiers = new Tier[tierWidthsMs.length];
+		for(int i = 0; i < tiers.length; i++)
+			tiers[i] = new Tier(tierWidthsMs[i], tierCapacities[i]);
+	}
+
+	public synchronized void append(long timestamp, int value) {
+		if(timestamp < newest)
+			timestamp = newest;
+		newest = timestamp;
+		int position = (int) (written % capacity) * RECORD_SIZE;
+		records.putLong(position, timestamp);
+		records.putInt(position + 8, value);
+		written++;
+		for(int i = 0; i < tiers.length; i++)
+			tiers[i].add(timestamp, value);
+	}
+
+	/**
+	 * @return the number of samples kept at full rate
+	 */
+	public synchronized int size() {
+		return (int) Math.min(written, capacity);
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the timestamp of the oldest sample kept, Long.MIN_VALUE if empty
+	 */
+	public synchronized long getOldestTimestamp() {
+		return written == 0 ? Long.MIN_VALUE : timestampAt(0);
+	}
+
+	/**
+	 * @return the timestamp of the latest sample, Long.MIN_VALUE if empty
+	 */
+	public synchronized long getNewestTimestamp() {
+		return newest;
+	}
+
+	/**
+	 * Copies the samples with from <= timestamp < to, oldest first, until the
+	 * arrays are full.
+	 *
+	 * @return the number of samples copied
+	 */
+	public synchronized int query(long from, long to, long[] timestamps, int[] values) {
+		int size = size();
+		int max = Math.min(timestamps.length, values.length);
+		int n = 0;
+		for(int i = firstIndexAtOrAfter(from, size); i < size && n < max; i++, n++) {
+			int position = physical(i) * RECORD_SIZE;
+			long timestamp = records.getLong(position);
+			if(timestamp >= to)
+				break;
+			timestamps[n] = timestamp;
+			values[n] = records.getInt(position + 8);
+		}
+		return n;
+	}
+
+	public int getTierCount() {
+		return tiers.length;
+	}
+
+	public long getTierWidth(int tier) {
+		return tiers[tier].width;
+	}
+
+	/**
+	 * Copies the buckets of a tier that start in from <= start < to, oldest
+	 * first, until buckets is full. The newest bucket may still be filling.
+	 *
+	 * @return the number of buckets copied
+	 */
+	public synchronized int queryTier(int tier, long from, long to, Buckets buckets) {
+		return tiers[tier].query(from, to, buckets);
+	}
+
+	private long timestampAt(int index) {
+		return records.getLong(physical(index) * RECORD_SIZE);
+	}
+
+	private int physical(int index) {
+		return (int) ((written - size() + index) % capacity);
+	}
+
+	// binary search, the timestamps never decrease
+	private int firstIndexAtOrAfter(long from, int size) {
+		int low = 0;
+		int high = size;
+		while(low < high) {
+			int mid = (low + high) >>> 1;
+			if(timestampAt(mid) < from)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * Ring of fixed width buckets holding min, max, sum and count, so the
+	 * mean of a bucket is exact.
+	 */
+	private static final class Tier {
+
+		private static final int BUCKET_SIZE = 28; // long start, int min, int max, long sum, int count
+
+		final long width;
+		private final int capacity;
+		private final ByteBuffer buckets;
+		private long written = 0;
+		private long currentStart = Long.MIN_VALUE;
+
+		Tier(long width, int capacity) {
+			if(width <= 0 || capacity <= 0)
+				throw new IllegalArgumentException("tier width and capacity must be positive");
+			this.width = width;
+			this.capacity = capacity;
+			this.buckets = ByteBuffer.allocateDirect(capacity * BUCKET_SIZE).order(ByteOrder.nativeOrder());
+		}
+
+		void add(long timestamp, int value) {
+			long start = timestamp - mod(timestamp, width);
+			if(start != currentStart) {
+				int position = (int) (written % capacity) * BUCKET_SIZE;
+				buckets.putLong(position, start);
+				buckets.putInt(position + 8, value);
+				buckets.putInt(position + 12, value);
+				buckets.putLong(position + 16, value);
+				buckets.putInt(position + 24, 1);
+				written++;
+				currentStart = start;
+				return;
+			}
+			int position = (int) ((written - 1) % capacity) * BUCKET_SIZE;
+			if(value < buckets.getInt(position + 8))
+				buckets.putInt(position + 8, value);
+			if(value > buckets.getInt(position + 12))
+				buckets.putInt(position + 12, value);
+			buckets.putLong(position + 16, buckets.getLong(position + 16) + value);
+			buckets.putInt(position + 24, buckets.getInt(position + 24) + 1);
+		}
+
+		int query(long from, long to, Buckets out) {
+			out.clear();
+			int size = (int) Math.min(written, capacity);
+			int low = 0;
+			int high = size;
+			while(low < high) {
+				int mid = (low + high) >>> 1;
+				if(buckets.getLong(physical(mid, size) * BUCKET_SIZE) < from)
+					low = mid + 1;
+				else
+					high = mid;
+			}
+			for(int i = low; i < size && out.size() < out.capacity(); i++) {
+				int position = physical(i, size) * BUCKET_SIZE;
+				long start = buckets.getLong(position);
+				if(start >= to)
+					break;
+				out.add(start, buckets.getInt(position + 8), buckets.getInt(position + 12),
+						buckets.getLong(position + 16), buckets.getInt(position + 24));
+			}
+			return out.size();
+		}
+
+		private int physical(int index, int size) {
+			return (int) ((written - size + index) % capacity);
+		}
+
+		private static long mod(long a, long b) {
+			long m = a % b;
+			return m < 0 ? m + b : m;
+		}
+	}
+}
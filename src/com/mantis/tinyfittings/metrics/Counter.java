@@ -0,0 +1,53 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A count that many threads add to without contending for one memory
+ * location: each thread adds to one of STRIPES cells, picked by its thread
+ * id, and get() sums the cells. The cells are a cache line apart.
+ */
+public final class Counter {
+
+	private static final int STRIPES = 8; // a power of two
+	private static final int PADDING = 8; // longs per cell, 64 bytes
+
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+	public void increment() {
+		add(1);
+	}
+
+	public void add(long n) {
+		int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+		cells.getAndAdd(stripe * PADDING, n);
+	}
+
+	/**
+	 * @return the sum of all adds; adds running concurrently may or may not
+	 * be included
+	 */
+	public long get() {
+		long sum = 0;
+		for(int i = 0; i < STRIPES; i++)
+			sum += cells.get(i * PADDING);
+		return sum;
+	}
+}
@@ -0,0 +1,88 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of recorded values over fixed buckets. Bucket i counts the
+ * values up to bounds[i] that did not fit into bucket i - 1; one more bucket
+ * takes everything above the last bound. Recording is a binary search and
+ * three atomic adds, and never allocates.
+ */
+public final class Histogram {
+
+	private final long[] bounds;
+	private final AtomicLongArray counts;
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+	/**
+	 * @param bounds inclusive upper bounds of the buckets, ascending
+	 */
+	public Histogram(long[] bounds) {
+		for(int i = 1; i < bounds.length; i++) {
+			if(bounds[i] <= bounds[i - 1])
+				throw new IllegalArgumentException("bounds must ascend");
+		}
+		this.bounds = bounds.clone();
+		this.counts = new AtomicLongArray(bounds.length + 1);
+	}
+
+	/**
+	 * @return bounds first, 2 * first, 4 * first ... up to and including last
+	 */
+	public static long[] powersOfTwo(long first, long last) {
+		if(first <= 0 || last < first)
+			throw new IllegalArgumentException("need 0 < first <= last");
+		int n = 1;
+		for(long b = first; b < last; b <<= 1)
+			n++;
+		long[] bounds = new long[n];
+		long b = first;
+		for(int i = 0; i < n; i++, b <<= 1)
+			bounds[i] = Math.min(b, last);
+		return bounds;
+	}
+
+	public void record(long value) {
+		int low = 0;
+		int high = bounds.length;
+		while(low < high) {
+			int mid = (low + high) >>> 1;
+			if(bounds[mid] < value)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		counts.incrementAndGet(low);
+		sum.addAndGet(value);
+		long m;
+		while(value > (m = max.get()) && !max.compareAndSet(m, value)) {
+			// retry
+		}
+	}
+
+	public HistogramSnapshot snapshot() {
+		long[] c = new long[counts.length()];
+		for(int i = 0; i < c.length; i++)
+			c[i] = counts.get(i);
+		return new HistogramSnapshot(bounds, c, sum.get(), max.get());
+	}
+}
@@ -0,0 +1,90 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.metrics;
+
+/**
+ * The bucket counts of a {@link Histogram} at one point in time.
+ */
+public final class HistogramSnapshot {
+
+	private final long[] bounds;
+	private final long[] counts;
+	private final long count;
+	private final long sum;
+	private final long max;
+
+	HistogramSnapshot(long[] bounds, long[] counts, long sum, long max) {
+		this.bounds = bounds;
+		this.counts = counts;
+		long n = 0;
+		for(int i = 0; i < counts.length; i++)
+			n += counts[i];
+		this.count = n;
+		this.sum = sum;
+		this.max = n == 0 ? 0 : max;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getSum() {
+		return sum;
+	}
+
+	public long getMax() {
+		return max;
+	}
+
+	public double getMean() {
+		return count == 0 ? 0 : (double) sum / count;
+	}
+
+	public int getBucketCount() {
+		return counts.length;
+	}
+
+	/**
+	 * @return the upper bound of bucket i, Long.MAX_VALUE for the last one
+	 */
+	public long getBound(int i) {
+		return i < bounds.length ? bounds[i] : Long.MAX_VALUE;
+	}
+
+	public long getBucket(int i) {
+		return counts[i];
+	}
+
+	/**
+	 * @param quantile between 0 and 1
+	 * @return the upper bound of the bucket holding the quantile, or the
+	 * maximum if that is the overflow bucket
+	 */
+	public long getPercentile(double quantile) {
+		if(count == 0)
+			return 0;
+		long rank = (long) Math.ceil(quantile * count);
+		long seen = 0;
+		for(int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if(seen >= rank && counts[i] > 0)
+				return i < bounds.length ? Math.min(bounds[i], max) : max;
+		}
+		return max;
+	}
+}
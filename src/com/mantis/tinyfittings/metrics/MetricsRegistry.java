@@ -0,0 +1,93 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.metrics;
+
+import java.util.TreeMap;
+
+/**
+ * Named counters, histograms and gauges. Components look their metrics up
+ * once and keep the references, so the hot paths never touch the registry;
+ * a lookup or a snapshot takes its lock.
+ *
+ * Names follow the Prometheus conventions, e.g. bt_in_bytes, so that
+ * {@link MetricsSnapshot#toText()} can be scraped as is.
+ */
+public class MetricsRegistry {
+
+	private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+
+	private final TreeMap<String, Counter> counters = new TreeMap<String, Counter>();
+	private final TreeMap<String, Histogram> histograms = new TreeMap<String, Histogram>();
+	private final TreeMap<String, Gauge> gauges = new TreeMap<String, Gauge>();
+
+	/**
+	 * @return the registry shared by the whole app
+	 */
+	public static MetricsRegistry getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * @return the counter registered under name, created if there is none
+	 */
+	public synchronized Counter counter(String name) {
+		Counter counter = counters.get(name);
+		if(counter == null) {
+			counter = new Counter();
+			counters.put(name, counter);
+		}
+		return counter;
+	}
+
+	/**
+	 * @return the histogram registered under name, created with bounds if
+	 * there is none
+	 */
+	public synchronized Histogram histogram(String name, long[] bounds) {
+		Histogram histogram = histograms.get(name);
+		if(histogram == null) {
+			histogram = new Histogram(bounds);
+			histograms.put(name, histogram);
+		}
+		return histogram;
+	}
+
+	/**
+	 * Registers a gauge, replacing the one registered under name before.
+	 */
+	public synchronized void gauge(String name, Gauge gauge) {
+		gauges.put(name, gauge);
+	}
+
+	public synchronized void remove(String name) {
+		counters.remove(name);
+		histograms.remove(name);
+		gauges.remove(name);
+	}
+
+	public synchronized MetricsSnapshot snapshot() {
+		MetricsSnapshot snapshot = new MetricsSnapshot(System.currentTimeMillis());
+		for(String name : counters.keySet())
+			snapshot.putCounter(name, counters.get(name).get());
+		for(String name : gauges.keySet())
+			snapshot.putGauge(name, gauges.get(name).value());
+		for(String name : histograms.keySet())
+			snapshot.putHistogram(name, histograms.get(name).snapshot());
+		return snapshot;
+	}
+}
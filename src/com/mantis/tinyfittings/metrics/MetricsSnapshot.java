@@ -0,0 +1,119 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The values of all metrics of a registry at one point in time, with a text
+ * export in the Prometheus exposition format.
+ */
+public final class MetricsSnapshot {
+
+	private final long timestamp;
+	private final TreeMap<String, Long> counters = new TreeMap<String, Long>();
+	private final TreeMap<String, Long> gauges = new TreeMap<String, Long>();
+	private final TreeMap<String, HistogramSnapshot> histograms = new TreeMap<String, HistogramSnapshot>();
+
+	MetricsSnapshot(long timestamp) {
+		this.timestamp = timestamp;
+	}
+
+	void putCounter(String name, long value) {
+		counters.put(name, value);
+	}
+
+	void putGauge(String name, long value) {
+		gauges.put(name, value);
+	}
+
+	void putHistogram(String name, HistogramSnapshot histogram) {
+		histograms.put(name, histogram);
+	}
+
+	/**
+	 * @return when the snapshot was taken, in milliseconds since the epoch
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * @return the counter's value, 0 if there is no such counter
+	 */
+	public long getCounter(String name) {
+		Long value = counters.get(name);
+		return value == null ? 0 : value;
+	}
+
+	/**
+	 * @return the gauge's value, 0 if there is no such gauge
+	 */
+	public long getGauge(String name) {
+		Long value = gauges.get(name);
+		return value == null ? 0 : value;
+	}
+
+	/**
+	 * @return the histogram, or null
+	 */
+	public HistogramSnapshot getHistogram(String name) {
+		return histograms.get(name);
+	}
+
+	/**
+	 * @return how fast the counter grew per second since the earlier snapshot
+	 */
+	public double rate(MetricsSnapshot earlier, String counter) {
+		long ms = timestamp - earlier.timestamp;
+		if(ms <= 0)
+			return 0;
+		return (getCounter(counter) - earlier.getCounter(counter)) * 1000.0 / ms;
+	}
+
+	public String toText() {
+		StringBuilder text = new StringBuilder(1024);
+		for(Map.Entry<String, Long> e : counters.entrySet()) {
+			text.append("# TYPE ").append(e.getKey()).append(" counter\n");
+			text.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+		}
+		for(Map.Entry<String, Long> e : gauges.entrySet()) {
+			text.append("# TYPE ").append(e.getKey()).append(" gauge\n");
+			text.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+		}
+		for(Map.Entry<String, HistogramSnapshot> e : histograms.entrySet()) {
+			String name = e.getKey();
+			HistogramSnapshot h = e.getValue();
+			text.append("# TYPE ").append(name).append(" histogram\n");
+			long cumulative = 0;
+			for(int i = 0; i < h.getBucketCount(); i++) {
+				cumulative += h.getBucket(i);
+				text.append(name).append("_bucket{le=\"");
+				if(i < h.getBucketCount() - 1)
+					text.append(h.getBound(i));
+				else
+					text.append("+Inf");
+				text.append("\"} ").append(cumulative).append('\n');
+			}
+			text.append(name).append("_sum ").append(h.getSum()).append('\n');
+			text.append(name).append("_count ").append(h.getCount()).append('\n');
+		}
+		return text.toString();
+	}
+}
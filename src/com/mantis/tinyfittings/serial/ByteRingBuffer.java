@@ -0,0 +1,238 @@
+package com.mantis.tinyfittings.serial;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed capacity ring of primitive bytes used as the receive buffer of
+ * {@link Serial}. One thread (the Bluetooth reader) writes, one thread (the
+ * protocol parser) reads; no locks are taken and no objects are created per
+ * byte.
+ *
+ * The capacity is always a power of two so positions can be mapped to slots
+ * with a mask. What happens when the producer runs into a full buffer is
+ * decided by the overflow policy given at construction time.
+ */
+public class ByteRingBuffer {
+
+	/**
+	 * Overflow policy: discard the oldest unread bytes to make room for new ones.
+	 */
+	public static final int DROP_OLDEST = 0;
+	/**
+	 * Overflow policy: discard the incoming bytes that do not fit.
+	 */
+	public static final int DROP_NEWEST = 1;
+	/**
+	 * Overflow policy: make the producer wait until the consumer made room.
+	 * Only usable when the consumer runs on a different thread than the producer,
+	 * so only for direct use of the ring; {@link Serial} refuses it.
+	 */
+	public static final int BLOCK = 2;
+
+	private final byte[] data;
+	private final int mask;
+	private final int overflowPolicy;
+
+	// absolute positions, the slot is position & mask
+	private final AtomicLong head = new AtomicLong(); // next position to read
+	private final AtomicLong tail = new AtomicLong(); // next position to write
+
+	// only written by the producer
+	private volatile long overflowCount = 0;
+	private volatile long droppedBytes = 0;
+
+	private final Object notFull = new Object();
+
+	public ByteRingBuffer(int capacity, int overflowPolicy) {
+		if(capacity <= 0 || capacity > (1 << 30))
+			throw new IllegalArgumentException("capacity out of range: " + capacity);
+		if(overflowPolicy < DROP_OLDEST || overflowPolicy > BLOCK)
+			throw new IllegalArgumentException("unknown overflow policy: " + overflowPolicy);
+		int size = 1;
+		while(size < capacity)
+			size <<= 1;
+		this.data = new byte[size];
+		this.mask = size - 1;
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	public int capacity() {
+		return data.length;
+	}
+
+	public int available() {
+		return (int) (tail.get() - head.get());
+	}
+
+	/**
+	 * Appends len bytes of b starting at off. Must only be called from the
+	 * producer thread.
+	 *
+	 * @return the number of bytes that were stored, which is less than len only
+	 * with DROP_NEWEST
+	 */
+	public int write(byte[] b, int off, int len) {
+		if(len > data.length && overflowPolicy == DROP_OLDEST) {
+			// only the newest capacity() bytes can survive anyway
+			overflowCount++;
+			droppedBytes += len - data.length;
+			off += len - data.length;
+			len = data.length;
+		}
+
+		int written = 0;
+		boolean overflowed = false;
+		while(written < len) {
+			long t = tail.get();
+			long h = head.get();
+			int free = data.length - (int) (t - h);
+			int n = Math.min(free, len - written);
+
+			if(n < len - written) {
+				switch(overflowPolicy) {
+				case DROP_OLDEST:
+					int needed = len - written - free;
+					if(!head.compareAndSet(h, h + needed))
+						continue; // consumer moved, recompute
+					if(!overflowed) {
+						overflowed = true;
+						overflowCount++;
+					}
+					droppedBytes += needed;
+					n = len - written;
+					break;
+				case DROP_NEWEST:
+					if(n == 0) {
+						overflowCount++;
+						droppedBytes += len - written;
+						return written;
+					}
+					break;
+				case BLOCK:
+					if(n == 0) {
+						if(!overflowed) {
+							overflowed = true;
+							overflowCount++;
+						}
+						awaitSpace();
+						continue;
+					}
+					break;
+				}
+			}
+
+			int slot = (int) (t & mask);
+			int first = Math.min(n, data.length - slot);
+			System.arraycopy(b, off + written, data, slot, first);
+			if(first < n)
+				System.arraycopy(b, off + written + first, data, 0, n - first);
+			tail.lazySet(t + n);
+			written += n;
+		}
+		return written;
+	}
+
+	/**
+	 * @return the next byte as a value from 0 to 255, or -1 if the buffer is empty
+	 */
+	public int read() {
+		while(true) {
+			long h = head.get();
+			if(h == tail.get())
+				return -1;
+			int value = data[(int) (h & mask)] & 0xff;
+			if(head.compareAndSet(h, h + 1)) {
+				signalSpace();
+				return value;
+			}
+			// the producer dropped what we just read, try again
+		}
+	}
+
+	/**
+	 * Copies up to len buffered bytes into b starting at off.
+	 *
+	 * @return the number of bytes copied, 0 if the buffer is empty
+	 */
+	public int read(byte[] b, int off, int len) {
+		while(true) {
+			long h = head.get();
+			int n = Math.min(len, (int) (tail.get() - h));
+			if(n <= 0)
+				return 0;
+			int slot = (int) (h & mask);
+			int first = Math.min(n, data.length - slot);
+			System.arraycopy(data, slot, b, off, first);
+			if(first < n)
+				System.arraycopy(data, 0, b, off + first, n - first);
+			if(head.compareAndSet(h, h + n)) {
+				signalSpace();
+				return n;
+			}
+		}
+	}
+
+	/**
+	 * Returns the most recently received byte and discards everything that is
+	 * buffered.
+	 *
+	 * @return the last byte as a value from 0 to 255, or -1 if the buffer is empty
+	 */
+	public int last() {
+		while(true) {
+			long h = head.get();
+			long t = tail.get();
+			if(h == t)
+				return -1;
+			int value = data[(int) ((t - 1) & mask)] & 0xff;
+			if(head.compareAndSet(h, t)) {
+				signalSpace();
+				return value;
+			}
+		}
+	}
+
+	public void clear() {
+		while(true) {
+			long h = head.get();
+			if(head.compareAndSet(h, tail.get()))
+				break;
+		}
+		signalSpace();
+	}
+
+	/**
+	 * @return how many writes ran into a full buffer
+	 */
+	public long getOverflowCount() {
+		return overflowCount;
+	}
+
+	/**
+	 * @return how many bytes were discarded because of overflows
+	 */
+	public long getDroppedBytes() {
+		return droppedBytes;
+	}
+
+	private void awaitSpace() {
+		synchronized(notFull) {
+			if(tail.get() - head.get() >= data.length) {
+				try {
+					// timed so a wake-up racing with this check is never lost for long
+					notFull.wait(10);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+
+	private void signalSpace() {
+		if(overflowPolicy == BLOCK) {
+			synchronized(notFull) {
+				notFull.notifyAll();
+			}
+		}
+	}
+}
@@ -1,20 +1,37 @@
 package com.mantis.tinyfittings.serial;
 
-import java.util.LinkedList;
-
 import android.util.Log;
 
 import com.mantis.tinyfittings.bluetooth.OnReceivedDataListener;
+import com.mantis.tinyfittings.metrics.Gauge;
+import com.mantis.tinyfittings.metrics.MetricsRegistry;
 
 public abstract class Serial implements OnReceivedDataListener{
 	
 	public static final String TAG = "TinyFittings - Serial";
 	
-	OnSerialEventListener serialEventListener;
-	LinkedList<Byte> buffer;
+	public static final int DEFAULT_BUFFER_SIZE = 4096;
+	
+	volatile OnSerialEventListener serialEventListener;
+	ByteRingBuffer buffer;
+	// written only by the reader thread
+	private volatile long receivedBytes = 0;
+	private volatile long receiveTime = System.nanoTime();
 	
 	public Serial(){
-		buffer = new LinkedList<Byte>();
+		this(DEFAULT_BUFFER_SIZE, ByteRingBuffer.DROP_OLDEST);
+	}
+	
+	/**
+	 * @param bufferSize capacity of the receive buffer, rounded up to a power of two
+	 * @param overflowPolicy ByteRingBuffer.DROP_OLDEST or DROP_NEWEST. BLOCK
+	 * is refused: receivedData() runs serialEvent() on the reader thread, so a
+	 * reader waiting for room would wait for itself
+	 */
+	public Serial(int bufferSize, int overflowPolicy){
+		if(overflowPolicy == ByteRingBuffer.BLOCK)
+			throw new IllegalArgumentException("BLOCK would stall the reader, use DROP_OLDEST or DROP_NEWEST");
+		buffer = new ByteRingBuffer(bufferSize, overflowPolicy);
 	}
 	
 	public abstract void dispose();
@@ -22,33 +39,142 @@ public abstract class Serial implements OnReceivedDataListener{
 	public abstract void write(byte bytes[]);
 	public abstract void write(String what);
 	
+	/**
+	 * Writes len bytes of b starting at off. Subclasses that can pass a slice
+	 * on should override this copying fallback.
+	 */
+	public void write(byte[] b, int off, int len) {
+		byte[] part = new byte[len];
+		System.arraycopy(b, off, part, 0, len);
+		write(part);
+	}
+	
+	/**
+	 * Writes one whole message in a priority class of
+	 * {@link com.mantis.tinyfittings.bluetooth.PrioritizedWriter}, so that
+	 * control commands can overtake bulk output. Without priority classes
+	 * underneath the message is written like any other bytes.
+	 */
+	public void write(byte[] b, int off, int len, int priority) {
+		write(b, off, len);
+	}
+	
+	/**
+	 * @return bytes written in the priority class that have not left yet.
+	 * Without priority classes underneath nothing can be overtaken, so 0.
+	 */
+	public int pending(int priority) {
+		return 0;
+	}
+	
+	/**
+	 * Pushes written data out right away for latency sensitive callers.
+	 * Implementations that do not queue writes have nothing to do here.
+	 */
+	public void flush() {
+	}
+	
 	public int available() {
-		return buffer.size();
+		return buffer.available();
 	}
 
+	/**
+	 * @return the next received byte (0 to 255), or -1 if nothing is buffered
+	 */
 	public int read() {
-		if (buffer.isEmpty()) 
-			return -1;
-		return buffer.poll();
+		return buffer.read();
 	}
 	
+	/**
+	 * Reads up to len received bytes into b at off.
+	 * 
+	 * @return the number of bytes read, 0 if nothing is buffered
+	 */
+	public int read(byte[] b, int off, int len) {
+		return buffer.read(b, off, len);
+	}
+	
+	/**
+	 * @return the most recently received byte, or -1 if nothing is buffered.
+	 * Everything received before it is discarded.
+	 */
 	public int last(){
-		if (buffer.isEmpty()) 
-			return -1;
-		return buffer.removeLast();
+		return buffer.last();
 	}
 	
 	public void clearReadBuffer(){
 		buffer.clear();
 	}
 	
+	public long getOverflowCount() {
+		return buffer.getOverflowCount();
+	}
+	
+	/**
+	 * @return bytes received since the Serial was created, for throughput meters
+	 */
+	public long getReceivedBytes() {
+		return receivedBytes;
+	}
+
+	public long getDroppedBytes() {
+		return buffer.getDroppedBytes();
+	}
+	
+	/**
+	 * @return System.nanoTime() at which the most recent chunk was read from
+	 * the link. serialEvent() runs once per chunk, so there it is the time of
+	 * the bytes just buffered.
+	 */
+	public long getReceiveTime() {
+		return receiveTime;
+	}
+	
+	/**
+	 * Registers the receive counters of this Serial as gauges named
+	 * prefix_received_bytes, prefix_dropped_bytes, prefix_overflows and
+	 * prefix_buffered_bytes.
+	 */
+	public void instrument(MetricsRegistry registry, String prefix) {
+		registry.gauge(prefix + "_received_bytes", new Gauge() {
+			@Override
+			public long value() {
+				return getReceivedBytes();
+			}
+		});
+		registry.gauge(prefix + "_dropped_bytes", new Gauge() {
+			@Override
+			public long value() {
+				return getDroppedBytes();
+			}
+		});
+		registry.gauge(prefix + "_overflows", new Gauge() {
+			@Override
+			public long value() {
+				return getOverflowCount();
+			}
+		});
+		registry.gauge(prefix + "_buffered_bytes", new Gauge() {
+			@Override
+			public long value() {
+				return available();
+			}
+		});
+	}
+	
 	public void registerArduino(OnSerialEventListener listener){
 		this.serialEventListener = listener;
 	}
 	
-	public synchronized void receivedData(byte[] bytes) {
-		for (byte b : bytes)
-			buffer.add(b);
-		serialEventListener.serialEvent();
+	// called by the single Bluetooth reader thread, the ring buffer needs no lock
+	@Override
+	public void receivedData(byte[] bytes, int offset, int length, long receiveTime) {
+		this.receiveTime = receiveTime;
+		buffer.write(bytes, offset, length);
+		receivedBytes += length;
+		// data can arrive before an Arduino is registered, it waits in the buffer
+		OnSerialEventListener listener = serialEventListener;
+		if (listener != null)
+			listener.serialEvent();
 	}
 }
@@ -1,37 +1,17 @@
 package com.mantis.tinyfittings.serial;
 
-import android.util.Log;
-
 import com.mantis.tinyfittings.bluetooth.BTHandler;
-
-public class StandAloneSerial extends Serial {
-	
-	BTHandler btHandler;
+import com.mantis.tinyfittings.transport.BluetoothTransport;
+
+/**
+ * A Serial over the app's own BTHandler. dispose() stops listening to the
+ * BTHandler; the link itself is handled by the activity life cycle and stays
+ * up.
+ */
+public class StandAloneSerial extends TransportSerial {
 	
 	public StandAloneSerial(BTHandler btHandler){
-		super();
-		this.btHandler = btHandler;
-		btHandler.addOnReceivedDataListener(this);
-	}
-
-	@Override
-	public void dispose() {
-		// handled by activity life cycle
+		super(new BluetoothTransport(btHandler));
 	}
 
-	@Override
-	public void write(int what) {
-		btHandler.sendData(what & 0xff);  // for good measure do the &
-	}
-
-	@Override
-	public void write(byte[] bytes) {
-		btHandler.sendData(bytes);
-	}
-
-	@Override
-	public void write(String what) {
-		btHandler.sendData(what.getBytes());
-	}	
-
 }
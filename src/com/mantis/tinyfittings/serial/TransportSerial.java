@@ -0,0 +1,71 @@
+package com.mantis.tinyfittings.serial;
+
+import com.mantis.tinyfittings.transport.Transport;
+
+/**
+ * Serial port on top of any {@link Transport}: Bluetooth, a TCP bridge or an
+ * in-memory pipe.
+ */
+public class TransportSerial extends Serial {
+	
+	protected final Transport transport;
+	
+	public TransportSerial(Transport transport){
+		super();
+		this.transport = transport;
+		transport.addOnReceivedDataListener(this);
+	}
+	
+	public TransportSerial(Transport transport, int bufferSize, int overflowPolicy){
+		super(bufferSize, overflowPolicy);
+		this.transport = transport;
+		transport.addOnReceivedDataListener(this);
+	}
+	
+	public Transport getTransport() {
+		return transport;
+	}
+
+	@Override
+	public void dispose() {
+		transport.removeOnReceivedDataListener(this);
+		transport.close();
+	}
+
+	@Override
+	public void write(int what) {
+		transport.write(what & 0xff);  // for good measure do the &
+	}
+
+	@Override
+	public void write(byte[] bytes) {
+		transport.write(bytes, 0, bytes.length);
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length) {
+		transport.write(bytes, offset, length);
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length, int priority) {
+		transport.write(bytes, offset, length, priority);
+	}
+
+	@Override
+	public int pending(int priority) {
+		return transport.pending(priority);
+	}
+
+	@Override
+	public void write(String what) {
+		byte[] bytes = what.getBytes();
+		transport.write(bytes, 0, bytes.length);
+	}
+	
+	@Override
+	public void flush() {
+		transport.flush();
+	}
+
+}
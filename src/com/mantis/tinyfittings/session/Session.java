@@ -0,0 +1,129 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.session;
+
+import java.util.concurrent.ScheduledFuture;
+
+import com.mantis.tinyfittings.arduino.Arduino;
+import com.mantis.tinyfittings.arduino.LinkProfile;
+import com.mantis.tinyfittings.arduino.RttProbe;
+import com.mantis.tinyfittings.serial.Serial;
+import com.mantis.tinyfittings.serial.TransportSerial;
+import com.mantis.tinyfittings.transport.StreamTransport;
+
+/**
+ * One connected board: its transport, its own Serial and, once the
+ * {@link SessionManager} has asked the board for its firmware, its own Arduino.
+ */
+public class Session {
+
+	private final String address;
+	private final StreamTransport transport;
+	private final Serial serial;
+	private final long openedAt = System.currentTimeMillis();
+
+	private volatile Arduino arduino = null;
+	private volatile LinkProfile linkProfile = null;
+	private volatile RttProbe rttProbe = null;
+	private volatile ScheduledFuture<?> heartbeat = null;
+	private volatile boolean closed = false;
+
+	Session(String address, StreamTransport transport) {
+		this.address = address;
+		this.transport = transport;
+		this.serial = new TransportSerial(transport);
+	}
+
+	/**
+	 * @return the key of the session, the device address for Bluetooth boards
+	 */
+	public String getAddress() {
+		return address;
+	}
+
+	public StreamTransport getTransport() {
+		return transport;
+	}
+
+	public Serial getSerial() {
+		return serial;
+	}
+
+	/**
+	 * @return the Arduino for the board, null until the session is ready
+	 */
+	public Arduino getArduino() {
+		return arduino;
+	}
+
+	/**
+	 * @return the negotiated link profile, null for Firmata 1 boards
+	 */
+	public LinkProfile getLinkProfile() {
+		return linkProfile;
+	}
+
+	/**
+	 * @return the round trip prober of the session, null until it is ready
+	 */
+	public RttProbe getRttProbe() {
+		return rttProbe;
+	}
+
+	public boolean isReady() {
+		return arduino != null && !closed;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	public long getOpenedAt() {
+		return openedAt;
+	}
+
+	void setReady(Arduino arduino, LinkProfile linkProfile, RttProbe rttProbe) {
+		this.linkProfile = linkProfile;
+		this.rttProbe = rttProbe;
+		this.arduino = arduino;
+	}
+
+	void setHeartbeat(ScheduledFuture<?> heartbeat) {
+		this.heartbeat = heartbeat;
+		if(closed)
+			heartbeat.cancel(false);
+	}
+
+	void close() {
+		if(closed)
+			return;
+		closed = true;
+		ScheduledFuture<?> h = heartbeat;
+		if(h != null)
+			h.cancel(false);
+		RttProbe probe = rttProbe;
+		if(probe != null)
+			probe.stop();
+		serial.dispose();
+	}
+
+	@Override
+	public String toString() {
+		return "Session " + address + (closed ? " (closed)" : arduino == null ? " (connecting)" : "");
+	}
+}
@@ -0,0 +1,262 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.session;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+import com.mantis.tinyfittings.arduino.Arduino;
+import com.mantis.tinyfittings.arduino.ArduinoSelector;
+import com.mantis.tinyfittings.arduino.Arduino_v1;
+import com.mantis.tinyfittings.arduino.Arduino_v2;
+import com.mantis.tinyfittings.arduino.LinkProfile;
+import com.mantis.tinyfittings.arduino.RttProbe;
+import com.mantis.tinyfittings.bluetooth.ReconnectPolicy;
+import com.mantis.tinyfittings.metrics.MetricsRegistry;
+import com.mantis.tinyfittings.transport.IoThreadPool;
+import com.mantis.tinyfittings.transport.StreamTransport;
+
+/**
+ * Keeps any number of board sessions at once, keyed by address, each with
+ * its own Serial and Arduino. All sessions share one {@link IoThreadPool} of
+ * ioThreads threads for their links, and a setupThreads pool that asks new
+ * boards for their firmware and negotiates the link profile of Firmata 2
+ * boards. Every ready session gets an {@link RttProbe}, all of them on one
+ * scheduler thread, reporting to the default registry under
+ * session_&lt;address&gt;_rtt_*. Opening the link itself (an RFCOMM connect,
+ * a socket) is up to the caller, which hands over the connected streams.
+ *
+ * A lost board never ends its stream, it just goes quiet, so every session
+ * has a heartbeat on the same scheduler, timed by a {@link ReconnectPolicy}
+ * as BTHandler's link is: after the heartbeat interval of silence it asks the
+ * board for its version, and after the heartbeat timeout it fails the session
+ * through transportFailed().
+ */
+public class SessionManager implements IoThreadPool.OnTransportFailedListener {
+
+	private static final String TAG = "SessionManager";
+
+	public static final int DEFAULT_IO_THREADS = 2;
+	public static final int DEFAULT_SETUP_THREADS = 2;
+
+	public static final long SELECT_TIMEOUT_MS = 10000;
+	public static final long LINK_PROFILE_TIMEOUT_MS = 1000;
+
+	private static final int REPORT_VERSION = 0xF9;
+
+	public interface OnSessionListener {
+		/**
+		 * The Arduino of the session is set up. Called on a setup thread.
+		 */
+		void sessionReady(Session session);
+
+		/**
+		 * The session ended; cause is null when it was closed on purpose.
+		 */
+		void sessionClosed(Session session, IOException cause);
+	}
+
+	private final IoThreadPool ioPool;
+	private final ExecutorService setupPool;
+	private final ScheduledExecutorService probeScheduler = Executors.newSingleThreadScheduledExecutor();
+	private final int analogPins;
+	private final long heartbeatIntervalMs;
+	private final long heartbeatTimeoutMs;
+	private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+	private volatile OnSessionListener listener = null;
+
+	public SessionManager() {
+		this(DEFAULT_IO_THREADS, DEFAULT_SETUP_THREADS, Arduino.REPORTED_ANALOG_PINS);
+	}
+
+	/**
+	 * @param analogPins analog pins a Firmata 2 board is asked to report
+	 */
+	public SessionManager(int ioThreads, int setupThreads, int analogPins) {
+		this(ioThreads, setupThreads, analogPins, new ReconnectPolicy());
+	}
+
+	/**
+	 * @param analogPins analog pins a Firmata 2 board is asked to report
+	 * @param policy gives the heartbeat interval and timeout of every session
+	 */
+	public SessionManager(int ioThreads, int setupThreads, int analogPins, ReconnectPolicy policy) {
+		this.heartbeatIntervalMs = policy.getHeartbeatIntervalMs();
+		this.heartbeatTimeoutMs = policy.getHeartbeatTimeoutMs();
+		this.ioPool = new IoThreadPool(ioThreads, "SessionIO", this);
+		this.setupPool = Executors.newFixedThreadPool(setupThreads);
+		this.analogPins = analogPins;
+	}
+
+	public void setOnSessionListener(OnSessionListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Starts a session over a connected link. A session already open under
+	 * the address is closed first.
+	 *
+	 * @param resource closed with the session, such as the socket, may be null
+	 */
+	public Session open(String address, InputStream in, OutputStream out, Closeable resource) {
+		Session session = new Session(address, new StreamTransport(in, out, resource));
+		Session previous = sessions.put(address, session);
+		if(previous != null)
+			closed(previous, null);
+		ioPool.register(session.getTransport());
+		session.setHeartbeat(startHeartbeat(session.getTransport()));
+		setupPool.execute(new Setup(session));
+		Log.d(TAG, "opened " + address + ", " + sessions.size() + " sessions");
+		return session;
+	}
+
+	/**
+	 * @return the open session under address, or null
+	 */
+	public Session get(String address) {
+		return sessions.get(address);
+	}
+
+	public List<Session> getSessions() {
+		return new ArrayList<Session>(sessions.values());
+	}
+
+	public int size() {
+		return sessions.size();
+	}
+
+	public int getIoThreadCount() {
+		return ioPool.getThreadCount();
+	}
+
+	public boolean close(String address) {
+		Session session = sessions.remove(address);
+		if(session == null)
+			return false;
+		closed(session, null);
+		return true;
+	}
+
+	/**
+	 * Closes every session and stops the threads.
+	 */
+	public void shutdown() {
+		Iterator<Session> it = sessions.values().iterator();
+		while(it.hasNext()) {
+			Session session = it.next();
+			it.remove();
+			closed(session, null);
+		}
+		setupPool.shutdownNow();
+		probeScheduler.shutdownNow();
+		ioPool.shutdown();
+	}
+
+	@Override
+	public void transportFailed(StreamTransport transport, IOException e) {
+		Iterator<Session> it = sessions.values().iterator();
+		while(it.hasNext()) {
+			Session session = it.next();
+			if(session.getTransport() == transport) {
+				it.remove();
+				Log.d(TAG, "lost " + session.getAddress());
+				closed(session, e);
+				return;
+			}
+		}
+		transport.close();
+	}
+
+	private ScheduledFuture<?> startHeartbeat(final StreamTransport transport) {
+		return probeScheduler.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				if(!transport.isOpen())
+					return;
+				long silentMs = (System.nanoTime() - transport.getLastReceived()) / 1000000L;
+				if(silentMs >= heartbeatTimeoutMs) {
+					Log.w(TAG, "nothing received for " + silentMs + " ms");
+					transportFailed(transport, new IOException("nothing received for " + silentMs + " ms"));
+				}
+				else if(silentMs >= heartbeatIntervalMs) {
+					transport.write(REPORT_VERSION); // queues only, never blocks
+				}
+			}
+		}, heartbeatIntervalMs, heartbeatIntervalMs, TimeUnit.MILLISECONDS);
+	}
+
+	private void closed(Session session, IOException cause) {
+		session.close();
+		OnSessionListener l = listener;
+		if(l != null)
+			l.sessionClosed(session, cause);
+	}
+
+	private class Setup implements Runnable {
+
+		private final Session session;
+
+		Setup(Session session) {
+			this.session = session;
+		}
+
+		@Override
+		public void run() {
+			try{
+				Arduino arduino = ArduinoSelector.select(session.getSerial(), SELECT_TIMEOUT_MS);
+				LinkProfile profile = null;
+				if(arduino instanceof Arduino_v2)
+					profile = LinkProfile.negotiate((Arduino_v2) arduino, analogPins, LINK_PROFILE_TIMEOUT_MS);
+				if(session.isClosed())
+					return;
+				RttProbe probe = null;
+				if(arduino instanceof Arduino_v1) {
+					probe = new RttProbe((Arduino_v1) arduino, MetricsRegistry.getDefault(),
+							"session_" + session.getAddress().replaceAll("[^A-Za-z0-9]", "_"));
+					probe.start(probeScheduler);
+				}
+				session.setReady(arduino, profile, probe);
+				if(session.isClosed() && probe != null) {
+					probe.stop(); // closed while being set up
+					return;
+				}
+				Log.d(TAG, session.getAddress() + " ready, Firmata "
+						+ arduino.getMajorVersion() + "." + arduino.getMinorVersion());
+				OnSessionListener l = listener;
+				if(l != null)
+					l.sessionReady(session);
+			}
+			catch(InterruptedException e) {
+				Log.d(TAG, "setup of " + session.getAddress() + " interrupted");
+			}
+		}
+	}
+}
@@ -0,0 +1,514 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.simulator;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.mantis.tinyfittings.bluetooth.OnReceivedDataListener;
+import com.mantis.tinyfittings.serial.ByteRingBuffer;
+import com.mantis.tinyfittings.transport.Transport;
+
+/**
+ * A board running firmware/tinyFittings_Firmata.pde, in Java. The command
+ * handling follows the sketch function by function so the host stack can be
+ * exercised without hardware. With setFirmwareVersion(2, 2) it runs
+ * tinyFittings_Firmata_v2.pde instead, which adds SysEx: SAMPLING_INTERVAL,
+ * REPORT_FIRMWARE, from 2.1 on packed ANALOG_FRAMEs and from 2.2 on
+ * LINK_PROFILE, which reports the baud rate set here.
+ *
+ * Like on the board, received bytes wait in a small receive buffer and are
+ * only processed at the start of each scan, right before the enabled analog
+ * pins are reported. Digital inputs are checked for changes once per scan.
+ * With a baud rate set, each scan is held back until the bytes of the
+ * previous one would have left the UART, the way the blocking Serial.print()
+ * stretches loop() on the board.
+ */
+public class FirmataSimulator implements OnReceivedDataListener {
+
+	public static final int FIRMATA_MAJOR_VERSION = 1;
+	public static final int FIRMATA_MINOR_VERSION = 0;
+	public static final String FIRMWARE_V2_NAME = "tinyFittings_Firmata_v2";
+
+	public static final int TOTAL_ANALOG_PINS = 6;
+	public static final int TOTAL_DIGITAL_PINS = 14;
+
+	public static final long DEFAULT_SCAN_INTERVAL_MS = 20;
+	public static final int DEFAULT_BAUD_RATE = 9600;
+	public static final int RX_BUFFER_SIZE = 128; // the Arduino's serial receive buffer
+
+	static final int INPUT = 0;
+	static final int OUTPUT = 1;
+	static final int PWM = 2; // the sketch's value, not Arduino.PWM
+
+	static final int DIGITAL_MESSAGE      = 0x90;
+	static final int ANALOG_MESSAGE       = 0xE0;
+	static final int REPORT_ANALOG_PIN    = 0xC0;
+	static final int REPORT_DIGITAL_PORTS = 0xD0;
+	static final int SET_DIGITAL_PIN_MODE = 0xF4;
+	static final int REPORT_VERSION       = 0xF9;
+	static final int SYSTEM_RESET         = 0xFF;
+	static final int ANALOG_FRAME         = 0x01;
+	static final int LINK_PROFILE         = 0x02;
+	static final int START_SYSEX          = 0xF0;
+	static final int END_SYSEX            = 0xF7;
+	static final int REPORT_FIRMWARE      = 0x79;
+	static final int SAMPLING_INTERVAL    = 0x7A;
+	static final int MAX_SYSEX_BYTES      = 32;
+
+	private final Transport transport;
+	private final ByteRingBuffer rxBuffer;
+
+	/* input message handling */
+	private int waitForData = 0;
+	private int executeMultiByteCommand = 0;
+	private int multiByteChannel = 0;
+	private final int[] storedInputData = new int[2];
+	/* SysEx message handling, version 2 only */
+	private boolean parsingSysex = false;
+	private int sysexBytesRead = 0;
+	private final int[] storedSysexData = new int[MAX_SYSEX_BYTES];
+	private volatile int majorVersion = FIRMATA_MAJOR_VERSION;
+	private volatile int minorVersion = FIRMATA_MINOR_VERSION;
+	/* digital pins */
+	private boolean digitalInputsEnabled = false;
+	private int digitalInputs;
+	private int previousDigitalInputs;
+	private int digitalPinStatus = 3; // ignore RxTx pins
+	private volatile int digitalPinLevels = 0; // what the outside world puts on the pins
+	private volatile int digitalOutputs = 0;
+	/* PWM/analog outputs */
+	private int pwmStatus = 0;
+	private final int[] pwmValues = new int[TOTAL_DIGITAL_PINS];
+	/* analog inputs */
+	private int analogPinsToReport = 0;
+	private final Waveform[] waveforms = new Waveform[TOTAL_ANALOG_PINS];
+	private boolean packedFrames = false;
+
+	/* transmit side */
+	private final byte[] txBuffer = new byte[64];
+	private int txLength = 0;
+	private long linkFreeAt = 0;
+
+	private volatile long scanIntervalNanos = DEFAULT_SCAN_INTERVAL_MS * 1000000L;
+	private volatile int baudRate = DEFAULT_BAUD_RATE;
+
+	private ScheduledExecutorService scheduler;
+	private ScheduledFuture<?> scheduled;
+	private volatile boolean running = false;
+	private long nextScanAt;
+	private long startedAt;
+
+	private volatile long scans = 0;
+	private volatile long bytesSent = 0;
+
+	public FirmataSimulator(Transport transport) {
+		this(transport, RX_BUFFER_SIZE);
+	}
+
+	public FirmataSimulator(Transport transport, int rxBufferSize) {
+		this.transport = transport;
+		this.rxBuffer = new ByteRingBuffer(rxBufferSize, ByteRingBuffer.DROP_NEWEST);
+		for(int i = 0; i < TOTAL_ANALOG_PINS; i++)
+			waveforms[i] = Waveforms.constant(0);
+		transport.addOnReceivedDataListener(this);
+	}
+
+	public void setScanInterval(long millis) {
+		scanIntervalNanos = millis * 1000000L;
+	}
+
+	public long getScanInterval() {
+		return scanIntervalNanos / 1000000L;
+	}
+
+	/**
+	 * Selects the sketch to run; major version 2 and later understand SysEx.
+	 * Must be called before start().
+	 */
+	public void setFirmwareVersion(int major, int minor) {
+		majorVersion = major;
+		minorVersion = minor;
+	}
+
+	/**
+	 * @param baud the modeled UART speed, 0 to send as fast as the transport takes it
+	 */
+	public void setBaudRate(int baud) {
+		baudRate = baud;
+	}
+
+	public int getBaudRate() {
+		return baudRate;
+	}
+
+	public void setWaveform(int analogPin, Waveform waveform) {
+		waveforms[analogPin] = waveform;
+	}
+
+	/**
+	 * Sets the level the outside world drives onto a digital pin.
+	 */
+	public void setDigitalInput(int pin, int value) {
+		synchronized(this) {
+			if(value != 0)
+				digitalPinLevels |= 1 << pin;
+			else
+				digitalPinLevels &= ~(1 << pin);
+		}
+	}
+
+	/**
+	 * @return the level the board drives on a digital output pin
+	 */
+	public int getDigitalOutput(int pin) {
+		return (digitalOutputs >> pin) & 1;
+	}
+
+	public synchronized int getPwmValue(int pin) {
+		return pwmValues[pin];
+	}
+
+	public synchronized int getAnalogPinsToReport() {
+		return analogPinsToReport;
+	}
+
+	public long getScanCount() {
+		return scans;
+	}
+
+	public long getBytesSent() {
+		return bytesSent;
+	}
+
+	public long getDroppedRxBytes() {
+		return rxBuffer.getDroppedBytes();
+	}
+
+	/**
+	 * Runs setup() and then loop() every scan interval on the given scheduler.
+	 * Many boards can share one scheduler.
+	 */
+	public synchronized void start(ScheduledExecutorService scheduler) {
+		if(running)
+			return;
+		this.scheduler = scheduler;
+		running = true;
+		startedAt = System.nanoTime();
+		setup();
+		nextScanAt = System.nanoTime();
+		scheduled = scheduler.schedule(scanTask, 0, TimeUnit.NANOSECONDS);
+	}
+
+	public synchronized void stop() {
+		running = false;
+		if(scheduled != null)
+			scheduled.cancel(false);
+	}
+
+	/**
+	 * Stops the board and detaches it from its transport.
+	 */
+	public void dispose() {
+		stop();
+		transport.removeOnReceivedDataListener(this);
+	}
+
+	@Override
+	public void receivedData(byte[] buffer, int offset, int length, long receiveTime) {
+		rxBuffer.write(buffer, offset, length);
+	}
+
+	private final Runnable scanTask = new Runnable() {
+		@Override
+		public void run() {
+			synchronized(FirmataSimulator.this) {
+				if(!running)
+					return;
+				loop();
+				long now = System.nanoTime();
+				nextScanAt += scanIntervalNanos;
+				if(nextScanAt < now - scanIntervalNanos)
+					nextScanAt = now; // fell behind, do not try to catch up
+				long at = Math.max(nextScanAt, linkFreeAt);
+				scheduled = scheduler.schedule(this, Math.max(0, at - now), TimeUnit.NANOSECONDS);
+			}
+		}
+	};
+
+	private void setup() {
+		for(int i = 0; i < TOTAL_DIGITAL_PINS; ++i)
+			setPinMode(i, INPUT);
+		printVersion();
+		if(majorVersion >= 2)
+			printFirmwareVersion();
+		transmit();
+	}
+
+	private void loop() {
+		checkDigitalInputs();
+		checkForSerialReceive();
+		long millis = (System.nanoTime() - startedAt) / 1000000L;
+		if(packedFrames) {
+			if(analogPinsToReport != 0)
+				printAnalogFrame(millis);
+		}
+		else for(int analogPin = 0; analogPin < TOTAL_ANALOG_PINS; analogPin++) {
+			if((analogPinsToReport & (1 << analogPin)) != 0) {
+				int analogData = waveforms[analogPin].sample(millis) & 0x3FF;
+				print(ANALOG_MESSAGE + analogPin);
+				print(analogData % 128);
+				print(analogData >> 7);
+			}
+		}
+		transmit();
+		scans++;
+	}
+
+	private void printVersion() {
+		print(REPORT_VERSION);
+		print(minorVersion);
+		print(majorVersion);
+	}
+
+	private void printAnalogFrame(long millis) {
+		int bits = 0; // at most 16 bits pending
+		int bitCount = 0;
+		print(START_SYSEX);
+		print(ANALOG_FRAME);
+		print(analogPinsToReport & 0x7F);
+		for(int analogPin = 0; analogPin < TOTAL_ANALOG_PINS; analogPin++) {
+			if((analogPinsToReport & (1 << analogPin)) != 0) {
+				bits |= (waveforms[analogPin].sample(millis) & 0x3FF) << bitCount;
+				bitCount += 10;
+				while(bitCount >= 7) {
+					print(bits & 0x7F);
+					bits >>= 7;
+					bitCount -= 7;
+				}
+			}
+		}
+		if(bitCount > 0)
+			print(bits & 0x7F);
+		print(END_SYSEX);
+	}
+
+	private void printFirmwareVersion() {
+		print(START_SYSEX);
+		print(REPORT_FIRMWARE);
+		print(majorVersion);
+		print(minorVersion);
+		for(int i = 0; i < FIRMWARE_V2_NAME.length(); i++) {
+			char c = FIRMWARE_V2_NAME.charAt(i);
+			print(c & 0x7F);
+			print((c >> 7) & 0x7F);
+		}
+		print(END_SYSEX);
+	}
+
+	private void processSysexMessage() {
+		switch(storedSysexData[0]) {
+		case ANALOG_FRAME:
+			// added in 2.1
+			if(sysexBytesRead > 1 && (majorVersion > 2 || minorVersion >= 1))
+				packedFrames = storedSysexData[1] != 0;
+			break;
+		case LINK_PROFILE:
+			// added in 2.2
+			if(majorVersion > 2 || minorVersion >= 2) {
+				print(START_SYSEX);
+				print(LINK_PROFILE);
+				print((baudRate / 100) & 0x7F);
+				print((baudRate / 100) >> 7);
+				print(END_SYSEX);
+			}
+			break;
+		case REPORT_FIRMWARE:
+			printFirmwareVersion();
+			break;
+		case SAMPLING_INTERVAL:
+			if(sysexBytesRead > 2)
+				setScanInterval(Math.max(1, storedSysexData[1] + (storedSysexData[2] << 7)));
+			break;
+		}
+	}
+
+	private void outputDigitalBytes(int pin0_6, int pin7_13) {
+		int twoBytesForPorts = pin0_6 + (pin7_13 << 7);
+		int outputs = digitalOutputs;
+		for(int i = 2; i < TOTAL_DIGITAL_PINS; ++i) { // ignore Rx,Tx pins (0 and 1)
+			int mask = 1 << i;
+			if((digitalPinStatus & mask) != 0 && (pwmStatus & mask) == 0) {
+				if((twoBytesForPorts & mask) != 0)
+					outputs |= mask;
+				else
+					outputs &= ~mask;
+			}
+		}
+		digitalOutputs = outputs;
+	}
+
+	private void checkDigitalInputs() {
+		if(digitalInputsEnabled) {
+			previousDigitalInputs = digitalInputs;
+			digitalInputs = digitalPinLevels & ~digitalPinStatus; // ignore pins set OUTPUT
+			if(digitalInputs != previousDigitalInputs) {
+				print(DIGITAL_MESSAGE);
+				print(digitalInputs % 128); // Tx pins 0-6
+				print(digitalInputs >> 7);  // Tx pins 7-13
+			}
+		}
+	}
+
+	private void setPinMode(int pin, int mode) {
+		if(pin > 1 && pin < TOTAL_DIGITAL_PINS) { // ignore RxTx pins (0,1)
+			if(mode == INPUT) {
+				digitalPinStatus = digitalPinStatus & ~(1 << pin);
+				pwmStatus = pwmStatus & ~(1 << pin);
+				digitalOutputs &= ~(1 << pin); // turn off pin before switching to INPUT
+			}
+			else if(mode == OUTPUT) {
+				digitalPinStatus = digitalPinStatus | (1 << pin);
+				pwmStatus = pwmStatus & ~(1 << pin);
+			}
+			else if(mode == PWM) {
+				digitalPinStatus = digitalPinStatus | (1 << pin);
+				pwmStatus = pwmStatus | (1 << pin);
+			}
+		}
+	}
+
+	private void setAnalogPinReporting(int pin, int state) {
+		if(state == 0)
+			analogPinsToReport = analogPinsToReport & ~(1 << pin);
+		else // everything but 0 enables reporting of that pin
+			analogPinsToReport = analogPinsToReport | (1 << pin);
+	}
+
+	private void checkForSerialReceive() {
+		int inputData;
+		while((inputData = rxBuffer.read()) >= 0)
+			processInput(inputData);
+	}
+
+	private void processInput(int inputData) {
+		int command;
+
+		// SysEx data is collected until END_SYSEX, any other command aborts it
+		if(parsingSysex) {
+			if(inputData < 128) {
+				if(sysexBytesRead < MAX_SYSEX_BYTES)
+					storedSysexData[sysexBytesRead++] = inputData;
+				return;
+			}
+			parsingSysex = false;
+			if(inputData == END_SYSEX) {
+				if(sysexBytesRead > 0)
+					processSysexMessage();
+				return;
+			}
+		}
+		// a few commands have byte(s) of data following the command
+		if((waitForData > 0) && (inputData < 128)) {
+			waitForData--;
+			storedInputData[waitForData] = inputData;
+			if((waitForData == 0) && executeMultiByteCommand != 0) { // got the whole message
+				switch(executeMultiByteCommand) {
+				case ANALOG_MESSAGE:
+					setPinMode(multiByteChannel, PWM);
+					if(multiByteChannel < TOTAL_DIGITAL_PINS)
+						pwmValues[multiByteChannel] = (storedInputData[0] << 7) + storedInputData[1];
+					break;
+				case DIGITAL_MESSAGE:
+					outputDigitalBytes(storedInputData[1], storedInputData[0]); //(LSB, MSB)
+					break;
+				case SET_DIGITAL_PIN_MODE:
+					setPinMode(storedInputData[1], storedInputData[0]); // (pin#, mode)
+					if(storedInputData[0] == INPUT)
+						digitalInputsEnabled = true; // enable reporting of digital inputs
+					break;
+				case REPORT_ANALOG_PIN:
+					setAnalogPinReporting(multiByteChannel, storedInputData[0]);
+					break;
+				case REPORT_DIGITAL_PORTS:
+					digitalInputsEnabled = storedInputData[0] != 0;
+					break;
+				}
+				executeMultiByteCommand = 0;
+			}
+		} else {
+			// remove channel info from command byte if less than 0xF0
+			if(inputData < 0xF0) {
+				command = inputData & 0xF0;
+				multiByteChannel = inputData & 0x0F;
+			} else {
+				command = inputData;
+				// commands in the 0xF* range don't use channel data
+			}
+			switch(command) {
+			case START_SYSEX:
+				if(majorVersion >= 2) {
+					parsingSysex = true;
+					sysexBytesRead = 0;
+					waitForData = 0; // a SysEx message ends any unfinished message
+					executeMultiByteCommand = 0;
+				}
+				break;
+			case ANALOG_MESSAGE:
+			case DIGITAL_MESSAGE:
+			case SET_DIGITAL_PIN_MODE:
+				waitForData = 2; // two data bytes needed
+				executeMultiByteCommand = command;
+				break;
+			case REPORT_ANALOG_PIN:
+			case REPORT_DIGITAL_PORTS:
+				waitForData = 1; // one data byte needed
+				executeMultiByteCommand = command;
+				break;
+			case SYSTEM_RESET:
+				// this doesn't do anything yet
+				break;
+			case REPORT_VERSION:
+				printVersion();
+				break;
+			}
+		}
+	}
+
+	private void print(int b) {
+		if(txLength == txBuffer.length)
+			transmit();
+		txBuffer[txLength++] = (byte) b;
+	}
+
+	// hands the bytes of this scan to the transport and books their time on the link
+	private void transmit() {
+		if(txLength == 0)
+			return;
+		transport.write(txBuffer, 0, txLength);
+		bytesSent += txLength;
+		int baud = baudRate;
+		if(baud > 0) {
+			long now = System.nanoTime();
+			// 8N1: ten bits on the wire per byte
+			linkFreeAt = Math.max(linkFreeAt, now) + txLength * 10L * 1000000000L / baud;
+		}
+		txLength = 0;
+	}
+}
@@ -0,0 +1,96 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.simulator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.mantis.tinyfittings.serial.Serial;
+import com.mantis.tinyfittings.serial.TransportSerial;
+import com.mantis.tinyfittings.transport.PipeTransport;
+
+/**
+ * Runs any number of simulated boards in one JVM on a small shared pool of
+ * scheduler threads, to see how the host side scales with the board count.
+ */
+public class SimulatorFarm {
+
+	private final ScheduledExecutorService scheduler;
+	private final List<FirmataSimulator> boards = new ArrayList<FirmataSimulator>();
+
+	public SimulatorFarm(int threads) {
+		scheduler = Executors.newScheduledThreadPool(threads);
+	}
+
+	/**
+	 * Creates a board connected to the returned Serial through a pipe and
+	 * starts it.
+	 */
+	public Serial addBoard(FirmataSimulatorSetup setup) {
+		PipeTransport[] ends = PipeTransport.createPair();
+		Serial serial = new TransportSerial(ends[0]);
+		FirmataSimulator board = new FirmataSimulator(ends[1]);
+		if(setup != null)
+			setup.configure(board);
+		start(board);
+		return serial;
+	}
+
+	/**
+	 * Starts a board that was connected to its transport by the caller.
+	 */
+	public synchronized void start(FirmataSimulator board) {
+		boards.add(board);
+		board.start(scheduler);
+	}
+
+	public synchronized List<FirmataSimulator> getBoards() {
+		return new ArrayList<FirmataSimulator>(boards);
+	}
+
+	public synchronized long getTotalBytesSent() {
+		long total = 0;
+		for(int i = 0; i < boards.size(); i++)
+			total += boards.get(i).getBytesSent();
+		return total;
+	}
+
+	public void shutdown() {
+		synchronized(this) {
+			for(int i = 0; i < boards.size(); i++)
+				boards.get(i).dispose();
+			boards.clear();
+		}
+		scheduler.shutdown();
+		try {
+			scheduler.awaitTermination(1, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Adjusts a board (waveforms, baud rate, scan interval) before it starts.
+	 */
+	public interface FirmataSimulatorSetup {
+		void configure(FirmataSimulator board);
+	}
+}
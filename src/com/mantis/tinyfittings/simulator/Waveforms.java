@@ -0,0 +1,88 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.simulator;
+
+import java.util.Random;
+
+/**
+ * Ready made signals for simulated analog pins. Values are clamped to the
+ * 10 bit range of the ADC.
+ */
+public final class Waveforms {
+
+	private Waveforms() {
+	}
+
+	public static Waveform constant(final int value) {
+		final int v = clamp(value);
+		return new Waveform() {
+			@Override
+			public int sample(long millis) {
+				return v;
+			}
+		};
+	}
+
+	public static Waveform sine(final long periodMs, final int offset, final int amplitude) {
+		return new Waveform() {
+			@Override
+			public int sample(long millis) {
+				double phase = 2 * Math.PI * (millis % periodMs) / periodMs;
+				return clamp(offset + (int) Math.round(amplitude * Math.sin(phase)));
+			}
+		};
+	}
+
+	public static Waveform square(final long periodMs, final int low, final int high) {
+		return new Waveform() {
+			@Override
+			public int sample(long millis) {
+				return clamp((millis % periodMs) < periodMs / 2 ? low : high);
+			}
+		};
+	}
+
+	/**
+	 * Rises from low to high over one period, then jumps back.
+	 */
+	public static Waveform ramp(final long periodMs, final int low, final int high) {
+		return new Waveform() {
+			@Override
+			public int sample(long millis) {
+				return clamp(low + (int) ((high - low) * (millis % periodMs) / periodMs));
+			}
+		};
+	}
+
+	/**
+	 * Adds uniform noise of +-amplitude to another waveform.
+	 */
+	public static Waveform noisy(final Waveform base, final int amplitude, long seed) {
+		final Random random = new Random(seed);
+		return new Waveform() {
+			@Override
+			public int sample(long millis) {
+				return clamp(base.sample(millis) + random.nextInt(2 * amplitude + 1) - amplitude);
+			}
+		};
+	}
+
+	static int clamp(int value) {
+		return value < 0 ? 0 : (value > 1023 ? 1023 : value);
+	}
+}
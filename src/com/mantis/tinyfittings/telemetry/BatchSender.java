@@ -0,0 +1,16 @@
+package com.mantis.tinyfittings.telemetry;
+
+import java.io.IOException;
+
+/**
+ * Ships one batch of samples to the server.
+ */
+public interface BatchSender {
+
+	/**
+	 * Blocks until the server accepted the batch.
+	 *
+	 * @throws IOException if the batch could not be delivered
+	 */
+	void send(SampleBatch batch) throws IOException;
+}
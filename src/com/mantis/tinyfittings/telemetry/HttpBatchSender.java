@@ -0,0 +1,64 @@
+package com.mantis.tinyfittings.telemetry;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.message.BasicNameValuePair;
+
+/**
+ * Posts a batch as one form field holding a JSON array, one object per
+ * sample in the format the live page already reads, plus the time it was
+ * taken:
+ *
+ * samples=[{"fittingId": 1,"timestamp":1350000000000,"channel-0":512,...},...]
+ */
+public class HttpBatchSender implements BatchSender {
+
+	public static final String PARAM_SAMPLES = "samples";
+
+	private final HttpClient httpclient = new DefaultHttpClient();
+	private final String url;
+	private final String fittingId;
+	private final StringBuilder json = new StringBuilder(4096);
+	private final List<NameValuePair> nameValuePairs = new ArrayList<NameValuePair>(1);
+
+	public HttpBatchSender(String url, String fittingId) {
+		this.url = url;
+		this.fittingId = fittingId;
+	}
+
+	@Override
+	public void send(SampleBatch batch) throws IOException {
+		json.setLength(0);
+		json.append('[');
+		for(int i = 0; i < batch.size(); i++) {
+			if(i > 0)
+				json.append(',');
+			json.append("{\"fittingId\": ").append(fittingId);
+			json.append(",\"timestamp\":").append(batch.getTimestamp(i));
+			for(int channel = 0; channel < batch.getChannelCount(); channel++)
+				json.append(",\"channel-").append(channel).append("\":").append(batch.getValue(i, channel));
+			json.append('}');
+		}
+		json.append(']');
+
+		nameValuePairs.clear();
+		nameValuePairs.add(new BasicNameValuePair(PARAM_SAMPLES, json.toString()));
+		HttpPost httppost = new HttpPost(url);
+		httppost.setEntity(new UrlEncodedFormEntity(nameValuePairs));
+
+		HttpResponse httpresponse = httpclient.execute(httppost);
+		int status = httpresponse.getStatusLine().getStatusCode();
+		if(httpresponse.getEntity() != null)
+			httpresponse.getEntity().consumeContent();
+		if(status < 200 || status >= 300)
+			throw new IOException("server answered " + httpresponse.getStatusLine());
+	}
+}
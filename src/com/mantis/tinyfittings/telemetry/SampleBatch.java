@@ -0,0 +1,52 @@
+package com.mantis.tinyfittings.telemetry;
+
+/**
+ * A run of samples handed to a {@link BatchSender}. The uploader reuses the
+ * same instance for every batch, so senders must not keep it.
+ */
+public class SampleBatch {
+
+	private final int channels;
+	private final long[] timestamps;
+	private final int[] values;
+	private int size = 0;
+
+	public SampleBatch(int channels, int capacity) {
+		this.channels = channels;
+		this.timestamps = new long[capacity];
+		this.values = new int[capacity * channels];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int capacity() {
+		return timestamps.length;
+	}
+
+	public int getChannelCount() {
+		return channels;
+	}
+
+	/**
+	 * @return when sample i was taken, in milliseconds since the epoch
+	 */
+	public long getTimestamp(int i) {
+		return timestamps[i];
+	}
+
+	public int getValue(int i, int channel) {
+		return values[i * channels + channel];
+	}
+
+	void clear() {
+		size = 0;
+	}
+
+	void add(long timestamp, int[] source, int sourceOffset) {
+		timestamps[size] = timestamp;
+		System.arraycopy(source, sourceOffset, values, size * channels, channels);
+		size++;
+	}
+}
@@ -0,0 +1,361 @@
+package com.mantis.tinyfittings.telemetry;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+
+import android.util.Log;
+
+/**
+ * Append-only log of samples on local storage, written before a sample is
+ * uploaded and trimmed only once the server acknowledged it.
+ *
+ * The log is a row of segment files of segmentRecords fixed size records,
+ * each file mapped into memory, so appending is a memory copy. Every sample
+ * gets a sequence number; the acknowledged sequence is kept in a small mapped
+ * cursor file. Segments whose samples are all acknowledged are deleted. When
+ * maxSegments would be exceeded the oldest segment is given up and counted
+ * as dropped, so an endless outage cannot fill the storage.
+ *
+ * Creating and mapping a segment file is storage I/O, so prepare() creates
+ * the next segment ahead on a thread that may block; append() only creates
+ * one itself when no prepared segment is ready.
+ *
+ * Record layout: timestamp (long), one int per channel, commit marker (int).
+ * The marker is written last; on reopen the log ends at the first record
+ * without it.
+ */
+public class SampleOutbox {
+
+	private static final String TAG = "SampleOutbox";
+
+	public static final int DEFAULT_SEGMENT_RECORDS = 16384;
+	public static final int DEFAULT_MAX_SEGMENTS = 32;
+
+	private static final int COMMIT_MARKER = 0x5A4D504C;
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final String CURSOR_FILE = "outbox.cursor";
+
+	private final File dir;
+	private final int channels;
+	private final int segmentRecords;
+	private final int maxSegments;
+	private final int recordSize;
+
+	private final ArrayList<Segment> segments = new ArrayList<Segment>();
+	private Segment spare = null; // created ahead by prepare(), not yet written
+	private final MappedByteBuffer cursor;
+	private final RandomAccessFile cursorFile;
+
+	private long appended; // sequence of the next sample to append
+	private long acknowledged; // sequence of the first sample not acknowledged
+	private long droppedSamples = 0;
+
+	private final int[] readScratch;
+
+	public SampleOutbox(File dir, int channels) throws IOException {
+		this(dir, channels, DEFAULT_SEGMENT_RECORDS, DEFAULT_MAX_SEGMENTS);
+	}
+
+	public SampleOutbox(File dir, int channels, int segmentRecords, int maxSegments) throws IOException {
+		if(channels <= 0 || segmentRecords <= 0 || maxSegments < 2)
+			throw new IllegalArgumentException("channels, segmentRecords must be positive, maxSegments at least 2");
+		if(!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("cannot create " + dir);
+		this.dir = dir;
+		this.channels = channels;
+		this.segmentRecords = segmentRecords;
+		this.maxSegments = maxSegments;
+		this.recordSize = 8 + 4 * channels + 4;
+		this.readScratch = new int[channels];
+
+		cursorFile = new RandomAccessFile(new File(dir, CURSOR_FILE), "rw");
+		boolean freshCursor = cursorFile.length() < 8;
+		cursor = cursorFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 8);
+		recover(freshCursor);
+	}
+
+	public int getChannelCount() {
+		return channels;
+	}
+
+	/**
+	 * Writes a sample to the log.
+	 *
+	 * @return the sequence number of the sample
+	 */
+	public synchronized long append(long timestamp, int[] sample) throws IOException {
+		long seq = appended;
+		int index = (int) ((seq - firstSequence()) / segmentRecords);
+		if(segments.isEmpty() || index == segments.size()) {
+			if(segments.size() == maxSegments)
+				dropOldestSegment();
+			segments.add(takeSpare(seq));
+			index = segments.size() - 1;
+		}
+		MappedByteBuffer buffer = segments.get(index).buffer;
+		int position = (int) (seq - segments.get(index).firstSeq) * recordSize;
+		buffer.putLong(position, timestamp);
+		for(int channel = 0; channel < channels; channel++)
+			buffer.putInt(position + 8 + 4 * channel, sample[channel]);
+		buffer.putInt(position + recordSize - 4, COMMIT_MARKER);
+		appended = seq + 1;
+		return seq;
+	}
+
+	/**
+	 * Creates the segment that append() will need next, unless it is ready
+	 * already. Blocks on storage; call it from the thread that uploads rather
+	 * than the one that appends.
+	 */
+	public void prepare() throws IOException {
+		long next;
+		synchronized(this) {
+			if(spare != null)
+				return;
+			next = nextSegmentStart();
+		}
+		Segment segment = Segment.create(dir, next, segmentRecords * recordSize);
+		synchronized(this) {
+			if(spare == null && next == nextSegmentStart()) {
+				spare = segment;
+				return;
+			}
+		}
+		// append() got there first and uses the file itself
+		segment.close();
+	}
+
+	/**
+	 * Copies samples starting at sequence from into batch, as many as fit.
+	 * Acknowledged samples are skipped, so the copy may start later than from.
+	 *
+	 * @return the sequence of the first sample copied; batch.size() tells how
+	 * many follow
+	 */
+	public synchronized long read(long from, SampleBatch batch, int max) {
+		batch.clear();
+		long seq = Math.max(from, acknowledged);
+		long start = seq;
+		long first = firstSequence();
+		int[] scratch = readScratch;
+		int n = (int) Math.min(Math.min(max, batch.capacity()), appended - seq);
+		for(int i = 0; i < n; i++, seq++) {
+			Segment segment = segments.get((int) ((seq - first) / segmentRecords));
+			int position = (int) (seq - segment.firstSeq) * recordSize;
+			long timestamp = segment.buffer.getLong(position);
+			for(int channel = 0; channel < channels; channel++)
+				scratch[channel] = segment.buffer.getInt(position + 8 + 4 * channel);
+			batch.add(timestamp, scratch, 0);
+		}
+		return start;
+	}
+
+	/**
+	 * Marks every sample before sequence upTo as delivered and deletes the
+	 * segments that are no longer needed.
+	 */
+	public synchronized void acknowledge(long upTo) {
+		if(upTo <= acknowledged)
+			return;
+		acknowledged = Math.min(upTo, appended);
+		cursor.putLong(0, acknowledged);
+		deleteAcknowledgedSegments();
+	}
+
+	/**
+	 * @return the sequence number of the oldest sample not yet acknowledged
+	 */
+	public synchronized long getAcknowledged() {
+		return acknowledged;
+	}
+
+	/**
+	 * @return the sequence number the next appended sample will get
+	 */
+	public synchronized long getAppended() {
+		return appended;
+	}
+
+	/**
+	 * @return the number of samples waiting for acknowledgement
+	 */
+	public synchronized long backlog() {
+		return appended - acknowledged;
+	}
+
+	/**
+	 * @return when the oldest unacknowledged sample was taken, or -1 if none is waiting
+	 */
+	public synchronized long oldestTimestamp() {
+		if(appended == acknowledged)
+			return -1;
+		Segment segment = segments.get((int) ((acknowledged - firstSequence()) / segmentRecords));
+		return segment.buffer.getLong((int) (acknowledged - segment.firstSeq) * recordSize);
+	}
+
+	public synchronized long getDroppedSamples() {
+		return droppedSamples;
+	}
+
+	/**
+	 * Forces the mapped pages to storage. Appends survive a crash of the app
+	 * without this, a power loss only with it.
+	 */
+	public synchronized void sync() {
+		for(int i = 0; i < segments.size(); i++)
+			segments.get(i).buffer.force();
+		cursor.force();
+	}
+
+	public synchronized void close() {
+		sync();
+		for(int i = 0; i < segments.size(); i++)
+			segments.get(i).close();
+		segments.clear();
+		if(spare != null) {
+			spare.delete();
+			spare = null;
+		}
+		try {
+			cursorFile.close();
+		} catch (IOException e) {
+			Log.e(TAG, "close() of cursor failed", e);
+		}
+	}
+
+	private long firstSequence() {
+		return segments.isEmpty() ? appended : segments.get(0).firstSeq;
+	}
+
+	private long nextSegmentStart() {
+		return segments.isEmpty() ? appended : segments.get(segments.size() - 1).firstSeq + segmentRecords;
+	}
+
+	// the prepared segment if it starts at seq, otherwise a new one
+	private Segment takeSpare(long seq) throws IOException {
+		Segment segment = spare;
+		spare = null;
+		if(segment != null) {
+			if(segment.firstSeq == seq)
+				return segment;
+			segment.delete();
+		}
+		return Segment.create(dir, seq, segmentRecords * recordSize);
+	}
+
+	private void deleteAcknowledgedSegments() {
+		// keep the last segment even when drained, appends continue in it
+		while(segments.size() > 1 && segments.get(0).firstSeq + segmentRecords <= acknowledged)
+			segments.remove(0).delete();
+	}
+
+	private void dropOldestSegment() {
+		Segment oldest = segments.remove(0);
+		long end = oldest.firstSeq + segmentRecords;
+		if(acknowledged < end) {
+			droppedSamples += end - acknowledged;
+			acknowledged = end;
+			cursor.putLong(0, acknowledged);
+		}
+		oldest.delete();
+		Log.w(TAG, "outbox full, dropped segment " + oldest.file.getName());
+	}
+
+	private void recover(boolean freshCursor) throws IOException {
+		File[] files = dir.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File f) {
+				return f.getName().endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		if(files == null)
+			files = new File[0];
+		Arrays.sort(files);
+
+		for(int i = 0; i < files.length; i++) {
+			String name = files[i].getName();
+			long firstSeq = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+			segments.add(Segment.open(files[i], firstSeq, segmentRecords * recordSize));
+		}
+
+		if(segments.isEmpty()) {
+			appended = freshCursor ? 0 : cursor.getLong(0);
+			acknowledged = appended;
+			return;
+		}
+
+		int records = countRecords(segments.get(segments.size() - 1));
+		// an empty last segment may be one that prepare() made ahead
+		while(records == 0 && segments.size() > 1) {
+			segments.remove(segments.size() - 1).delete();
+			records = countRecords(segments.get(segments.size() - 1));
+		}
+		Segment last = segments.get(segments.size() - 1);
+		appended = last.firstSeq + records;
+
+		long first = segments.get(0).firstSeq;
+		acknowledged = freshCursor ? first : Math.max(first, Math.min(cursor.getLong(0), appended));
+		cursor.putLong(0, acknowledged);
+		deleteAcknowledgedSegments();
+		Log.d(TAG, "recovered outbox, backlog " + (appended - acknowledged));
+	}
+
+	private int countRecords(Segment segment) {
+		int records = 0;
+		while(records < segmentRecords
+				&& segment.buffer.getInt(records * recordSize + recordSize - 4) == COMMIT_MARKER)
+			records++;
+		return records;
+	}
+
+	private static class Segment {
+		final File file;
+		final long firstSeq;
+		final RandomAccessFile raf;
+		final MappedByteBuffer buffer;
+
+		private Segment(File file, long firstSeq, RandomAccessFile raf, MappedByteBuffer buffer) {
+			this.file = file;
+			this.firstSeq = firstSeq;
+			this.raf = raf;
+			this.buffer = buffer;
+		}
+
+		static Segment create(File dir, long firstSeq, int size) throws IOException {
+			File file = new File(dir, String.format(Locale.US, "%020d", firstSeq) + SEGMENT_SUFFIX);
+			return open(file, firstSeq, size);
+		}
+
+		static Segment open(File file, long firstSeq, int size) throws IOException {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+				return new Segment(file, firstSeq, raf, buffer);
+			} catch (IOException e) {
+				raf.close();
+				throw e;
+			}
+		}
+
+		void close() {
+			try {
+				raf.close();
+			} catch (IOException e) {
+				Log.e(TAG, "close() of segment failed", e);
+			}
+		}
+
+		void delete() {
+			close();
+			if(!file.delete())
+				Log.w(TAG, "could not delete " + file.getName());
+		}
+	}
+}
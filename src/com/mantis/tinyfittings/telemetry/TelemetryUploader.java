@@ -0,0 +1,371 @@
+package com.mantis.tinyfittings.telemetry;
+
+import java.io.IOException;
+
+import android.util.Log;
+
+/**
+ * Background thread that ships samples to the server in batches, so that the
+ * sampling thread never waits for the network.
+ *
+ * offer() copies a sample into a bounded queue of primitive arrays and returns
+ * right away. The uploader sends a batch once maxBatchSize samples are
+ * queued, or once the oldest queued sample is maxBatchAge old. When the queue
+ * is full the shedding policy decides which samples are lost.
+ *
+ * Given a {@link SampleOutbox} the uploader keeps no queue of its own:
+ * offer() appends to the outbox, and a batch is acknowledged there only after
+ * the server accepted it. The uploader thread prepares the outbox's next
+ * segment file ahead, so offer() does not wait for storage. A failed batch is
+ * retried with growing delay, and a backlog left by an outage is sent in
+ * batches of drainBatchSize back to back.
+ */
+public class TelemetryUploader extends Thread {
+
+	private static final String TAG = "TelemetryUploader";
+
+	/**
+	 * Shedding policy: a full queue discards its oldest sample for the new one.
+	 */
+	public static final int DROP_OLDEST = 0;
+	/**
+	 * Shedding policy: a full queue rejects the new sample.
+	 */
+	public static final int DROP_NEWEST = 1;
+
+	public static final int DEFAULT_CAPACITY = 1024;
+	public static final int DEFAULT_MAX_BATCH_SIZE = 50;
+	public static final long DEFAULT_MAX_BATCH_AGE_MS = 1000;
+	public static final int DEFAULT_DRAIN_BATCH_SIZE = 500;
+
+	private static final long MIN_RETRY_DELAY_MS = 500;
+	private static final long MAX_RETRY_DELAY_MS = 30000;
+
+	private final BatchSender sender;
+	private final int channels;
+	private final int maxBatchSize;
+	private final long maxBatchAgeMs;
+	private final int sheddingPolicy;
+	private final SampleOutbox outbox;
+	private final int drainBatchSize;
+	private long retryDelayMs = 0;
+	private long batchStart = 0;
+
+	// queue, guarded by lock
+	private final Object lock = new Object();
+	private final long[] timestamps;
+	private final int[] values;
+	private int head = 0;
+	private int count = 0;
+	private boolean running = true;
+
+	private final SampleBatch batch;
+
+	// metrics
+	private volatile int maxQueueDepth = 0;
+	private volatile long offeredSamples = 0;
+	private volatile long droppedSamples = 0;
+	private volatile long sentSamples = 0;
+	private volatile long sentBatches = 0;
+	private volatile long failedBatches = 0;
+	private volatile int lastBatchSize = 0;
+	private volatile long lastUploadLatencyMs = 0;
+	private volatile long maxUploadLatencyMs = 0;
+	private volatile long totalUploadLatencyMs = 0;
+
+	public TelemetryUploader(BatchSender sender, int channels) {
+		this(sender, channels, DEFAULT_CAPACITY, DEFAULT_MAX_BATCH_SIZE,
+				DEFAULT_MAX_BATCH_AGE_MS, DROP_OLDEST);
+	}
+
+	/**
+	 * @param sender ships the batches
+	 * @param channels values per sample
+	 * @param capacity samples the queue holds before shedding
+	 * @param maxBatchSize largest number of samples in one upload
+	 * @param maxBatchAgeMs longest time a sample waits for its batch to fill
+	 * @param sheddingPolicy DROP_OLDEST or DROP_NEWEST
+	 */
+	public TelemetryUploader(BatchSender sender, int channels, int capacity,
+			int maxBatchSize, long maxBatchAgeMs, int sheddingPolicy) {
+		if(capacity <= 0 || maxBatchSize <= 0 || channels <= 0)
+			throw new IllegalArgumentException("capacity, batch size and channels must be positive");
+		this.sender = sender;
+		this.channels = channels;
+		this.maxBatchSize = Math.min(maxBatchSize, capacity);
+		this.maxBatchAgeMs = maxBatchAgeMs;
+		this.sheddingPolicy = sheddingPolicy;
+		this.outbox = null;
+		this.drainBatchSize = this.maxBatchSize;
+		this.timestamps = new long[capacity];
+		this.values = new int[capacity * channels];
+		this.batch = new SampleBatch(channels, this.maxBatchSize);
+		setName("TelemetryUploader");
+		setDaemon(true);
+	}
+
+	public TelemetryUploader(BatchSender sender, SampleOutbox outbox) {
+		this(sender, outbox, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_BATCH_AGE_MS, DEFAULT_DRAIN_BATCH_SIZE);
+	}
+
+	/**
+	 * @param sender ships the batches
+	 * @param outbox stores samples until they are acknowledged; closed when
+	 * the uploader ends
+	 * @param maxBatchSize largest number of samples in one upload while keeping up
+	 * @param maxBatchAgeMs longest time a sample waits for its batch to fill
+	 * @param drainBatchSize largest number of samples in one upload while
+	 * catching up on a backlog
+	 */
+	public TelemetryUploader(BatchSender sender, SampleOutbox outbox,
+			int maxBatchSize, long maxBatchAgeMs, int drainBatchSize) {
+		if(maxBatchSize <= 0 || drainBatchSize <= 0)
+			throw new IllegalArgumentException("batch sizes must be positive");
+		this.sender = sender;
+		this.channels = outbox.getChannelCount();
+		this.maxBatchSize = maxBatchSize;
+		this.maxBatchAgeMs = maxBatchAgeMs;
+		this.sheddingPolicy = DROP_OLDEST;
+		this.outbox = outbox;
+		this.drainBatchSize = Math.max(drainBatchSize, maxBatchSize);
+		this.timestamps = null;
+		this.values = null;
+		this.batch = new SampleBatch(channels, this.drainBatchSize);
+		setName("TelemetryUploader");
+		setDaemon(true);
+	}
+
+	/**
+	 * Queues a sample without blocking.
+	 *
+	 * @param timestamp when the sample was taken, in milliseconds since the epoch
+	 * @param sample one value per channel, copied before the call returns
+	 * @return false if the sample was shed
+	 */
+	public boolean offer(long timestamp, int[] sample) {
+		synchronized(lock) {
+			if(!running)
+				return false;
+			offeredSamples++;
+			if(outbox != null)
+				return append(timestamp, sample);
+			if(count == timestamps.length) {
+				droppedSamples++;
+				if(sheddingPolicy == DROP_NEWEST)
+					return false;
+				head = (head + 1) % timestamps.length;
+				count--;
+			}
+			int slot = (head + count) % timestamps.length;
+			timestamps[slot] = timestamp;
+			System.arraycopy(sample, 0, values, slot * channels, channels);
+			count++;
+			if(count > maxQueueDepth)
+				maxQueueDepth = count;
+			if(count == 1 || count >= maxBatchSize)
+				lock.notify();
+		}
+		return true;
+	}
+
+	// called with lock held
+	private boolean append(long timestamp, int[] sample) {
+		long backlog;
+		try {
+			long dropped = outbox.getDroppedSamples();
+			outbox.append(timestamp, sample);
+			droppedSamples += outbox.getDroppedSamples() - dropped;
+			backlog = outbox.backlog();
+		}
+		catch(IOException e) {
+			droppedSamples++;
+			Log.e(TAG, "append to outbox failed", e);
+			return false;
+		}
+		if(backlog > maxQueueDepth)
+			maxQueueDepth = (int) Math.min(backlog, Integer.MAX_VALUE);
+		if(backlog == 1 || backlog == maxBatchSize)
+			lock.notify();
+		return true;
+	}
+
+	/**
+	 * Stops the uploader after the batch in flight, if any. Queued samples are
+	 * not sent; samples in an outbox are sent by the next uploader on it.
+	 */
+	public void shutdown() {
+		synchronized(lock) {
+			running = false;
+			lock.notify();
+		}
+	}
+
+	@Override
+	public void run() {
+		Log.d(TAG, "Begin TelemetryUploader");
+		try {
+			while(outbox != null ? takeOutboxBatch() : takeBatch()) {
+				long start = System.nanoTime();
+				try {
+					sender.send(batch);
+					if(outbox != null) {
+						outbox.acknowledge(batchStart + batch.size());
+						retryDelayMs = 0;
+					}
+					long latency = (System.nanoTime() - start) / 1000000L;
+					lastUploadLatencyMs = latency;
+					if(latency > maxUploadLatencyMs)
+						maxUploadLatencyMs = latency;
+					totalUploadLatencyMs += latency;
+					lastBatchSize = batch.size();
+					sentSamples += batch.size();
+					sentBatches++;
+				}
+				catch(IOException e) {
+					failedBatches++;
+					Log.e(TAG, "upload of " + batch.size() + " samples failed", e);
+					if(outbox != null)
+						retryDelayMs = Math.min(Math.max(retryDelayMs * 2, MIN_RETRY_DELAY_MS), MAX_RETRY_DELAY_MS);
+				}
+			}
+		}
+		catch(InterruptedException e) {
+			Log.d(TAG, "TelemetryUploader interrupted");
+		}
+		if(outbox != null) {
+			synchronized(lock) {
+				running = false;
+				outbox.close();
+			}
+		}
+		Log.d(TAG, "End TelemetryUploader");
+	}
+
+	// waits until a batch is due and moves it out of the queue
+	private boolean takeBatch() throws InterruptedException {
+		synchronized(lock) {
+			while(true) {
+				if(!running)
+					return false;
+				if(count >= maxBatchSize)
+					break;
+				if(count > 0) {
+					long age = System.currentTimeMillis() - timestamps[head];
+					if(age >= maxBatchAgeMs)
+						break;
+					lock.wait(maxBatchAgeMs - age);
+				}
+				else {
+					lock.wait();
+				}
+			}
+
+			batch.clear();
+			int n = Math.min(count, maxBatchSize);
+			for(int i = 0; i < n; i++) {
+				batch.add(timestamps[head], values, head * channels);
+				head = (head + 1) % timestamps.length;
+			}
+			count -= n;
+			return true;
+		}
+	}
+
+	// waits until a batch is due in the outbox and copies it out; a batch
+	// stays in the outbox until it is acknowledged
+	private boolean takeOutboxBatch() throws InterruptedException {
+		try {
+			outbox.prepare();
+		}
+		catch(IOException e) {
+			// offer() creates the segment itself then
+			Log.w(TAG, "preparing the next outbox segment failed", e);
+		}
+		synchronized(lock) {
+			long retryAt = System.currentTimeMillis() + retryDelayMs;
+			while(true) {
+				if(!running)
+					return false;
+				long now = System.currentTimeMillis();
+				if(now < retryAt) {
+					lock.wait(retryAt - now);
+					continue;
+				}
+				long backlog = outbox.backlog();
+				if(backlog >= maxBatchSize)
+					break;
+				if(backlog > 0) {
+					long age = now - outbox.oldestTimestamp();
+					if(age >= maxBatchAgeMs)
+						break;
+					lock.wait(maxBatchAgeMs - age);
+				}
+				else {
+					lock.wait();
+				}
+			}
+		}
+		// a backlog beyond one batch is left over from an outage, catch up in big batches
+		int max = outbox.backlog() > maxBatchSize ? drainBatchSize : maxBatchSize;
+		// read() skips what a full outbox dropped meanwhile and says where it began
+		batchStart = outbox.read(0, batch, max);
+		return true;
+	}
+
+	/**
+	 * @return samples waiting to be sent, in the queue or in the outbox
+	 */
+	public int getQueueDepth() {
+		if(outbox != null)
+			return (int) Math.min(outbox.backlog(), Integer.MAX_VALUE);
+		synchronized(lock) {
+			return count;
+		}
+	}
+
+	public int getMaxQueueDepth() {
+		return maxQueueDepth;
+	}
+
+	public long getOfferedSamples() {
+		return offeredSamples;
+	}
+
+	public long getDroppedSamples() {
+		return droppedSamples;
+	}
+
+	public long getSentSamples() {
+		return sentSamples;
+	}
+
+	public long getSentBatches() {
+		return sentBatches;
+	}
+
+	public long getFailedBatches() {
+		return failedBatches;
+	}
+
+	public int getLastBatchSize() {
+		return lastBatchSize;
+	}
+
+	public double getMeanBatchSize() {
+		long batches = sentBatches;
+		return batches == 0 ? 0 : (double) sentSamples / batches;
+	}
+
+	public long getLastUploadLatencyMs() {
+		return lastUploadLatencyMs;
+	}
+
+	public long getMaxUploadLatencyMs() {
+		return maxUploadLatencyMs;
+	}
+
+	public double getMeanUploadLatencyMs() {
+		long batches = sentBatches;
+		return batches == 0 ? 0 : (double) totalUploadLatencyMs / batches;
+	}
+}
@@ -0,0 +1,75 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.transport;
+
+import com.mantis.tinyfittings.bluetooth.OnReceivedDataListener;
+
+/**
+ * Keeps the listeners of a transport in a copy-on-write array, so delivering
+ * a chunk takes no lock and creates no iterator.
+ */
+public abstract class AbstractTransport implements Transport {
+
+	private static final OnReceivedDataListener[] NO_LISTENERS = new OnReceivedDataListener[0];
+
+	private volatile OnReceivedDataListener[] listeners = NO_LISTENERS;
+
+	@Override
+	public synchronized void addOnReceivedDataListener(OnReceivedDataListener listener) {
+		OnReceivedDataListener[] current = listeners;
+		OnReceivedDataListener[] updated = new OnReceivedDataListener[current.length + 1];
+		System.arraycopy(current, 0, updated, 0, current.length);
+		updated[current.length] = listener;
+		listeners = updated;
+	}
+
+	@Override
+	public synchronized boolean removeOnReceivedDataListener(OnReceivedDataListener listener) {
+		OnReceivedDataListener[] current = listeners;
+		for(int i = 0; i < current.length; i++) {
+			if(current[i] == listener) {
+				OnReceivedDataListener[] updated = new OnReceivedDataListener[current.length - 1];
+				System.arraycopy(current, 0, updated, 0, i);
+				System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+				listeners = updated;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length, int priority) {
+		write(bytes, offset, length);
+	}
+
+	@Override
+	public int pending(int priority) {
+		return 0;
+	}
+
+	protected synchronized void removeAllListeners() {
+		listeners = NO_LISTENERS;
+	}
+
+	protected void notifyListeners(byte[] data, int offset, int length, long receiveTime) {
+		OnReceivedDataListener[] current = listeners;
+		for(int i = 0; i < current.length; i++)
+			current[i].receivedData(data, offset, length, receiveTime);
+	}
+}
@@ -0,0 +1,104 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.transport;
+
+import com.mantis.tinyfittings.bluetooth.BTHandler;
+import com.mantis.tinyfittings.bluetooth.OnReceivedDataListener;
+import com.mantis.tinyfittings.bluetooth.PrioritizedWriter;
+
+/**
+ * Transport over the RFCOMM link managed by a {@link BTHandler}. Connecting
+ * and disconnecting stays with the handler and the activity life cycle.
+ */
+public class BluetoothTransport implements Transport {
+
+	private final BTHandler btHandler;
+	private final Object lock = new Object();
+	private OnReceivedDataListener[] registered = new OnReceivedDataListener[0];
+
+	public BluetoothTransport(BTHandler btHandler) {
+		this.btHandler = btHandler;
+	}
+
+	@Override
+	public void addOnReceivedDataListener(OnReceivedDataListener listener) {
+		synchronized(lock) {
+			OnReceivedDataListener[] updated = new OnReceivedDataListener[registered.length + 1];
+			System.arraycopy(registered, 0, updated, 0, registered.length);
+			updated[registered.length] = listener;
+			registered = updated;
+		}
+		btHandler.addOnReceivedDataListener(listener);
+	}
+
+	@Override
+	public boolean removeOnReceivedDataListener(OnReceivedDataListener listener) {
+		synchronized(lock) {
+			for(int i = 0; i < registered.length; i++) {
+				if(registered[i] == listener) {
+					OnReceivedDataListener[] updated = new OnReceivedDataListener[registered.length - 1];
+					System.arraycopy(registered, 0, updated, 0, i);
+					System.arraycopy(registered, i + 1, updated, i, registered.length - i - 1);
+					registered = updated;
+					break;
+				}
+			}
+		}
+		return btHandler.removeOnReceivedDataListener(listener);
+	}
+
+	@Override
+	public void write(int oneByte) {
+		btHandler.sendData(oneByte & 0xff);
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length) {
+		btHandler.sendData(bytes, offset, length, PrioritizedWriter.PRIORITY_BULK);
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length, int priority) {
+		btHandler.sendData(bytes, offset, length, priority);
+	}
+
+	@Override
+	public int pending(int priority) {
+		return btHandler.pending(priority);
+	}
+
+	@Override
+	public void flush() {
+		btHandler.flush();
+	}
+
+	/**
+	 * Unregisters the listeners added through this transport, the link itself
+	 * is left to the BTHandler.
+	 */
+	@Override
+	public void close() {
+		OnReceivedDataListener[] current;
+		synchronized(lock) {
+			current = registered;
+			registered = new OnReceivedDataListener[0];
+		}
+		for(int i = 0; i < current.length; i++)
+			btHandler.removeOnReceivedDataListener(current[i]);
+	}
+}
@@ -0,0 +1,214 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.transport;
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+import android.util.Log;
+
+/**
+ * A small fixed set of I/O threads serving any number of
+ * {@link StreamTransport}s, instead of a reader and a writer thread per board.
+ * A transport is assigned to the worker with the fewest transports. Each
+ * worker polls its transports in turn; after a pass that moved nothing it
+ * spins a few passes and then parks until a write wakes it or for a time
+ * that doubles from IDLE_PARK_MIN_NANOS up to IDLE_PARK_MAX_NANOS, so a busy
+ * link is served at once and idle boards cost a few wakeups a second. Input
+ * wakes nobody, so the first bytes after a quiet spell wait up to
+ * IDLE_PARK_MAX_NANOS. A worker without transports parks until one is added.
+ *
+ * A transport that fails is dropped from its worker and reported to the
+ * failure listener; a transport closed by its owner is dropped silently.
+ */
+public class IoThreadPool {
+
+	private static final String TAG = "IoThreadPool";
+
+	public static final int READ_BUFFER_SIZE = 1024;
+
+	private static final long IDLE_PARK_MIN_NANOS = 1000000L; // 1 ms
+	private static final long IDLE_PARK_MAX_NANOS = 32000000L; // 32 ms
+	private static final int IDLE_SPINS = 16;
+
+	private static final StreamTransport[] NO_TRANSPORTS = new StreamTransport[0];
+
+	public interface OnTransportFailedListener {
+		/**
+		 * Called on the worker thread once the transport has been dropped.
+		 */
+		void transportFailed(StreamTransport transport, IOException e);
+	}
+
+	private final Worker[] workers;
+	private final OnTransportFailedListener failureListener;
+
+	/**
+	 * @param failureListener may be null
+	 */
+	public IoThreadPool(int threads, String name, OnTransportFailedListener failureListener) {
+		if(threads <= 0)
+			throw new IllegalArgumentException("threads must be positive");
+		this.failureListener = failureListener;
+		workers = new Worker[threads];
+		for(int i = 0; i < threads; i++) {
+			workers[i] = new Worker(name + "-" + i);
+			workers[i].start();
+		}
+	}
+
+	public int getThreadCount() {
+		return workers.length;
+	}
+
+	public int getTransportCount() {
+		int count = 0;
+		for(int i = 0; i < workers.length; i++)
+			count += workers[i].transports.length;
+		return count;
+	}
+
+	public synchronized void register(StreamTransport transport) {
+		Worker least = workers[0];
+		for(int i = 1; i < workers.length; i++) {
+			if(workers[i].transports.length < least.transports.length)
+				least = workers[i];
+		}
+		transport.attach(least);
+		least.add(transport);
+	}
+
+	/**
+	 * Stops serving the transport without closing it.
+	 */
+	public synchronized boolean unregister(StreamTransport transport) {
+		for(int i = 0; i < workers.length; i++) {
+			if(workers[i].remove(transport)) {
+				transport.attach(null);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Stops the workers. The transports are left open.
+	 */
+	public void shutdown() {
+		for(int i = 0; i < workers.length; i++) {
+			workers[i].running = false;
+			workers[i].wakeup();
+		}
+		for(int i = 0; i < workers.length; i++) {
+			try{
+				workers[i].join(1000);
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	final class Worker extends Thread {
+
+		private volatile StreamTransport[] transports = NO_TRANSPORTS;
+		private volatile boolean running = true;
+		private final byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+
+		Worker(String name) {
+			setName(name);
+			setDaemon(true);
+		}
+
+		void wakeup() {
+			LockSupport.unpark(this);
+		}
+
+		// callers hold the pool's lock
+		private void add(StreamTransport transport) {
+			StreamTransport[] current = transports;
+			StreamTransport[] updated = new StreamTransport[current.length + 1];
+			System.arraycopy(current, 0, updated, 0, current.length);
+			updated[current.length] = transport;
+			transports = updated;
+			wakeup();
+		}
+
+		private boolean remove(StreamTransport transport) {
+			StreamTransport[] current = transports;
+			for(int i = 0; i < current.length; i++) {
+				if(current[i] == transport) {
+					StreamTransport[] updated = new StreamTransport[current.length - 1];
+					System.arraycopy(current, 0, updated, 0, i);
+					System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+					transports = updated;
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public void run() {
+			Log.d(TAG, "Begin " + getName());
+			int idle = 0;
+			long parkNanos = IDLE_PARK_MIN_NANOS;
+			while(running) {
+				boolean moved = false;
+				StreamTransport[] current = transports;
+				for(int i = 0; i < current.length; i++) {
+					StreamTransport transport = current[i];
+					if(!transport.isOpen()) {
+						unregister(transport);
+						continue;
+					}
+					try{
+						if(transport.poll(readBuffer) > 0)
+							moved = true;
+						if(transport.flushPending())
+							moved = true;
+					}
+					catch(IOException e) {
+						unregister(transport);
+						if(!transport.isOpen())
+							continue;
+						Log.d(TAG, "transport failed", e);
+						if(failureListener != null)
+							failureListener.transportFailed(transport, e);
+					}
+				}
+				if(moved) {
+					idle = 0;
+					parkNanos = IDLE_PARK_MIN_NANOS;
+				}
+				else if(++idle < IDLE_SPINS) {
+					Thread.yield();
+				}
+				else if(transports.length == 0) {
+					LockSupport.park(this);
+				}
+				else {
+					LockSupport.parkNanos(this, parkNanos);
+					parkNanos = Math.min(parkNanos * 2, IDLE_PARK_MAX_NANOS);
+				}
+			}
+			Log.d(TAG, "End " + getName());
+		}
+	}
+}
@@ -0,0 +1,95 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.transport;
+
+/**
+ * One end of an in-memory link. Bytes written to an end are delivered to the
+ * listeners of the other end on the writing thread, before write() returns,
+ * without copying. Nothing but the protocol code is measured when a stack
+ * runs over a pipe.
+ *
+ * Deliveries towards one end are serialized, so its listeners still see one
+ * thread at a time. A listener may answer through the pipe from its callback
+ * as long as the listeners on the other end do not do the same.
+ */
+public class PipeTransport extends AbstractTransport {
+
+	private final Object deliveryLock = new Object();
+	private final byte[] single = new byte[1];
+	private volatile PipeTransport peer;
+	private volatile boolean closed = false;
+
+	/**
+	 * @return two connected ends
+	 */
+	public static PipeTransport[] createPair() {
+		PipeTransport a = new PipeTransport();
+		PipeTransport b = new PipeTransport();
+		a.peer = b;
+		b.peer = a;
+		return new PipeTransport[] { a, b };
+	}
+
+	@Override
+	public void write(int oneByte) {
+		PipeTransport p = peer;
+		if(p == null || closed)
+			return;
+		p.deliver(oneByte);
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length) {
+		PipeTransport p = peer;
+		if(p == null || closed)
+			return;
+		p.deliver(bytes, offset, length);
+	}
+
+	@Override
+	public void flush() {
+		// nothing is queued
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		removeAllListeners();
+		PipeTransport p = peer;
+		peer = null;
+		if(p != null)
+			p.peer = null;
+	}
+
+	private void deliver(int oneByte) {
+		synchronized(deliveryLock) {
+			if(closed)
+				return;
+			single[0] = (byte) oneByte;
+			notifyListeners(single, 0, 1, System.nanoTime());
+		}
+	}
+
+	private void deliver(byte[] bytes, int offset, int length) {
+		synchronized(deliveryLock) {
+			if(closed)
+				return;
+			notifyListeners(bytes, offset, length, System.nanoTime());
+		}
+	}
+}
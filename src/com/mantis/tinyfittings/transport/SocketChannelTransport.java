@@ -0,0 +1,256 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.transport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+import android.util.Log;
+
+import com.mantis.tinyfittings.bluetooth.CoalescingWriter;
+
+/**
+ * Transport over a TCP connection, for boards behind a serial-to-network
+ * bridge such as ser2net or an ESP module. The channel runs non-blocking and
+ * one I/O thread serves it through a Selector. Writes are coalesced by a
+ * {@link CoalescingWriter} and go straight to the channel when it takes them,
+ * the selector only waits for OP_WRITE when the socket buffer is full.
+ *
+ * Register the listeners, then call start().
+ */
+public class SocketChannelTransport extends AbstractTransport {
+
+	private static final String TAG = "SocketChannelTransport";
+
+	public static final int READ_BUFFER_SIZE = 1024;
+	public static final int WRITE_BUFFER_SIZE = 16384;
+
+	private final SocketChannel channel;
+	private final Selector selector;
+	private final SelectionKey key;
+
+	private final byte[] readArray = new byte[READ_BUFFER_SIZE];
+	private final ByteBuffer readBuffer = ByteBuffer.wrap(readArray);
+
+	// pending output in write mode, guarded by outLock
+	private final ByteBuffer outBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+	private final Object outLock = new Object();
+	private volatile boolean wantWrite = false;
+
+	private final CoalescingWriter writer;
+	private final IOThread ioThread;
+	private volatile boolean running = true;
+
+	/**
+	 * Opens a connection to host:port.
+	 */
+	public static SocketChannelTransport connect(String host, int port) throws IOException {
+		SocketChannel channel = SocketChannel.open();
+		try{
+			channel.socket().setTcpNoDelay(true);
+			channel.connect(new InetSocketAddress(host, port));
+		}
+		catch(IOException e) {
+			channel.close();
+			throw e;
+		}
+		return new SocketChannelTransport(channel);
+	}
+
+	/**
+	 * @param channel a connected channel, it is switched to non-blocking mode
+	 */
+	public SocketChannelTransport(SocketChannel channel) throws IOException {
+		this.channel = channel;
+		channel.configureBlocking(false);
+		selector = Selector.open();
+		key = channel.register(selector, SelectionKey.OP_READ);
+		writer = new CoalescingWriter(new ChannelOutputStream());
+		ioThread = new IOThread();
+	}
+
+	public void start() {
+		writer.start();
+		ioThread.start();
+	}
+
+	public boolean isOpen() {
+		return running && channel.isOpen();
+	}
+
+	@Override
+	public void write(int oneByte) {
+		writer.write(oneByte);
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length) {
+		writer.write(bytes, offset, length);
+	}
+
+	@Override
+	public void flush() {
+		writer.flush();
+	}
+
+	@Override
+	public void close() {
+		if(!running)
+			return;
+		running = false;
+		removeAllListeners();
+		writer.close();
+		selector.wakeup();
+		synchronized(outLock) {
+			outLock.notifyAll();
+		}
+		if(!ioThread.isAlive())
+			closeChannel();
+	}
+
+	private void closeChannel() {
+		try{
+			selector.close();
+			channel.close();
+		}
+		catch(IOException e) {
+			Log.e(TAG, "close() of channel failed", e);
+		}
+	}
+
+	// caller holds outLock
+	private void drainOutBuffer() throws IOException {
+		outBuffer.flip();
+		channel.write(outBuffer);
+		outBuffer.compact();
+		if(outBuffer.position() > 0) {
+			wantWrite = true;
+			selector.wakeup();
+		}
+	}
+
+	private class ChannelOutputStream extends OutputStream {
+
+		@Override
+		public void write(int oneByte) throws IOException {
+			synchronized(outLock) {
+				awaitRoom();
+				outBuffer.put((byte) oneByte);
+				drainOutBuffer();
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			synchronized(outLock) {
+				while(len > 0) {
+					awaitRoom();
+					int n = Math.min(len, outBuffer.remaining());
+					outBuffer.put(b, off, n);
+					off += n;
+					len -= n;
+					drainOutBuffer();
+				}
+			}
+		}
+
+		// caller holds outLock
+		private void awaitRoom() throws IOException {
+			while(!outBuffer.hasRemaining()) {
+				if(!running)
+					throw new IOException("transport closed");
+				try{
+					outLock.wait(10);
+				}
+				catch(InterruptedException e) {
+					throw new IOException("interrupted while waiting for the channel");
+				}
+			}
+		}
+	}
+
+	private class IOThread extends Thread {
+
+		public IOThread() {
+			setName("SocketChannelTransport");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			Log.d(TAG, "Begin IOThread");
+			try{
+				while(running) {
+					if(wantWrite) {
+						wantWrite = false;
+						key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					}
+					selector.select();
+
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while(it.hasNext()) {
+						SelectionKey k = it.next();
+						it.remove();
+						if(!k.isValid())
+							continue;
+						if(k.isReadable() && !read())
+							return;
+						if(k.isValid() && k.isWritable())
+							writePending();
+					}
+				}
+			}
+			catch(IOException e) {
+				Log.d(TAG, "disconnected", e);
+			}
+			finally {
+				running = false;
+				writer.close();
+				closeChannel();
+				Log.d(TAG, "End IOThread");
+			}
+		}
+
+		// returns false once the peer closed the connection
+		private boolean read() throws IOException {
+			int n;
+			while((n = channel.read(readBuffer)) > 0) {
+				notifyListeners(readArray, 0, n, System.nanoTime());
+				readBuffer.clear();
+			}
+			return n >= 0;
+		}
+
+		private void writePending() throws IOException {
+			synchronized(outLock) {
+				outBuffer.flip();
+				channel.write(outBuffer);
+				outBuffer.compact();
+				if(outBuffer.position() == 0)
+					key.interestOps(SelectionKey.OP_READ);
+				outLock.notifyAll();
+			}
+		}
+	}
+}
@@ -0,0 +1,201 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.transport;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import android.util.Log;
+
+/**
+ * Transport over a blocking stream pair, such as the streams of a
+ * BluetoothSocket, that owns no thread. An {@link IoThreadPool} worker polls
+ * it: poll() reads only what the input stream reports as available, so one
+ * worker serves many boards without ever blocking in read(), and
+ * flushPending() sends what was written since the last pass.
+ *
+ * Writes only copy into the pending buffer and wake the worker. Output that
+ * does not fit into MAX_PENDING is dropped and counted; commands to a board
+ * are a few bytes, so this only happens when the link is dead.
+ *
+ * available() never reports the end of a Bluetooth stream, so a board that
+ * went away simply falls silent. Owners tell a dead link from a quiet one by
+ * getLastReceived(), after making the board talk, as SessionManager does
+ * with its heartbeat.
+ */
+public class StreamTransport extends AbstractTransport {
+
+	private static final String TAG = "StreamTransport";
+
+	public static final int WRITE_BUFFER_SIZE = 256;
+	public static final int MAX_PENDING = 65536;
+
+	private final InputStream in;
+	private final OutputStream out;
+	private final Closeable resource;
+
+	// pending output, guarded by outLock; swapped with sending by the worker
+	private final Object outLock = new Object();
+	private byte[] pending = new byte[WRITE_BUFFER_SIZE];
+	private int pendingLength = 0;
+	private byte[] sending = new byte[WRITE_BUFFER_SIZE];
+
+	private volatile boolean open = true;
+	private volatile IoThreadPool.Worker worker;
+	private volatile long droppedBytes = 0;
+	private volatile long lastReceived = System.nanoTime();
+
+	/**
+	 * @param resource closed together with the streams, may be null
+	 */
+	public StreamTransport(InputStream in, OutputStream out, Closeable resource) {
+		this.in = in;
+		this.out = out;
+		this.resource = resource;
+	}
+
+	public boolean isOpen() {
+		return open;
+	}
+
+	public long getDroppedBytes() {
+		return droppedBytes;
+	}
+
+	/**
+	 * @return System.nanoTime() of the last read that returned data, or of
+	 * the creation of the transport
+	 */
+	public long getLastReceived() {
+		return lastReceived;
+	}
+
+	void attach(IoThreadPool.Worker worker) {
+		this.worker = worker;
+	}
+
+	@Override
+	public void write(int oneByte) {
+		synchronized(outLock) {
+			if(!reserve(1))
+				return;
+			pending[pendingLength++] = (byte) oneByte;
+		}
+		wakeup();
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length) {
+		synchronized(outLock) {
+			if(!reserve(length))
+				return;
+			System.arraycopy(bytes, offset, pending, pendingLength, length);
+			pendingLength += length;
+		}
+		wakeup();
+	}
+
+	// caller holds outLock
+	private boolean reserve(int length) {
+		if(!open)
+			return false;
+		int needed = pendingLength + length;
+		if(needed > MAX_PENDING) {
+			droppedBytes += length;
+			return false;
+		}
+		if(needed > pending.length) {
+			byte[] grown = new byte[Math.min(MAX_PENDING, Math.max(needed, pending.length * 2))];
+			System.arraycopy(pending, 0, grown, 0, pendingLength);
+			pending = grown;
+		}
+		return true;
+	}
+
+	@Override
+	public void flush() {
+		wakeup();
+	}
+
+	private void wakeup() {
+		IoThreadPool.Worker w = worker;
+		if(w != null)
+			w.wakeup();
+	}
+
+	/**
+	 * Reads what is available without blocking and hands it to the listeners.
+	 * Called by the worker only.
+	 *
+	 * @return the number of bytes read
+	 */
+	int poll(byte[] buffer) throws IOException {
+		int available = in.available();
+		if(available <= 0)
+			return 0;
+		int n = in.read(buffer, 0, Math.min(available, buffer.length));
+		if(n < 0)
+			throw new EOFException("stream closed by the peer");
+		long now = System.nanoTime();
+		lastReceived = now;
+		notifyListeners(buffer, 0, n, now);
+		return n;
+	}
+
+	/**
+	 * Writes the output queued since the last call. Called by the worker only.
+	 *
+	 * @return false if nothing was pending
+	 */
+	boolean flushPending() throws IOException {
+		int length;
+		synchronized(outLock) {
+			length = pendingLength;
+			if(length == 0)
+				return false;
+			byte[] swap = sending;
+			sending = pending;
+			pending = swap;
+			pendingLength = 0;
+		}
+		out.write(sending, 0, length);
+		out.flush();
+		return true;
+	}
+
+	@Override
+	public void close() {
+		if(!open)
+			return;
+		open = false;
+		removeAllListeners();
+		wakeup();
+		try{
+			in.close();
+			out.close();
+			if(resource != null)
+				resource.close();
+		}
+		catch(IOException e) {
+			Log.e(TAG, "close() of streams failed", e);
+		}
+	}
+}
@@ -0,0 +1,60 @@
+/*
+  Copyright (c) 2009 Bonifaz Kaufmann. 
+  
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.mantis.tinyfittings.transport;
+
+import com.mantis.tinyfittings.bluetooth.OnReceivedDataListener;
+
+/**
+ * A byte link to a board underneath {@link com.mantis.tinyfittings.serial.Serial}.
+ * Received data is pushed to the registered listeners under the same rules as
+ * for the Bluetooth reader: the slice is only valid during the callback, and
+ * all callbacks of one transport come from one thread at a time.
+ */
+public interface Transport {
+
+	void addOnReceivedDataListener(OnReceivedDataListener listener);
+
+	boolean removeOnReceivedDataListener(OnReceivedDataListener listener);
+
+	void write(int oneByte);
+
+	void write(byte[] bytes, int offset, int length);
+
+	/**
+	 * Writes one message in a priority class of
+	 * {@link com.mantis.tinyfittings.bluetooth.PrioritizedWriter}. Transports
+	 * without priority classes write it like any other bytes.
+	 */
+	void write(byte[] bytes, int offset, int length, int priority);
+
+	/**
+	 * @return bytes of the priority class still queued, 0 for transports
+	 * without priority classes
+	 */
+	int pending(int priority);
+
+	/**
+	 * Sends queued data right away, if the transport queues writes at all.
+	 */
+	void flush();
+
+	/**
+	 * Releases what the transport holds. No listener is called afterwards.
+	 */
+	void close();
+}